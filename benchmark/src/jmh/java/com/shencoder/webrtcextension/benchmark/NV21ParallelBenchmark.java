@@ -0,0 +1,131 @@
+package com.shencoder.webrtcextension.benchmark;
+
+import com.shencoder.webrtcextension.util.AlphaNv21Overlay;
+import com.shencoder.webrtcextension.util.NV21Util;
+import com.shencoder.webrtcextension.util.Nv21OverlayMask;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * {@link NV21Util} 串行和并行版本（xxxParallel）在不同分辨率下的吞吐量对比。
+ * <p>
+ * 剪裁区域、叠图都和整帧一样大，720p 低于 {@link NV21Util#PARALLEL_THRESHOLD_PIXELS}，
+ * 并行版本会退回串行，可以看出阈值两侧的差别。
+ * <p>
+ * {@link #copyI420ToNV21} 对应每帧 toI420() 之后的转换：源平面是 direct buffer，目标是池里的堆数组。
+ */
+@State(Scope.Benchmark)
+public class NV21ParallelBenchmark {
+
+    @Param({"1280x720", "1920x1080", "2560x1440", "3840x2160"})
+    public String resolution;
+
+    private int width;
+    private int height;
+    private byte[] frame;
+    private byte[] cropDst;
+    private byte[] overlay;
+    private Nv21OverlayMask mask;
+    private AlphaNv21Overlay alphaOverlay;
+    private ByteBuffer i420Y;
+    private ByteBuffer i420U;
+    private ByteBuffer i420V;
+    private ByteBuffer nv21Y;
+    private ByteBuffer nv21VU;
+
+    @Setup
+    public void setup() {
+        String[] size = resolution.split("x");
+        width = Integer.parseInt(size[0]);
+        height = Integer.parseInt(size[1]);
+        Random random = new Random(0);
+        frame = new byte[width * height * 3 / 2];
+        random.nextBytes(frame);
+        cropDst = new byte[frame.length];
+
+        //左半边透明的叠图
+        overlay = new byte[frame.length];
+        random.nextBytes(overlay);
+        for (int row = 0; row < height; row++) {
+            for (int col = 0; col < width / 2; col++) {
+                overlay[row * width + col] = NV21Util.TRANSPARENT_Y;
+                overlay[width * height + (row / 2) * width + col] = NV21Util.TRANSPARENT_UV;
+            }
+        }
+        mask = Nv21OverlayMask.create(overlay, width, height);
+
+        //透明、半透明、不透明各占三分之一
+        int[] argb = new int[width * height];
+        for (int i = 0; i < argb.length; i++) {
+            int column = i % width;
+            int alpha = column < width / 3 ? 0 : (column < width * 2 / 3 ? 0x80 : 0xFF);
+            argb[i] = (alpha << 24) | (random.nextInt() & 0xFFFFFF);
+        }
+        alphaOverlay = AlphaNv21Overlay.fromArgb(argb, width, height);
+
+        int ySize = width * height;
+        int chromaSize = ySize / 4;
+        i420Y = directCopy(frame, 0, ySize);
+        i420U = directCopy(frame, ySize, chromaSize);
+        i420V = directCopy(frame, ySize + chromaSize, chromaSize);
+        nv21Y = ByteBuffer.wrap(cropDst, 0, ySize).slice();
+        nv21VU = ByteBuffer.wrap(cropDst, ySize, ySize / 2).slice();
+    }
+
+    private static ByteBuffer directCopy(byte[] src, int offset, int length) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+        buffer.put(src, offset, length);
+        buffer.clear();
+        return buffer;
+    }
+
+    @Benchmark
+    public byte[] cropSerial() {
+        NV21Util.cropNV21Into(frame, width, height, width, height, 0, 0, cropDst, 0);
+        return cropDst;
+    }
+
+    @Benchmark
+    public byte[] cropParallel() {
+        NV21Util.cropNV21IntoParallel(frame, width, height, width, height, 0, 0, cropDst, 0);
+        return cropDst;
+    }
+
+    @Benchmark
+    public byte[] maskOverlaySerial() {
+        NV21Util.overlayNV21(frame, width, height, 0, 0, overlay, width, height, mask);
+        return frame;
+    }
+
+    @Benchmark
+    public byte[] maskOverlayParallel() {
+        NV21Util.overlayNV21Parallel(frame, width, height, 0, 0, overlay, width, height, mask);
+        return frame;
+    }
+
+    @Benchmark
+    public byte[] alphaOverlaySerial() {
+        NV21Util.overlayNV21(frame, width, height, 0, 0, alphaOverlay);
+        return frame;
+    }
+
+    @Benchmark
+    public byte[] alphaOverlayParallel() {
+        NV21Util.overlayNV21Parallel(frame, width, height, 0, 0, alphaOverlay);
+        return frame;
+    }
+
+    @Benchmark
+    public byte[] copyI420ToNV21() {
+        NV21Util.copyI420ToNV21(i420Y, width, i420U, width / 2, i420V, width / 2, nv21Y, width, nv21VU, width,
+                width, height);
+        return cropDst;
+    }
+}
@@ -0,0 +1,349 @@
+package com.shencoder.webrtcextension
+
+import android.graphics.Bitmap
+import android.graphics.Canvas
+import android.graphics.Color
+import android.graphics.Movie
+import android.graphics.PorterDuff
+import android.util.Log
+import androidx.annotation.IntRange
+import com.shencoder.webrtcextension.util.AlphaNv21Overlay
+import com.shencoder.webrtcextension.util.NV21Util
+import com.shencoder.webrtcextension.util.Nv21BufferUtil
+import java.util.concurrent.TimeUnit
+import kotlin.math.max
+
+/**
+ * 在nv21数据上叠加动图（GIF、APNG或者帧序列），根据[org.webrtc.VideoFrame.getTimestampNs]选择要叠加的帧；
+ * 方向处理和[OverlayNV21VideoProcessor]一致，始终以显示画面的左上角为起始点。
+ *
+ * 每一帧只在后台线程解码一次，转换成带alpha的[AlphaNv21Overlay]并旋转、剪裁后缓存起来，
+ * 之后每帧按alpha混合，半透明的边缘、阴影不会丢失。
+ * 缓存超出[maxCacheBytes]时淘汰最久没有使用的帧，需要时重新解码，较长的动图不会占用过多内存。
+ * 需要的帧还没有解码完成时继续叠加上一次的帧。
+ *
+ * 不再使用时调用[release]结束解码线程。
+ */
+class AnimatedOverlayNV21VideoProcessor @JvmOverloads constructor(
+    /**
+     * 动图的帧来源
+     */
+    private val frameSource: FrameSource,
+    /**
+     * 叠图起始左边位置，尽量确保为偶数
+     * left position, try to ensure that it is even.
+     */
+    @IntRange(from = 0) private val left: Int,
+    /**
+     * 叠图起始上边位置，尽量确保为偶数
+     * top position, try to ensure that it is even.
+     */
+    @IntRange(from = 0) private val top: Int,
+    /**
+     * 解码后的帧缓存占用内存的上限，单位：字节
+     */
+    private val maxCacheBytes: Long = DEFAULT_MAX_CACHE_BYTES
+) : BaseNV21VideoProcessor() {
+
+    companion object {
+        private const val TAG = "AnimatedOverlayNV21"
+
+        /**
+         * 默认缓存上限，约为 10 帧 720P 大小的叠图（颜色和alpha）
+         */
+        const val DEFAULT_MAX_CACHE_BYTES = 32L * 1024 * 1024
+
+        /**
+         * 提前解码当前帧之后的帧数
+         */
+        private const val PREFETCH_FRAMES = 2
+
+        private const val NO_TIMESTAMP = Long.MIN_VALUE
+
+        /**
+         * 完全超出画面或者解码失败的帧，不需要叠图
+         */
+        private val INVISIBLE_FRAME = CachedFrame(null, 0, 0)
+    }
+
+    /**
+     * 动图的帧来源，所有帧的宽高一致，并且为偶数
+     */
+    interface FrameSource {
+        /**
+         * 帧数
+         */
+        val frameCount: Int
+
+        /**
+         * 第[index]帧的显示时长，单位：毫秒
+         */
+        fun getFrameDurationMs(index: Int): Int
+
+        /**
+         * 解码第[index]帧，[Bitmap.Config.ARGB_8888]格式；只在解码线程上调用，返回的[Bitmap]由[FrameSource]负责回收
+         */
+        fun decodeFrame(index: Int): Bitmap
+    }
+
+    /**
+     * 帧序列，每帧显示相同的时长
+     */
+    class BitmapSequenceSource(
+        private val bitmaps: List<Bitmap>,
+        @IntRange(from = 1) private val frameDurationMs: Int
+    ) : FrameSource {
+
+        override val frameCount: Int
+            get() = bitmaps.size
+
+        override fun getFrameDurationMs(index: Int): Int = frameDurationMs
+
+        override fun decodeFrame(index: Int): Bitmap = bitmaps[index]
+    }
+
+    /**
+     * 使用[Movie]解码的GIF，按[frameIntervalMs]等间隔取帧；APNG等其他格式请自行实现[FrameSource]
+     */
+    @Suppress("DEPRECATION")
+    class GifFrameSource @JvmOverloads constructor(
+        private val movie: Movie,
+        @IntRange(from = 1) private val frameIntervalMs: Int = 40
+    ) : FrameSource {
+
+        /**
+         * 每帧都画到同一个Bitmap上，解码后立即转换成nv21，不需要保留
+         */
+        private val bitmap = Bitmap.createBitmap(movie.width(), movie.height(), Bitmap.Config.ARGB_8888)
+
+        private val canvas = Canvas(bitmap)
+
+        override val frameCount: Int = max(1, (movie.duration() + frameIntervalMs - 1) / frameIntervalMs)
+
+        override fun getFrameDurationMs(index: Int): Int = frameIntervalMs
+
+        override fun decodeFrame(index: Int): Bitmap {
+            canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR)
+            movie.setTime(index * frameIntervalMs)
+            movie.draw(canvas, 0f, 0f)
+            return bitmap
+        }
+    }
+
+    /**
+     * 解码、旋转、剪裁后的一帧，创建后不再修改
+     */
+    private class CachedFrame(
+        /**
+         * 为null时该帧在当前画面中完全不可见
+         */
+        val overlay: AlphaNv21Overlay?,
+        val startLeft: Int,
+        val startTop: Int
+    ) {
+        /**
+         * 估算的内存占用，包括alpha平面
+         */
+        val sizeInBytes: Long = overlay?.byteCount ?: 0L
+    }
+
+    /**
+     * 按LRU淘汰的帧缓存，画面宽高、方向变化时整体失效；帧处理线程和解码线程都会访问，内部加锁
+     */
+    private inner class FrameCache {
+        private val lock = Any()
+
+        private val frames = LinkedHashMap<Int, CachedFrame>(16, 0.75f, true)
+
+        /**
+         * 正在解码的帧
+         */
+        private val pending = HashSet<Int>()
+
+        /**
+         * 缓存对应的画面宽高、方向
+         */
+        private var geometryKey = -1L
+
+        private var cachedBytes = 0L
+
+        /**
+         * 取出第[index]帧，同时提交还没有缓存的[index]以及之后[PREFETCH_FRAMES]帧的解码
+         */
+        fun obtain(key: Long, index: Int, frameCount: Int): CachedFrame? {
+            synchronized(lock) {
+                if (geometryKey != key) {
+                    //画面宽高、方向变化，旧的帧都不能再用
+                    frames.clear()
+                    pending.clear()
+                    cachedBytes = 0L
+                    geometryKey = key
+                }
+                val frame = frames[index]
+                for (i in 0..PREFETCH_FRAMES.coerceAtMost(frameCount - 1)) {
+                    val prefetchIndex = (index + i) % frameCount
+                    if (frames.containsKey(prefetchIndex).not() && pending.add(prefetchIndex)) {
+                        decodeWorker.post { decodeFrame(key, prefetchIndex) }
+                    }
+                }
+                return frame
+            }
+        }
+
+        fun put(key: Long, index: Int, frame: CachedFrame) {
+            synchronized(lock) {
+                if (geometryKey != key) {
+                    //解码期间画面参数变化了
+                    return
+                }
+                pending.remove(index)
+                frames.put(index, frame)?.let { cachedBytes -= it.sizeInBytes }
+                cachedBytes += frame.sizeInBytes
+                //淘汰最久没有使用的帧，至少保留刚解码的这一帧
+                val iterator = frames.entries.iterator()
+                while (cachedBytes > maxCacheBytes && frames.size > 1) {
+                    val eldest = iterator.next()
+                    if (eldest.key == index) {
+                        continue
+                    }
+                    cachedBytes -= eldest.value.sizeInBytes
+                    iterator.remove()
+                }
+            }
+        }
+
+        fun clear() {
+            synchronized(lock) {
+                frames.clear()
+                pending.clear()
+                cachedBytes = 0L
+                geometryKey = -1L
+            }
+        }
+    }
+
+    private val decodeWorker: WorkerHandler =
+        WorkerHandler.get("AnimatedOverlayNV21@" + Integer.toHexString(System.identityHashCode(this)))
+
+    private val frameCache = FrameCache()
+
+    /**
+     * 每帧结束时间（相对动图开始，毫秒）的前缀和，用于根据时间戳查找帧
+     */
+    private val frameEndTimesMs: LongArray
+
+    private val totalDurationMs: Long
+
+    //以下字段只在handleNV21中访问，handleNV21不会并发调用
+
+    /**
+     * 第一帧画面的时间戳，动图从这里开始播放
+     */
+    private var startTimestampNs = NO_TIMESTAMP
+
+    /**
+     * 上一次叠加的帧，需要的帧还没有解码完成时继续使用
+     */
+    private var lastFrame: CachedFrame? = null
+
+    private var lastGeometryKey = -1L
+
+    init {
+        val frameCount = frameSource.frameCount
+        require(frameCount > 0) { "frameCount must be positive: $frameCount" }
+        frameEndTimesMs = LongArray(frameCount)
+        var endTimeMs = 0L
+        for (i in 0 until frameCount) {
+            endTimeMs += max(1, frameSource.getFrameDurationMs(i))
+            frameEndTimesMs[i] = endTimeMs
+        }
+        totalDurationMs = endTimeMs
+    }
+
+    override fun handleNV21(nv21: ByteArray, width: Int, height: Int, rotation: Int): Boolean =
+        handleNV21(nv21, width, height, rotation, System.nanoTime())
+
+    override fun handleNV21(nv21: ByteArray, width: Int, height: Int, rotation: Int, timestampNs: Long): Boolean {
+        val key = geometryKey(width, height, rotation)
+        if (key != lastGeometryKey) {
+            lastGeometryKey = key
+            lastFrame = null
+        }
+        val index = frameIndexAt(timestampNs)
+        val frame = frameCache.obtain(key, index, frameEndTimesMs.size)?.also { lastFrame = it } ?: lastFrame
+        if (frame == null) {
+            return false
+        }
+        val overlay = frame.overlay ?: return false
+        NV21Util.overlayNV21Parallel(nv21, width, height, frame.startLeft, frame.startTop, overlay)
+        return true
+    }
+
+    /**
+     * 清空缓存并结束解码线程
+     */
+    override fun release() {
+        super.release()
+        decodeWorker.destroy()
+        frameCache.clear()
+    }
+
+    private fun geometryKey(width: Int, height: Int, rotation: Int): Long =
+        (width.toLong() shl 32) or (height.toLong() shl 16) or rotation.toLong()
+
+    private fun frameIndexAt(timestampNs: Long): Int {
+        if (startTimestampNs == NO_TIMESTAMP) {
+            startTimestampNs = timestampNs
+        }
+        val elapsedMs = TimeUnit.NANOSECONDS.toMillis(timestampNs - startTimestampNs)
+        //时间戳回退时也落在[0, totalDurationMs)内
+        val timeMs = ((elapsedMs % totalDurationMs) + totalDurationMs) % totalDurationMs
+        //第一个结束时间大于timeMs的帧
+        var low = 0
+        var high = frameEndTimesMs.size - 1
+        while (low < high) {
+            val mid = (low + high) ushr 1
+            if (frameEndTimesMs[mid] > timeMs) {
+                high = mid
+            } else {
+                low = mid + 1
+            }
+        }
+        return low
+    }
+
+    /**
+     * 在解码线程上解码一帧并放入缓存
+     */
+    private fun decodeFrame(key: Long, index: Int) {
+        val frameWidth = (key ushr 32).toInt()
+        val frameHeight = ((key ushr 16) and 0xFFFF).toInt()
+        val rotation = (key and 0xFFFF).toInt()
+        val frame = try {
+            createCachedFrame(index, rotation, frameWidth, frameHeight)
+        } catch (e: Exception) {
+            Log.e(TAG, "decodeFrame: failed to decode frame $index", e)
+            //同样缓存起来，不再每帧重复解码
+            INVISIBLE_FRAME
+        }
+        frameCache.put(key, index, frame)
+    }
+
+    private fun createCachedFrame(index: Int, rotation: Int, frameWidth: Int, frameHeight: Int): CachedFrame {
+        val source = Nv21BufferUtil.argb8888BitmapToAlphaNv21Overlay(frameSource.decodeFrame(index))
+        val rotated = source.rotate(Nv21OverlayPlacement.overlayRotation(rotation))
+        if (rotated == null) {
+            Log.e(TAG, "createCachedFrame: unsupported frame size: ${source.width}x${source.height}")
+            return INVISIBLE_FRAME
+        }
+        val placement = Nv21OverlayPlacement.placeAlpha(
+            rotated,
+            rotation,
+            left,
+            top,
+            frameWidth,
+            frameHeight
+        ) ?: return INVISIBLE_FRAME
+        return CachedFrame(placement.overlay, placement.startLeft, placement.startTop)
+    }
+}
@@ -0,0 +1,132 @@
+package com.shencoder.webrtcextension
+
+import androidx.annotation.CallSuper
+import org.webrtc.I420BufferPool
+import org.webrtc.VideoFrame
+import org.webrtc.VideoProcessor
+import org.webrtc.VideoSink
+import org.webrtc.YuvHelper
+import java.nio.ByteBuffer
+
+/**
+ * 直接处理I420数据，和[BaseNV21VideoProcessor]相比少了I420转nv21、以及编码前nv21转回I420两次整帧转换。
+ *
+ * [VideoFrame.getBuffer]->[VideoFrame.I420Buffer]->writable pooled I420 buffer->processing data->[VideoFrame]
+ *
+ * [VideoFrame.Buffer.toI420]得到的是新转换出来的buffer时（例如纹理、nv21输入）直接在上面修改，
+ * 不再复制；原本就是I420的帧可能还被其他地方使用，先复制到池中的buffer再修改。
+ */
+abstract class BaseI420VideoProcessor : VideoProcessor {
+
+    private companion object {
+        /**
+         * 最多复用的I420 buffer数量，下游（编码器、渲染）可能同时持有几帧
+         */
+        private const val MAX_POOLED_I420_BUFFERS = 4
+    }
+
+    protected var mSink: VideoSink? = null
+
+    private val i420BufferPool = I420BufferPool(MAX_POOLED_I420_BUFFERS)
+
+    @CallSuper
+    override fun setSink(sink: VideoSink?) {
+        mSink = sink
+    }
+
+    @CallSuper
+    override fun onCapturerStarted(success: Boolean) {
+
+    }
+
+    @CallSuper
+    override fun onCapturerStopped() {
+
+    }
+
+    final override fun onFrameCaptured(frame: VideoFrame) {
+        val buffer = frame.buffer
+        val toI420 = buffer.toI420()
+        val width = toI420.width
+        val height = toI420.height
+
+        val writable: VideoFrame.I420Buffer
+        if (toI420 !== buffer) {
+            //新转换出来的buffer只有这里持有，可以直接修改
+            writable = toI420
+        } else {
+            //和原始帧是同一个buffer，复制到池中的buffer，带stride的平面一次复制
+            writable = i420BufferPool.acquire(width, height)
+            YuvHelper.I420Copy(
+                toI420.dataY,
+                toI420.strideY,
+                toI420.dataU,
+                toI420.strideU,
+                toI420.dataV,
+                toI420.strideV,
+                writable.dataY,
+                writable.strideY,
+                writable.dataU,
+                writable.strideU,
+                writable.dataV,
+                writable.strideV,
+                width,
+                height
+            )
+            toI420.release()
+        }
+
+        //处理I420数据是否成功
+        val success = handleI420(
+            writable.dataY,
+            writable.strideY,
+            writable.dataU,
+            writable.strideU,
+            writable.dataV,
+            writable.strideV,
+            width,
+            height,
+            frame.rotation
+        )
+        if (success.not()) {
+            writable.release()
+            //将原始的VideoFrame发送出去
+            mSink?.onFrame(frame)
+            return
+        }
+        //下游都释放后buffer回到池中
+        val videoFrame = VideoFrame(writable, frame.rotation, frame.timestampNs)
+
+        //将处理好的VideoFrame发送出去
+        mSink?.onFrame(videoFrame)
+
+        videoFrame.release()
+    }
+
+    /**
+     * 处理I420数据，请直接修改平面中的数据；平面的position为0，不要修改position和limit
+     *
+     * @param dataY    Y平面
+     * @param strideY  Y平面每行的字节数
+     * @param dataU    U平面
+     * @param strideU  U平面每行的字节数
+     * @param dataV    V平面
+     * @param strideV  V平面每行的字节数
+     * @param width    宽
+     * @param height   高
+     * @param rotation 方向
+     *
+     * @return 是否处理完成；ture:发送修改后的数据，false:发送原始帧
+     */
+    abstract fun handleI420(
+        dataY: ByteBuffer,
+        strideY: Int,
+        dataU: ByteBuffer,
+        strideU: Int,
+        dataV: ByteBuffer,
+        strideV: Int,
+        width: Int,
+        height: Int,
+        rotation: Int
+    ): Boolean
+}
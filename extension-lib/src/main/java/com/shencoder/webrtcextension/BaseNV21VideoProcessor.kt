@@ -1,26 +1,132 @@
 package com.shencoder.webrtcextension
 
 import androidx.annotation.CallSuper
-import io.github.crow_misia.libyuv.I420Buffer
-import io.github.crow_misia.libyuv.Nv21Buffer
+import com.shencoder.webrtcextension.util.NV21Util
 import org.webrtc.*
-import java.nio.ByteBuffer
 import org.webrtc.WatermarkVideoProcessor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.math.ceil
 
 /**
  *
- * [VideoFrame.getBuffer]->[VideoFrame.I420Buffer]->[I420Buffer]->[Nv21Buffer]->processing data->[VideoFrame]
- * @deprecated use [WatermarkVideoProcessor]
+ * [VideoFrame.getBuffer]->[VideoFrame.I420Buffer]->pooled nv21 [ByteArray]->processing data->[VideoFrame]
+ * 只是添加静态水印时优先使用[WatermarkVideoProcessor]，不需要转换nv21
  *
  * @author  ShenBen
  * @date    2021/12/6 08:44
  * @email   714081644@qq.com
  */
-@Deprecated(message = "use [WatermarkVideoProcessor]")
 abstract class BaseNV21VideoProcessor : VideoProcessor {
 
+    private companion object {
+        /**
+         * 每种分辨率最多复用的nv21数组数量，下游（编码器、渲染）可能同时持有几帧
+         */
+        private const val MAX_POOLED_NV21_ARRAYS = 4
+
+        /**
+         * 异步处理时默认的排队帧数
+         */
+        private const val DEFAULT_ASYNC_QUEUE_DEPTH = 2
+
+        /**
+         * [handleNV21]耗时的指数加权移动平均系数，越大越快跟上耗时的变化
+         */
+        private const val COST_EWMA_ALPHA = 0.2
+
+        /**
+         * 自适应跳帧时最多每多少帧处理一帧
+         */
+        private const val MAX_PROCESS_INTERVAL = 8
+    }
+
+    /**
+     * 异步处理的统计，[framesOverlapped]为采集到新帧时上一帧还在处理中的帧数，
+     * 即和采集并行处理的帧数；[framesDropped]为队列满时丢弃的最旧帧数
+     */
+    data class AsyncStats(
+        val framesProcessed: Long,
+        val framesOverlapped: Long,
+        val framesDropped: Long
+    )
+
+    /**
+     * 异步处理的队列和处理线程，开启、关闭时整体替换
+     */
+    private inner class AsyncStage(queueDepth: Int, val worker: WorkerHandler) {
+        val ring = DropOldestRing<Nv21ArrayPool.Nv21Array>(queueDepth)
+
+        /**
+         * 处理线程上是否已经有排队或者正在执行的[drainRunnable]，只在从false变为true时post，不用每帧post
+         */
+        val drainScheduled = AtomicBoolean()
+
+        val drainRunnable = Runnable { drainAsyncFrames(this) }
+    }
+
     protected var mSink: VideoSink? = null
 
+    /**
+     * 复用的nv21数组，只在采集线程上访问
+     */
+    private var nv21ArrayPool: Nv21ArrayPool? = null
+
+    @Volatile
+    private var asyncStage: AsyncStage? = null
+
+    /**
+     * 异步模式关闭前后，采集线程和处理线程可能同时有帧在处理，保证[handleNV21]不会并发调用；
+     * 异步队列中的帧在锁内取出、处理并发送，保证发送顺序
+     */
+    private val handleLock = Any()
+
+    @Volatile
+    private var asyncProcessing = false
+
+    private val asyncFramesProcessed = AtomicLong()
+
+    private val asyncFramesOverlapped = AtomicLong()
+
+    private val asyncFramesDropped = AtomicLong()
+
+    /**
+     * 每帧处理时间的预算，0表示不跳帧
+     */
+    @Volatile
+    private var frameBudgetNs = 0L
+
+    @Volatile
+    private var repeatLastFrame = false
+
+    /**
+     * [handleNV21]耗时的指数加权移动平均，在[handleLock]内读写
+     */
+    private var handleCostEwmaNs = 0.0
+
+    /**
+     * 每多少帧处理一帧，1表示每帧都处理
+     */
+    @Volatile
+    private var processInterval = 1
+
+    /**
+     * 采集到的帧数，只在采集线程上访问
+     */
+    private var capturedFrameCount = 0L
+
+    private val skippedFrames = AtomicLong()
+
+    private val lastFrameLock = Any()
+
+    /**
+     * 上一帧处理好的数据，[repeatLastFrame]为true时用于跳过的帧，持有一次引用
+     */
+    private var lastProcessedBuffer: VideoFrame.Buffer? = null
+
+    private var lastProcessedRotation = 0
+
     @CallSuper
     override fun setSink(sink: VideoSink?) {
         mSink = sink
@@ -36,7 +142,115 @@ abstract class BaseNV21VideoProcessor : VideoProcessor {
 
     }
 
+    /**
+     * 开启或关闭异步处理。开启后采集线程只负责转换成nv21，[handleNV21]在专用线程上执行，
+     * 慢的处理不会拖慢相机的帧率；处理完成的帧按时间戳顺序发送。
+     * 排队的帧数达到[queueDepth]时丢弃最旧的帧。
+     * 关闭或者修改[queueDepth]时，已经排队的帧在调用线程上处理、发送完才返回。不再使用时调用[release]。
+     *
+     * @param enabled    是否异步处理
+     * @param queueDepth 最多排队的帧数
+     */
+    @JvmOverloads
+    fun setAsyncProcessing(enabled: Boolean, queueDepth: Int = DEFAULT_ASYNC_QUEUE_DEPTH) {
+        require(queueDepth > 0) { "queueDepth must be positive: $queueDepth" }
+        val retired = synchronized(handleLock) {
+            val old = asyncStage
+            if (enabled && old != null && old.ring.capacity == queueDepth) {
+                return
+            }
+            asyncStage = if (enabled) AsyncStage(queueDepth, old?.worker ?: obtainAsyncWorker()) else null
+            //在当前线程上把已经排队的帧处理、发送完再切换，之后同步处理的帧不会比它们先发送
+            old?.let { drainAsyncFrames(it) }
+            old?.takeIf { enabled.not() }
+        }
+        //修改队列深度时继续使用原来的处理线程
+        retired?.worker?.destroy()
+    }
+
+    /**
+     * 释放异步处理线程、丢弃排队中的帧以及保存的上一帧。之后仍然可以处理帧，按同步方式处理
+     */
+    @CallSuper
+    open fun release() {
+        val stage = synchronized(handleLock) {
+            asyncStage.also { asyncStage = null }
+        }
+        if (stage != null) {
+            while (true) {
+                val nv21Array = stage.ring.poll() ?: break
+                nv21Array.release()
+            }
+            stage.worker.destroy()
+        }
+        setLastProcessedBuffer(null, 0)
+    }
+
+    fun isAsyncProcessing(): Boolean = asyncStage != null
+
+    fun getAsyncStats(): AsyncStats = AsyncStats(
+        asyncFramesProcessed.get(),
+        asyncFramesOverlapped.get(),
+        asyncFramesDropped.get()
+    )
+
+    fun resetAsyncStats() {
+        asyncFramesProcessed.set(0)
+        asyncFramesOverlapped.set(0)
+        asyncFramesDropped.set(0)
+    }
+
+    /**
+     * 开启自适应跳帧：[handleNV21]的耗时（指数加权移动平均）超过[budgetMs]时，每N帧只处理一帧，
+     * 其他帧不调用[handleNV21]；N根据耗时自动增大、减小，最大为8。
+     *
+     * @param budgetMs        每帧处理时间的预算，例如20ms；0表示关闭
+     * @param repeatLastFrame 跳过的帧是否发送上一帧处理好的画面（使用当前帧的时间戳），否则原样发送当前帧
+     */
+    @JvmOverloads
+    fun setFrameBudget(budgetMs: Long, repeatLastFrame: Boolean = false) {
+        require(budgetMs >= 0) { "budgetMs must not be negative: $budgetMs" }
+        frameBudgetNs = TimeUnit.MILLISECONDS.toNanos(budgetMs)
+        this.repeatLastFrame = repeatLastFrame
+        if (budgetMs == 0L) {
+            processInterval = 1
+        }
+        if (budgetMs == 0L || repeatLastFrame.not()) {
+            setLastProcessedBuffer(null, 0)
+        }
+    }
+
+    /**
+     * 当前跳过的帧的比例，0表示每帧都处理
+     */
+    fun getSkipRatio(): Float = 1f - 1f / processInterval
+
+    /**
+     * 当前每多少帧处理一帧
+     */
+    fun getProcessInterval(): Int = processInterval
+
+    /**
+     * 因为超出预算跳过的总帧数
+     */
+    fun getSkippedFrameCount(): Long = skippedFrames.get()
+
     final override fun onFrameCaptured(frame: VideoFrame) {
+        val skip = shouldSkipFrame()
+        if (skip && asyncStage == null) {
+            //同步处理时直接发送，连nv21转换也省掉
+            skippedFrames.incrementAndGet()
+            val emitted = emitLastProcessedFrame(
+                frame.buffer.width,
+                frame.buffer.height,
+                frame.rotation,
+                frame.timestampNs
+            )
+            if (emitted.not()) {
+                mSink?.onFrame(frame)
+            }
+            return
+        }
         val buffer = frame.buffer
         val width = buffer.width
         val height = buffer.height
@@ -44,76 +258,154 @@ abstract class BaseNV21VideoProcessor : VideoProcessor {
         //如果由TextureBuffer转成I420Buffer，并不是一个标准的YUV420P格式，还需要二次转换
         val toI420 = buffer.toI420()
 
-        val planes = arrayOf<ByteBuffer>(toI420.dataY, toI420.dataU, toI420.dataV)
-        val strides = intArrayOf(toI420.strideY, toI420.strideU, toI420.strideV)
-
-        val halfWidth = (width + 1).shr(1)
-        val halfHeight = (height + 1).shr(1)
+        //从池中取复用的nv21数组，带stride的I420平面一次转换成nv21，不再经过中间的I420、Nv21Buffer
+        val nv21Array = obtainNv21Array(width, height)
+        val converted = NV21Util.copyI420ToNV21(
+            toI420.dataY,
+            toI420.strideY,
+            toI420.dataU,
+            toI420.strideU,
+            toI420.dataV,
+            toI420.strideV,
+            nv21Array.dataY,
+            nv21Array.strideY,
+            nv21Array.dataVU,
+            nv21Array.strideVU,
+            width,
+            height
+        )
+        toI420.release()
+        if (converted.not()) {
+            nv21Array.release()
+            mSink?.onFrame(frame)
+            return
+        }
+        nv21Array.rotation = frame.rotation
+        nv21Array.timestampNs = frame.timestampNs
+        //异步处理时跳过的帧也要排队，保证发送的顺序
+        nv21Array.skipHandle = skip
 
-        val capacity = width * height
-        val halfCapacity = (halfWidth + 1).shr(1) * height
+        val stage = asyncStage
+        if (stage != null) {
+            if (asyncProcessing) {
+                asyncFramesOverlapped.incrementAndGet()
+            }
+            stage.ring.offer(nv21Array)?.let {
+                asyncFramesDropped.incrementAndGet()
+                it.release()
+            }
+            if (asyncStage !== stage) {
+                //放入队列的同时异步处理被关闭或者替换，切换时可能已经清空过队列，在当前线程处理剩下的帧
+                drainAsyncFrames(stage)
+            } else if (stage.drainScheduled.compareAndSet(false, true)
+                && stage.worker.handler.post(stage.drainRunnable).not()
+            ) {
+                //处理线程已经结束，在当前线程处理
+                drainAsyncFrames(stage)
+            }
+            return
+        }
 
-        val planeWidths = intArrayOf(width, halfWidth, halfWidth)
-        val planeHeights = intArrayOf(height, halfHeight, halfHeight)
+        if (processNv21Array(nv21Array).not()) {
+            nv21Array.release()
+            //将处理好的VideoFrame发送出去
+            mSink?.onFrame(frame)
+        }
+    }
 
-        //使用Jni方法生成，后面释放，避免吃满内存
-        val byteBuffer = JniCommon.nativeAllocateByteBuffer(capacity + halfCapacity + halfCapacity)
+    /**
+     * 依次处理排队的帧，通常在处理线程上执行；关闭异步处理时也会在调用线程上执行
+     */
+    private fun drainAsyncFrames(stage: AsyncStage) {
+        while (true) {
+            if (synchronized(handleLock) { processNextAsyncFrame(stage) }) {
+                continue
+            }
+            stage.drainScheduled.set(false)
+            //清除标记前放入的帧，生产者看到标记还在不会再post，需要这里继续处理
+            if (stage.ring.size() == 0 || stage.drainScheduled.compareAndSet(false, true).not()) {
+                return
+            }
+        }
+    }
 
-        //数量为3,分别对应Y、U、V
-        for (i in 0..2) {
-            if (strides[i] == planeWidths[i]) {
-                //这里一般是Y分量
-                byteBuffer.put(planes[i])
-            } else {
-                val sliceLengths = planeWidths[i] * planeHeights[i]
-
-                val limit = byteBuffer.position() + sliceLengths
-                byteBuffer.limit(limit)
-
-                //这里一般是UV分量
-                //使用byteBuffer.slice()生成的ByteBuffer，和源ByteBuffer数据相互影响
-                val copyBuffer = byteBuffer.slice()
-
-                YuvHelper.copyPlane(
-                    planes[i],
-                    strides[i],
-                    copyBuffer,
-                    planeWidths[i],
-                    planeWidths[i],
-                    planeHeights[i]
+    /**
+     * 取出一帧处理并发送，必须持有[handleLock]，多个线程同时清空队列时也按放入的顺序发送
+     *
+     * @return 队列为空时返回false
+     */
+    private fun processNextAsyncFrame(stage: AsyncStage): Boolean {
+        val nv21Array = stage.ring.poll() ?: return false
+        if (nv21Array.skipHandle) {
+            skippedFrames.incrementAndGet()
+            if (emitLastProcessedFrame(
+                    nv21Array.width,
+                    nv21Array.height,
+                    nv21Array.rotation,
+                    nv21Array.timestampNs
                 )
-                byteBuffer.position(limit)
+            ) {
+                nv21Array.release()
+            } else {
+                emitNv21Array(nv21Array, false)
             }
+            return true
         }
+        asyncProcessing = true
+        val processed = processNv21Array(nv21Array)
+        asyncProcessing = false
+        if (processed) {
+            asyncFramesProcessed.incrementAndGet()
+        } else {
+            //原始帧已经释放，nv21数组中是未修改的原始数据，直接发送
+            emitNv21Array(nv21Array, false)
+        }
+        return true
+    }
 
-        //标准的I420格式
-        val newI420Buffer = I420Buffer.wrap(byteBuffer, width, height)
-
-        //通过I420转成NV21
-        val nv21Buffer = Nv21Buffer.allocate(width, height)
-        newI420Buffer.convertTo(nv21Buffer)
-        val nv21ByteArray = nv21Buffer.asByteArray()
-
-        newI420Buffer.close()
-        JniCommon.nativeFreeByteBuffer(byteBuffer)
-        toI420.release()
-        nv21Buffer.close()
+    private fun obtainAsyncWorker(): WorkerHandler =
+        WorkerHandler.get("NV21Processor@" + Integer.toHexString(System.identityHashCode(this)))
 
+    /**
+     * 调用[handleNV21]，成功时发送处理好的帧
+     *
+     * @return 是否处理成功；失败时[nv21Array]还没有被释放
+     */
+    private fun processNv21Array(nv21Array: Nv21ArrayPool.Nv21Array): Boolean {
         //处理nv21数据是否成功
-        val success = handleNV21(nv21ByteArray, width, height, frame.rotation)
+        val success = synchronized(handleLock) {
+            val startNs = System.nanoTime()
+            val result = handleNV21(
+                nv21Array.data,
+                nv21Array.width,
+                nv21Array.height,
+                nv21Array.rotation,
+                nv21Array.timestampNs
+            )
+            updateProcessInterval(System.nanoTime() - startNs)
+            result
+        }
         if (success.not()) {
-            //将处理好的VideoFrame发送出去
-            mSink?.onFrame(frame)
-            return
+            return false
         }
-        //将处理好的nv21数据转换为NV21Buffer，传给VideoFrame
+        emitNv21Array(nv21Array, repeatLastFrame)
+        return true
+    }
+
+    /**
+     * 将nv21数据转换为NV21Buffer，传给VideoFrame；下游都释放后数组回到池中
+     *
+     * @param keepAsLast 是否保存为上一帧处理好的画面，供跳过的帧重复发送
+     */
+    private fun emitNv21Array(nv21Array: Nv21ArrayPool.Nv21Array, keepAsLast: Boolean) {
         val videoFrame = VideoFrame(
-            NV21Buffer(nv21ByteArray, width, height, null),
-            frame.rotation,
-            frame.timestampNs
+            NV21Buffer(nv21Array.data, nv21Array.width, nv21Array.height, nv21Array.releaseCallback),
+            nv21Array.rotation,
+            nv21Array.timestampNs
         )
-
-        videoFrame.retain()
+        if (keepAsLast) {
+            setLastProcessedBuffer(videoFrame.buffer, nv21Array.rotation)
+        }
 
         //将处理好的VideoFrame发送出去
         mSink?.onFrame(videoFrame)
@@ -122,7 +414,85 @@ abstract class BaseNV21VideoProcessor : VideoProcessor {
     }
 
     /**
-     * 处理NV21数据
+     * 按照当前的处理间隔判断这一帧是否跳过，只在采集线程上调用
+     */
+    private fun shouldSkipFrame(): Boolean {
+        if (frameBudgetNs == 0L) {
+            return false
+        }
+        capturedFrameCount++
+        return capturedFrameCount % processInterval != 0L
+    }
+
+    /**
+     * 用[handleNV21]的耗时更新处理间隔：超出预算时立即增大到需要的间隔，低于预算时每次减小1，避免来回抖动
+     */
+    private fun updateProcessInterval(costNs: Long) {
+        val budgetNs = frameBudgetNs
+        if (budgetNs == 0L) {
+            handleCostEwmaNs = 0.0
+            return
+        }
+        handleCostEwmaNs = if (handleCostEwmaNs == 0.0) {
+            costNs.toDouble()
+        } else {
+            handleCostEwmaNs + COST_EWMA_ALPHA * (costNs - handleCostEwmaNs)
+        }
+        val desired = ceil(handleCostEwmaNs / budgetNs).toInt().coerceIn(1, MAX_PROCESS_INTERVAL)
+        val current = processInterval
+        processInterval = when {
+            desired > current -> desired
+            desired < current -> current - 1
+            else -> current
+        }
+    }
+
+    private fun setLastProcessedBuffer(buffer: VideoFrame.Buffer?, rotation: Int) {
+        buffer?.retain()
+        val old = synchronized(lastFrameLock) {
+            val old = lastProcessedBuffer
+            lastProcessedBuffer = buffer
+            lastProcessedRotation = rotation
+            old
+        }
+        old?.release()
+    }
+
+    /**
+     * 跳过的帧重复发送上一帧处理好的画面
+     *
+     * @return 没有开启、或者上一帧的大小和方向不一致时返回false，由调用方发送原始画面
+     */
+    private fun emitLastProcessedFrame(width: Int, height: Int, rotation: Int, timestampNs: Long): Boolean {
+        if (repeatLastFrame.not()) {
+            return false
+        }
+        val buffer = synchronized(lastFrameLock) {
+            lastProcessedBuffer?.takeIf {
+                it.width == width && it.height == height && lastProcessedRotation == rotation
+            }?.also { it.retain() }
+        } ?: return false
+        val videoFrame = VideoFrame(buffer, rotation, timestampNs)
+        mSink?.onFrame(videoFrame)
+        videoFrame.release()
+        return true
+    }
+
+    private fun obtainNv21Array(width: Int, height: Int): Nv21ArrayPool.Nv21Array {
+        //异步处理时排队中的帧、重复发送的上一帧都会占用数组
+        val maxPoolSize = MAX_POOLED_NV21_ARRAYS + (asyncStage?.ring?.capacity ?: 0) + 1
+        var pool = nv21ArrayPool
+        if (pool == null || pool.width != width || pool.height != height || pool.maxPoolSize != maxPoolSize) {
+            //分辨率或者异步队列深度变化，旧池中还没归还的数组归还到旧池后随旧池一起回收
+            pool?.clear()
+            pool = Nv21ArrayPool(width, height, maxPoolSize)
+            nv21ArrayPool = pool
+        }
+        return pool.obtain()
+    }
+
+    /**
+     * 处理NV21数据；开启[setAsyncProcessing]后在专用的处理线程上调用，不会并发调用
      *
      * @param nv21      原始nv21数据，请直接修改此数组的数据，会二次使用
      * @param width     原始nv21数据的宽
@@ -138,6 +508,19 @@ abstract class BaseNV21VideoProcessor : VideoProcessor {
         rotation: Int
     ): Boolean
 
+    /**
+     * 带帧时间戳的[handleNV21]，需要根据时间处理（例如动画叠图）时重写，默认忽略时间戳
+     *
+     * @param timestampNs 原始帧的时间戳，[VideoFrame.getTimestampNs]
+     */
+    open fun handleNV21(
+        nv21: ByteArray,
+        width: Int,
+        height: Int,
+        rotation: Int,
+        timestampNs: Long
+    ): Boolean = handleNV21(nv21, width, height, rotation)
+
     protected fun checkNV21ByteArray(nv21: ByteArray, width: Int, height: Int): ByteArray {
         //标准大小
         val size = width * height * 3 / 2
@@ -0,0 +1,70 @@
+package com.shencoder.webrtcextension
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+/**
+ * 单生产者、单消费者的有界环形队列，队列满时丢弃最旧的元素，不加锁。
+ *
+ * 生产者独占[tail]；[head]由消费者推进，队列满时生产者也会推进一次来丢弃最旧的元素，
+ * 两边通过 CAS 竞争同一个位置，成功的一方拥有该元素，所以每个元素只会被取出或丢弃一次。
+ * 元素按放入的顺序取出。
+ */
+internal class DropOldestRing<T : Any>(val capacity: Int) {
+
+    private val slots = AtomicReferenceArray<T?>(capacity)
+
+    private val head = AtomicLong()
+
+    @Volatile
+    private var tail = 0L
+
+    init {
+        require(capacity > 0) { "capacity must be positive: $capacity" }
+    }
+
+    /**
+     * 放入元素，只能在生产者线程调用
+     *
+     * @return 队列满时被丢弃的最旧元素，否则为null
+     */
+    fun offer(item: T): T? {
+        val t = tail
+        var dropped: T? = null
+        val h = head.get()
+        if (t - h >= capacity) {
+            //先读再 CAS：CAS 成功说明消费者没有取走这个位置，元素归生产者丢弃
+            val oldest = slots.get(index(h))
+            if (head.compareAndSet(h, h + 1)) {
+                dropped = oldest
+            }
+        }
+        //CAS 失败说明消费者刚取走一个，同样腾出了位置
+        slots.set(index(t), item)
+        tail = t + 1
+        return dropped
+    }
+
+    /**
+     * 取出最旧的元素，只能在消费者线程调用
+     *
+     * @return 队列为空时返回null
+     */
+    fun poll(): T? {
+        while (true) {
+            val h = head.get()
+            if (h >= tail) {
+                return null
+            }
+            //位置 h 只有在 head 越过 h 之后才会被覆盖，CAS 成功时读到的一定是位置 h 的元素
+            val item = slots.get(index(h))
+            if (head.compareAndSet(h, h + 1)) {
+                return item
+            }
+        }
+    }
+
+    fun size(): Int = (tail - head.get()).coerceIn(0L, capacity.toLong()).toInt()
+
+    private fun index(sequence: Long): Int = (sequence % capacity).toInt()
+}
@@ -0,0 +1,81 @@
+package com.shencoder.webrtcextension
+
+import java.nio.ByteBuffer
+
+/**
+ * 固定分辨率的nv21数组池，[BaseNV21VideoProcessor]每帧从这里取数组，
+ * 下游释放[org.webrtc.NV21Buffer]时通过[Nv21Array.releaseCallback]归还。
+ *
+ * 数组排列和libyuv的Nv21Buffer一致：Y的行宽为width，VU的行宽为(width + 1) / 2 * 2；
+ * 宽高为偶数时大小正好是width * height * 3 / 2。
+ */
+internal class Nv21ArrayPool(val width: Int, val height: Int, val maxPoolSize: Int) {
+
+    val strideY = width
+
+    val strideVU = (width + 1) / 2 * 2
+
+    private val chromaHeight = (height + 1) / 2
+
+    private val pool = Pool<Nv21Array>(maxPoolSize, Pool.Factory { Nv21Array(true) })
+
+    /**
+     * 取一个数组；池中的数组都在使用中时分配一个新的，用完后不会放回池中
+     */
+    fun obtain(): Nv21Array = pool.get() ?: Nv21Array(false)
+
+    fun clear() {
+        pool.clear()
+    }
+
+    inner class Nv21Array internal constructor(private val pooled: Boolean) {
+
+        val data = ByteArray(strideY * height + strideVU * chromaHeight)
+
+        val strideY: Int get() = this@Nv21ArrayPool.strideY
+
+        val strideVU: Int get() = this@Nv21ArrayPool.strideVU
+
+        val width: Int get() = this@Nv21ArrayPool.width
+
+        val height: Int get() = this@Nv21ArrayPool.height
+
+        /**
+         * 异步处理时随数组一起排队的帧方向
+         */
+        var rotation = 0
+
+        /**
+         * 异步处理时随数组一起排队的帧时间戳
+         */
+        var timestampNs = 0L
+
+        /**
+         * 异步处理时该帧是否因为超出时间预算而跳过[BaseNV21VideoProcessor.handleNV21]
+         */
+        var skipHandle = false
+
+        /**
+         * [data]中Y平面的视图，position为0
+         */
+        val dataY: ByteBuffer = ByteBuffer.wrap(data, 0, strideY * height).slice()
+
+        /**
+         * [data]中VU平面的视图，position为0
+         */
+        val dataVU: ByteBuffer = ByteBuffer.wrap(data, strideY * height, strideVU * chromaHeight).slice()
+
+        /**
+         * 归还到池中，每次取出后只能调用一次；创建一次，每帧复用
+         */
+        val releaseCallback = Runnable {
+            if (pooled) {
+                pool.recycle(this@Nv21Array)
+            }
+        }
+
+        fun release() {
+            releaseCallback.run()
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.shencoder.webrtcextension
+
+import com.shencoder.webrtcextension.util.AlphaNv21Overlay
+import com.shencoder.webrtcextension.util.NV21Util
+import kotlin.math.max
+
+/**
+ * 旋转后的叠图在原始帧数据中的位置，超出画面左边、上边的部分已经剪裁掉
+ *
+ * 画面旋转后叠图始终以显示画面的左上角为起始点，例如画面旋转90°时，
+ * 显示画面的左上角对应原始帧数据的左下角，叠图需要逆时针旋转90°（顺时针270°）后放在左下角。
+ */
+internal class Nv21OverlayPlacement(
+    /**
+     * 剪裁后的叠图数据，不需要剪裁时就是传入的数据
+     */
+    val nv21: ByteArray,
+    val width: Int,
+    val height: Int,
+    /**
+     * 在原始帧数据中叠图的left位置
+     */
+    val startLeft: Int,
+    /**
+     * 在原始帧数据中叠图的top位置
+     */
+    val startTop: Int
+) {
+    companion object {
+
+        /**
+         * 画面方向为[frameRotation]时叠图需要顺时针旋转的角度
+         */
+        fun overlayRotation(frameRotation: Int): Int = (360 - frameRotation) % 360
+
+        /**
+         * @param rotated       已经按[overlayRotation]旋转后的叠图数据
+         * @param rotatedWidth  旋转后叠图的宽
+         * @param rotatedHeight 旋转后叠图的高
+         * @param rotation      画面方向：0°、90°、180°、270°
+         * @param left          显示画面中叠图的left位置
+         * @param top           显示画面中叠图的top位置
+         * @param frameWidth    原始帧数据的宽度
+         * @param frameHeight   原始帧数据的高度
+         *
+         * @return 叠图完全超出画面或者剪裁失败时返回null
+         */
+        fun place(
+            rotated: ByteArray,
+            rotatedWidth: Int,
+            rotatedHeight: Int,
+            rotation: Int,
+            left: Int,
+            top: Int,
+            frameWidth: Int,
+            frameHeight: Int
+        ): Nv21OverlayPlacement? =
+            locate(rotatedWidth, rotatedHeight, rotation, left, top, frameWidth, frameHeight) { x, y, cropLeft, cropTop, width, height ->
+                val cropNV21 = NV21Util.cropNV21(
+                    rotated,
+                    rotatedWidth,
+                    rotatedHeight,
+                    width,
+                    height,
+                    cropLeft,
+                    cropTop
+                ) ?: return@locate null
+                Nv21OverlayPlacement(cropNV21, width, height, x, y)
+            }
+
+        /**
+         * 带alpha的叠图，参数见[place]
+         *
+         * @param rotated 已经按[overlayRotation]旋转后的叠图
+         *
+         * @return 剪裁后的叠图以及在原始帧数据中的left、top位置，叠图完全超出画面或者剪裁失败时返回null
+         */
+        fun placeAlpha(
+            rotated: AlphaNv21Overlay,
+            rotation: Int,
+            left: Int,
+            top: Int,
+            frameWidth: Int,
+            frameHeight: Int
+        ): AlphaPlacement? =
+            locate(rotated.width, rotated.height, rotation, left, top, frameWidth, frameHeight) { x, y, cropLeft, cropTop, width, height ->
+                rotated.crop(width, height, cropLeft, cropTop)?.let { AlphaPlacement(it, x, y) }
+            }
+
+        /**
+         * 计算旋转后的叠图在原始帧数据中的位置以及需要剪裁的区域，交给[crop]生成结果
+         */
+        private inline fun <T> locate(
+            rotatedWidth: Int,
+            rotatedHeight: Int,
+            rotation: Int,
+            left: Int,
+            top: Int,
+            frameWidth: Int,
+            frameHeight: Int,
+            crop: (startLeft: Int, startTop: Int, cropLeft: Int, cropTop: Int, width: Int, height: Int) -> T?
+        ): T? {
+            val swapSize = rotation == 90 || rotation == 270
+            //先判断是否合法
+            val (limitLeft, limitTop) = if (swapSize) top to left else left to top
+            if (limitLeft >= frameWidth || limitTop >= frameHeight) {
+                return null
+            }
+            //旋转后叠图左上角在原始帧数据中的位置，可能为负数
+            val x = when (rotation) {
+                0 -> left
+                90 -> top
+                180 -> frameWidth - left - rotatedWidth
+                270 -> frameWidth - top - rotatedWidth
+                else -> return null
+            }
+            val y = when (rotation) {
+                0 -> top
+                90 -> frameHeight - left - rotatedHeight
+                180 -> frameHeight - top - rotatedHeight
+                else -> left
+            }
+            //超出左边、上边的部分需要剪裁，剪裁位置取偶数保证UV对齐；超出右边、下边的部分叠图时会自动剪裁
+            val cropLeft = (max(-x, 0) + 1) and 1.inv()
+            val cropTop = (max(-y, 0) + 1) and 1.inv()
+            if (cropLeft == 0 && cropTop == 0) {
+                return crop(x, y, 0, 0, rotatedWidth, rotatedHeight)
+            }
+            //剪裁后的宽高会取偶数
+            val width = (rotatedWidth - cropLeft) and 1.inv()
+            val height = (rotatedHeight - cropTop) and 1.inv()
+            if (width <= 0 || height <= 0) {
+                //完全超出边界，不需要进行叠图
+                return null
+            }
+            return crop(max(x, 0), max(y, 0), cropLeft, cropTop, width, height)
+        }
+    }
+
+    /**
+     * [placeAlpha]的结果
+     */
+    class AlphaPlacement(
+        /**
+         * 剪裁后的叠图，不需要剪裁时就是传入的叠图
+         */
+        val overlay: AlphaNv21Overlay,
+        /**
+         * 在原始帧数据中叠图的left位置
+         */
+        val startLeft: Int,
+        /**
+         * 在原始帧数据中叠图的top位置
+         */
+        val startTop: Int
+    )
+}
@@ -1,12 +1,11 @@
 package com.shencoder.webrtcextension
 
-import android.util.Log
 import androidx.annotation.IntRange
 import com.shencoder.webrtcextension.util.NV21Util
+import com.shencoder.webrtcextension.util.Nv21OverlayMask
 import io.github.crow_misia.libyuv.Nv21Buffer
 import io.github.crow_misia.libyuv.RotateMode
-import kotlin.math.abs
-import kotlin.math.max
+import java.util.concurrent.atomic.AtomicLong
 import com.shencoder.webrtcextension.util.Nv21BufferUtil
 import org.webrtc.VideoFrame
 import org.webrtc.WatermarkVideoProcessor
@@ -54,248 +53,217 @@ class OverlayNV21VideoProcessor @JvmOverloads constructor(
 ) : BaseNV21VideoProcessor() {
 
     private companion object {
-        private const val TAG = "OverlayNV21Processor"
-    }
+        /**
+         * 所有实例共用的后台线程，旋转叠图、画面大小变化时重新计算[OverlaySnapshot]都在这里。
+         * [WorkerHandler]的缓存只持有弱引用，这里持有强引用，避免被回收后在采集线程上重新创建线程
+         */
+        private val snapshotWorker: WorkerHandler = WorkerHandler.get("OverlayNV21Snapshot")
 
-    private lateinit var realNV21ByteArray: ByteArray
+        private fun frameSizeKey(width: Int, height: Int): Long =
+            (width.toLong() shl 32) or height.toLong()
+    }
 
-    private val lock = Object()
+    /**
+     * 某个画面方向下叠图需要的数据，创建后不再修改
+     */
+    private class OverlayVariant(
+        /**
+         * 旋转、剪裁后的叠图数据
+         */
+        val nv21: ByteArray,
+        val overlayWidth: Int,
+        val overlayHeight: Int,
+        /**
+         * 在camera NV21数据中叠图的left位置
+         */
+        val startLeft: Int,
+        /**
+         * 在camera NV21数据中叠图的top位置
+         */
+        val startTop: Int,
+        /**
+         * [hasTransparent]为true时，[nv21]的不透明片段
+         */
+        val mask: Nv21OverlayMask?
+    )
 
-    private var videoFrameWidth = 0
-    private var videoFrameHeight = 0
+    /**
+     * 某个画面宽高下四个方向的叠图数据，创建后不再修改
+     */
+    private class OverlaySnapshot(
+        val frameWidth: Int,
+        val frameHeight: Int,
+        /**
+         * 下标为rotation / 90；为null时该方向下叠图完全超出画面，不需要叠图
+         */
+        private val variants: Array<OverlayVariant?>
+    ) {
+        fun variant(rotation: Int): OverlayVariant? = when (rotation) {
+            0, 90, 180, 270 -> variants[rotation / 90]
+            else -> null
+        }
+    }
 
     /**
-     * 当前VideoFrame方向
+     * 当前使用的叠图数据，整体替换；处理帧时只读一次，不加锁
      */
-    private var videoFrameRotation = 0
+    @Volatile
+    private var snapshot: OverlaySnapshot? = null
 
     /**
-     * 在camera NV21数据中叠图的left位置
+     * 最近一次请求计算的[frameSizeKey]，避免每帧重复提交
      */
-    private var startLeft = left
+    private val requestedKey = AtomicLong(-1L)
 
     /**
-     * 在camera NV21数据中叠图的top位置
+     * 叠图的原始nv21数据，只从[overlayNv21Buffer]复制一次
      */
-    private var startTop = top
+    private val overlayNV21ByteArray: ByteArray by lazy {
+        checkNV21ByteArray(
+            overlayNv21Buffer.asByteArray(),
+            overlayNv21Buffer.width,
+            overlayNv21Buffer.height
+        )
+    }
 
-    private var overlayWidth: Int = overlayNv21Buffer.width
+    /**
+     * 四个画面方向对应的旋转后的叠图数据，下标为rotation / 90，和画面大小无关，只计算一次
+     */
+    private val rotatedOverlays: Array<ByteArray> by lazy {
+        arrayOf(
+            overlayNV21ByteArray,
+            rotateOverlayNv21(Nv21OverlayPlacement.overlayRotation(90)),
+            rotateOverlayNv21(Nv21OverlayPlacement.overlayRotation(180)),
+            rotateOverlayNv21(Nv21OverlayPlacement.overlayRotation(270))
+        )
+    }
 
-    private var overlayHeight: Int = overlayNv21Buffer.height
+    init {
+        //创建时就在后台旋转好，第一帧到来时只剩剪裁
+        snapshotWorker.post { rotatedOverlays }
+    }
 
     override fun handleNV21(nv21: ByteArray, width: Int, height: Int, rotation: Int): Boolean {
-        synchronized(lock) {
-            if (videoFrameWidth != width || videoFrameHeight != height || videoFrameRotation != rotation) {
-                val adaptOverlayNv21 = adaptOverlayNv21(rotation, width, height)
-                if (adaptOverlayNv21.not()) {
-                    return false
-                }
+        val current = snapshot
+        if (current == null || current.frameWidth != width || current.frameHeight != height) {
+            //在后台重新计算，新的数据准备好之前继续使用旧的，叠图时会按画面大小剪裁，不会越界
+            requestSnapshot(width, height)
+            if (current == null) {
+                return false
             }
         }
-        //叠图
-        NV21Util.overlayNV21(
-            nv21,
-            width,
-            height,
-            startLeft,
-            startTop,
-            realNV21ByteArray,
-            overlayWidth,
-            overlayHeight,
-            hasTransparent
-        )
+        //方向变化时直接取预先计算好的数据
+        val variant = current.variant(rotation) ?: return false
+        //叠图，叠加区域很大（例如 4K 全屏叠图）时按行并行处理，否则和串行版本一样
+        val mask = variant.mask
+        if (mask != null) {
+            NV21Util.overlayNV21Parallel(
+                nv21,
+                width,
+                height,
+                variant.startLeft,
+                variant.startTop,
+                variant.nv21,
+                variant.overlayWidth,
+                variant.overlayHeight,
+                mask
+            )
+        } else {
+            NV21Util.overlayNV21Parallel(
+                nv21,
+                width,
+                height,
+                variant.startLeft,
+                variant.startTop,
+                variant.nv21,
+                variant.overlayWidth,
+                variant.overlayHeight,
+                hasTransparent
+            )
+        }
         return true
     }
 
     /**
-     * 根据旋转角度对叠图nv21数据进行转换
+     * 提交到后台线程计算新的[OverlaySnapshot]，同一画面大小只提交一次
+     */
+    private fun requestSnapshot(frameWidth: Int, frameHeight: Int) {
+        val key = frameSizeKey(frameWidth, frameHeight)
+        if (requestedKey.getAndSet(key) == key) {
+            return
+        }
+        snapshotWorker.post {
+            //排队期间画面大小又变了，只计算最新的
+            if (requestedKey.get() == key) {
+                snapshot = OverlaySnapshot(frameWidth, frameHeight, Array(4) {
+                    createVariant(it * 90, frameWidth, frameHeight)
+                })
+            }
+        }
+    }
+
+    /**
+     * 将叠图数据顺时针旋转，结果写入新的数组
+     *
+     * @param degrees 90°、180°、270°
+     */
+    private fun rotateOverlayNv21(degrees: Int): ByteArray {
+        val source = overlayNV21ByteArray
+        val width = overlayNv21Buffer.width
+        val height = overlayNv21Buffer.height
+        val rotated = ByteArray(source.size)
+        if (NV21Util.rotateNV21(source, width, height, degrees, rotated, 0)) {
+            return rotated
+        }
+        //宽高为奇数时NV21Util不支持，使用libyuv旋转
+        val rotateWidth = if (degrees == 180) width else height
+        val rotateHeight = if (degrees == 180) height else width
+        val rotateMode = when (degrees) {
+            90 -> RotateMode.ROTATE_90
+            180 -> RotateMode.ROTATE_180
+            else -> RotateMode.ROTATE_270
+        }
+        val rotateNv21Buffer = Nv21Buffer.allocate(rotateWidth, rotateHeight)
+        overlayNv21Buffer.rotate(rotateNv21Buffer, rotateMode)
+        val tempByteArray = rotateNv21Buffer.asByteArray()
+        rotateNv21Buffer.close()
+        return checkNV21ByteArray(tempByteArray, rotateWidth, rotateHeight)
+    }
+
+    /**
+     * 根据画面方向计算叠图的位置，超出画面左边、上边的部分剪裁掉
      *
      * @param rotation    角度：0°、90°、180°、270°
      * @param frameWidth  原始帧数据的宽度
-     * @param frameHeight 原始帧数据的宽度
+     * @param frameHeight 原始帧数据的高度
      *
-     * @return true：转换成功，false:转换失败
+     * @return 叠图完全超出画面或者剪裁失败时返回null
      */
-    private fun adaptOverlayNv21(rotation: Int, frameWidth: Int, frameHeight: Int): Boolean {
-        when (rotation) {
-            0 -> {//不用旋转，直接处理即可
-                //先判断是否合法
-                if (left >= frameWidth) {
-                    return false
-                }
-                if (top >= frameHeight) {
-                    return false
-                }
-                overlayWidth = overlayNv21Buffer.width
-                overlayHeight = overlayNv21Buffer.height
-
-                val tempByteArray = overlayNv21Buffer.asByteArray()
-                realNV21ByteArray =
-                    checkNV21ByteArray(tempByteArray, overlayWidth, overlayHeight)
-
-                startLeft = left
-                startTop = top
-            }
-            90 -> {//需要将overlayNV21Buffer旋转270°，然后判断可显示的大小是否需要剪裁，再计算在camera nv21数据中开始叠图的位置
-                //判断位置是否合法
-                if (top >= frameWidth) {
-                    return false
-                }
-                if (left >= frameHeight) {
-                    return false
-                }
-                //宽高交换
-                overlayWidth = overlayNv21Buffer.height
-                overlayHeight = overlayNv21Buffer.width
-                //将overlayNV21Buffer进行旋转270°
-                val rotateNv21Buffer = Nv21Buffer.allocate(overlayWidth, overlayHeight)
-                overlayNv21Buffer.rotate(rotateNv21Buffer, RotateMode.ROTATE_270)
-                val tempByteArray = rotateNv21Buffer.asByteArray()
-                realNV21ByteArray =
-                    checkNV21ByteArray(tempByteArray, overlayWidth, overlayHeight)
-                rotateNv21Buffer.close()
-
-                startLeft = top
-
-                val tempTop = frameHeight - left - overlayHeight
-                if (tempTop < 0) {
-                    //超出边界，需要进行剪裁
-                    //先计算需要剪裁的高
-                    val height = overlayHeight - abs(tempTop)
-                    if (height <= 0) {
-                        //完全超出边界，不需要进行叠图
-                        return false
-                    }
-                    //二次剪裁
-                    val cropNV21 = NV21Util.cropNV21(
-                        realNV21ByteArray,
-                        overlayWidth,
-                        overlayHeight,
-                        overlayWidth,
-                        height,
-                        0,
-                        abs(tempTop)
-                    ) ?: return false
-                    realNV21ByteArray = cropNV21
-                    overlayHeight = height
-                }
-                startTop = max(tempTop, 0)
-            }
-            180 -> {//需要将overlayNV21Buffer旋转180°，然后判断可显示的大小是否需要剪裁，再计算在camera nv21数据中开始叠图的位置
-                //先判断是否合法
-                if (left >= frameWidth) {
-                    return false
-                }
-                if (top >= frameHeight) {
-                    return false
-                }
-
-                overlayWidth = overlayNv21Buffer.width
-                overlayHeight = overlayNv21Buffer.height
-                //将overlayNV21Buffer数据进行旋转180°
-                val rotateNv21Buffer = Nv21Buffer.allocate(overlayWidth, overlayHeight)
-                overlayNv21Buffer.rotate(rotateNv21Buffer, RotateMode.ROTATE_180)
-                val tempByteArray = rotateNv21Buffer.asByteArray()
-                realNV21ByteArray =
-                    checkNV21ByteArray(tempByteArray, overlayWidth, overlayHeight)
-                rotateNv21Buffer.close()
-
-                val tempLeft = frameWidth - left - overlayWidth
-                val tempTop = frameHeight - top - overlayHeight
-                if (tempLeft < 0 || tempTop < 0) {
-                    //超出边界，需要进行剪裁
-                    val width: Int
-                    if (tempLeft < 0) {
-                        //先计算需要剪裁的宽
-                        width = overlayHeight - abs(tempLeft)
-                        if (width <= 0) {
-                            //完全超出边界，不需要进行叠图
-                            return false
-                        }
-                    } else {
-                        width = overlayWidth
-                    }
-                    val height: Int
-                    if (tempTop < 0) {
-                        //先计算需要剪裁的高
-                        height = overlayHeight - abs(tempTop)
-                        if (height <= 0) {
-                            //完全超出边界，不需要进行叠图
-                            return false
-                        }
-                    } else {
-                        height = overlayHeight
-                    }
-                    //二次剪裁
-                    val cropNV21 = NV21Util.cropNV21(
-                        realNV21ByteArray,
-                        overlayWidth,
-                        overlayHeight,
-                        width,
-                        height,
-                        0,
-                        if (tempTop > 0) 0 else abs(tempTop)
-                    ) ?: return false
-                    realNV21ByteArray = cropNV21
-                    overlayWidth = width
-                    overlayHeight = height
-                }
-                startLeft = max(tempLeft, 0)
-                startTop = max(tempTop, 0)
-            }
-            270 -> {//需要将overlayNV21Buffer旋转90°，然后判断可显示的大小是否需要剪裁，再计算在camera nv21数据中开始叠图的位置
-                //判断位置是否合法
-                if (top >= frameWidth) {
-                    return false
-                }
-                if (left >= frameHeight) {
-                    return false
-                }
-                //宽高交换
-                overlayWidth = overlayNv21Buffer.height
-                overlayHeight = overlayNv21Buffer.width
-                //将overlayNV21Buffer数据进行旋转270°
-                val rotateNv21Buffer = Nv21Buffer.allocate(overlayWidth, overlayHeight)
-                overlayNv21Buffer.rotate(rotateNv21Buffer, RotateMode.ROTATE_90)
-                val tempByteArray = rotateNv21Buffer.asByteArray()
-                realNV21ByteArray =
-                    checkNV21ByteArray(tempByteArray, overlayWidth, overlayHeight)
-
-                rotateNv21Buffer.close()
-
-                val tempLeft = frameWidth - top - overlayWidth
-                if (tempLeft < 0) {
-                    //超出边界，需要进行剪裁
-                    //先计算需要剪裁的宽
-                    val width = overlayHeight - abs(tempLeft)
-                    if (width <= 0) {
-                        //完全超出边界，不需要进行叠图
-                        return false
-                    }
-                    //二次剪裁
-                    val cropNV21 = NV21Util.cropNV21(
-                        realNV21ByteArray,
-                        overlayWidth,
-                        overlayHeight,
-                        width,
-                        overlayHeight,
-                        abs(tempLeft),
-                        0
-                    ) ?: return false
-                    realNV21ByteArray = cropNV21
-                    overlayWidth = width
-                }
-                startLeft = max(tempLeft, 0)
-                startTop = left
-            }
-            else -> {
-                Log.e(TAG, "adaptOverlayNv21: unknown rotation: $rotation")
-                return false
-            }
+    private fun createVariant(rotation: Int, frameWidth: Int, frameHeight: Int): OverlayVariant? {
+        val swapSize = rotation == 90 || rotation == 270
+        val placement = Nv21OverlayPlacement.place(
+            rotatedOverlays[rotation / 90],
+            if (swapSize) overlayNv21Buffer.height else overlayNv21Buffer.width,
+            if (swapSize) overlayNv21Buffer.width else overlayNv21Buffer.height,
+            rotation,
+            left,
+            top,
+            frameWidth,
+            frameHeight
+        ) ?: return null
+        //透明数据的位置只和叠图数据有关，这里生成一次，之后每帧只复制不透明片段
+        val mask = if (hasTransparent) {
+            Nv21OverlayMask.create(placement.nv21, placement.width, placement.height)
+        } else {
+            null
         }
-        videoFrameWidth = frameWidth
-        videoFrameHeight = frameHeight
-        videoFrameRotation = rotation
-        return true
+        return OverlayVariant(
+            placement.nv21,
+            placement.width,
+            placement.height,
+            placement.startLeft,
+            placement.startTop,
+            mask
+        )
     }
-}
\ No newline at end of file
+}
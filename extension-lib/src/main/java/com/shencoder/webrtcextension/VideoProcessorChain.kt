@@ -0,0 +1,417 @@
+package com.shencoder.webrtcextension
+
+import com.shencoder.webrtcextension.util.NV21Util
+import org.webrtc.I420BufferPool
+import org.webrtc.NV21Buffer
+import org.webrtc.VideoFrame
+import org.webrtc.VideoProcessor
+import org.webrtc.VideoSink
+import org.webrtc.YuvHelper
+import java.nio.ByteBuffer
+
+/**
+ * 把多个处理阶段串成一个[VideoProcessor]，用于[org.webrtc.VideoSource.setVideoProcessor]只能设置一个处理器的场景。
+ *
+ * 每个阶段声明自己处理的数据格式[Domain]，链只在格式变化的地方转换一次：
+ * 相邻的同格式阶段共用一个工作buffer，依次在上面修改，中间不再转换；
+ * 关闭的阶段直接跳过，不会打断前后同格式的阶段，整段都关闭时也不会转换。
+ *
+ * [Domain.TEXTURE]阶段包装一个完整的[VideoProcessor]（例如[org.webrtc.WatermarkVideoProcessor]），
+ * 它可能在其他线程上输出，后续阶段在它输出的线程上继续处理，所以同一个处理器不要再添加到其他地方。
+ *
+ * ```
+ * val chain = VideoProcessorChain()
+ * chain.addNv21Stage(MyNV21VideoProcessor())
+ * val watermarkStage = chain.addProcessorStage(watermarkVideoProcessor)
+ * videoSource.setVideoProcessor(chain)
+ * //关闭水印
+ * watermarkStage.enabled = false
+ * ```
+ */
+class VideoProcessorChain : VideoProcessor {
+
+    private companion object {
+        /**
+         * 每个阶段最多复用的工作buffer数量，下游（编码器、渲染）可能同时持有几帧
+         */
+        private const val MAX_POOLED_BUFFERS = 4
+    }
+
+    /**
+     * 阶段处理的数据格式
+     */
+    enum class Domain {
+        /**
+         * 直接处理[VideoFrame]，通常是纹理
+         */
+        TEXTURE,
+
+        /**
+         * 可写的I420平面
+         */
+        I420,
+
+        /**
+         * nv21数组
+         */
+        NV21
+    }
+
+    /**
+     * 处理I420数据，参数和返回值同[BaseI420VideoProcessor.handleI420]
+     */
+    fun interface I420Handler {
+        fun handleI420(
+            dataY: ByteBuffer,
+            strideY: Int,
+            dataU: ByteBuffer,
+            strideU: Int,
+            dataV: ByteBuffer,
+            strideV: Int,
+            width: Int,
+            height: Int,
+            rotation: Int
+        ): Boolean
+    }
+
+    /**
+     * 处理nv21数据，参数和返回值同[BaseNV21VideoProcessor.handleNV21]
+     */
+    fun interface Nv21Handler {
+        fun handleNV21(nv21: ByteArray, width: Int, height: Int, rotation: Int, timestampNs: Long): Boolean
+    }
+
+    /**
+     * 链中的一个阶段
+     */
+    sealed class Stage(val domain: Domain) {
+        /**
+         * 是否启用，关闭后直接跳过该阶段；可以在任意线程修改，下一帧生效
+         */
+        @Volatile
+        var enabled = true
+    }
+
+    class ProcessorStage internal constructor(val processor: VideoProcessor) : Stage(Domain.TEXTURE)
+
+    class I420Stage internal constructor(val handler: I420Handler) : Stage(Domain.I420) {
+        /**
+         * 该阶段作为同格式阶段中的第一个时使用的工作buffer
+         */
+        internal val bufferPool = I420BufferPool(MAX_POOLED_BUFFERS)
+    }
+
+    class Nv21Stage internal constructor(val handler: Nv21Handler) : Stage(Domain.NV21) {
+        /**
+         * 该阶段作为同格式阶段中的第一个时使用的工作数组，分辨率变化时替换
+         */
+        @Volatile
+        internal var arrayPool: Nv21ArrayPool? = null
+    }
+
+    private var mSink: VideoSink? = null
+
+    private val stagesLock = Any()
+
+    /**
+     * 修改时整体替换，处理帧时只读一次
+     */
+    @Volatile
+    private var stages: Array<Stage> = emptyArray()
+
+    /**
+     * 添加一个完整的[VideoProcessor]，它的sink由链接管
+     */
+    fun addProcessorStage(processor: VideoProcessor): ProcessorStage {
+        val stage = ProcessorStage(processor)
+        //处理器的输出回到链中，从它的下一个阶段继续
+        processor.setSink { frame -> continueAfter(stage, frame) }
+        addStage(stage)
+        return stage
+    }
+
+    fun addI420Stage(handler: I420Handler): I420Stage {
+        val stage = I420Stage(handler)
+        addStage(stage)
+        return stage
+    }
+
+    /**
+     * 只使用[processor]的[BaseI420VideoProcessor.handleI420]，由链负责转换和发送
+     */
+    fun addI420Stage(processor: BaseI420VideoProcessor): I420Stage =
+        addI420Stage(I420Handler(processor::handleI420))
+
+    fun addNv21Stage(handler: Nv21Handler): Nv21Stage {
+        val stage = Nv21Stage(handler)
+        addStage(stage)
+        return stage
+    }
+
+    /**
+     * 只使用[processor]的[BaseNV21VideoProcessor.handleNV21]，由链负责转换和发送，
+     * [processor]自身的异步处理、时间预算等设置不生效
+     */
+    fun addNv21Stage(processor: BaseNV21VideoProcessor): Nv21Stage =
+        addNv21Stage(Nv21Handler { nv21, width, height, rotation, timestampNs ->
+            processor.handleNV21(nv21, width, height, rotation, timestampNs)
+        })
+
+    fun removeStage(stage: Stage): Boolean {
+        synchronized(stagesLock) {
+            val current = stages
+            if (current.contains(stage).not()) {
+                return false
+            }
+            stages = current.filter { it !== stage }.toTypedArray()
+        }
+        releaseStage(stage)
+        return true
+    }
+
+    fun getStages(): List<Stage> = stages.toList()
+
+    /**
+     * 移除所有阶段并释放工作buffer
+     */
+    fun release() {
+        val removed = synchronized(stagesLock) {
+            val current = stages
+            stages = emptyArray()
+            current
+        }
+        removed.forEach { releaseStage(it) }
+    }
+
+    override fun setSink(sink: VideoSink?) {
+        mSink = sink
+    }
+
+    override fun onCapturerStarted(success: Boolean) {
+        stages.forEach {
+            if (it is ProcessorStage) {
+                it.processor.onCapturerStarted(success)
+            }
+        }
+    }
+
+    override fun onCapturerStopped() {
+        stages.forEach {
+            if (it is ProcessorStage) {
+                it.processor.onCapturerStopped()
+            }
+        }
+    }
+
+    override fun onFrameCaptured(frame: VideoFrame) {
+        runFrom(stages, 0, frame)
+    }
+
+    private fun addStage(stage: Stage) {
+        synchronized(stagesLock) {
+            stages = stages + stage
+        }
+    }
+
+    private fun releaseStage(stage: Stage) {
+        when (stage) {
+            is ProcessorStage -> stage.processor.setSink(null)
+            is I420Stage -> stage.bufferPool.release()
+            is Nv21Stage -> stage.arrayPool?.clear()
+        }
+    }
+
+    private fun continueAfter(stage: ProcessorStage, frame: VideoFrame) {
+        val current = stages
+        val index = current.indexOf(stage)
+        if (index < 0) {
+            //阶段已经被移除
+            return
+        }
+        runFrom(current, index + 1, frame)
+    }
+
+    /**
+     * 从[startIndex]开始依次处理，[frame]由调用方持有
+     */
+    private fun runFrom(stages: Array<Stage>, startIndex: Int, frame: VideoFrame) {
+        var current = frame
+        //current是否由链创建，交给下一个阶段后需要release
+        var owned = false
+        var index = startIndex
+        while (index < stages.size) {
+            val stage = stages[index]
+            if (stage.enabled.not()) {
+                index++
+                continue
+            }
+            if (stage is ProcessorStage) {
+                //处理器需要异步处理时自己会retain，输出通过sink回到continueAfter
+                stage.processor.onFrameCaptured(current)
+                if (owned) {
+                    current.release()
+                }
+                return
+            }
+            val end = segmentEnd(stages, index, stage.domain)
+            val processed = if (stage is I420Stage) {
+                processI420Segment(stages, index, end, current)
+            } else {
+                processNv21Segment(stages, index, end, current)
+            }
+            if (processed != null) {
+                if (owned) {
+                    current.release()
+                }
+                current = processed
+                owned = true
+            }
+            index = end
+        }
+        mSink?.onFrame(current)
+        if (owned) {
+            current.release()
+        }
+    }
+
+    /**
+     * 从[start]开始和它同格式的连续阶段，中间关闭的阶段不打断
+     *
+     * @return 第一个不属于这一段的下标
+     */
+    private fun segmentEnd(stages: Array<Stage>, start: Int, domain: Domain): Int {
+        var end = start + 1
+        while (end < stages.size) {
+            val stage = stages[end]
+            if (stage.enabled && stage.domain != domain) {
+                break
+            }
+            end++
+        }
+        return end
+    }
+
+    /**
+     * @return 所有阶段都没有修改数据时返回null，继续使用原来的帧
+     */
+    private fun processI420Segment(stages: Array<Stage>, start: Int, end: Int, frame: VideoFrame): VideoFrame? {
+        val buffer = frame.buffer
+        val toI420 = buffer.toI420()
+        val width = toI420.width
+        val height = toI420.height
+
+        val writable: VideoFrame.I420Buffer
+        if (toI420 !== buffer) {
+            //新转换出来的buffer只有这里持有，可以直接修改
+            writable = toI420
+        } else {
+            writable = (stages[start] as I420Stage).bufferPool.acquire(width, height)
+            YuvHelper.I420Copy(
+                toI420.dataY,
+                toI420.strideY,
+                toI420.dataU,
+                toI420.strideU,
+                toI420.dataV,
+                toI420.strideV,
+                writable.dataY,
+                writable.strideY,
+                writable.dataU,
+                writable.strideU,
+                writable.dataV,
+                writable.strideV,
+                width,
+                height
+            )
+            toI420.release()
+        }
+
+        var modified = false
+        for (index in start until end) {
+            val stage = stages[index]
+            if (stage is I420Stage && stage.enabled) {
+                val success = stage.handler.handleI420(
+                    writable.dataY,
+                    writable.strideY,
+                    writable.dataU,
+                    writable.strideU,
+                    writable.dataV,
+                    writable.strideV,
+                    width,
+                    height,
+                    frame.rotation
+                )
+                modified = modified or success
+            }
+        }
+        if (modified.not()) {
+            writable.release()
+            return null
+        }
+        return VideoFrame(writable, frame.rotation, frame.timestampNs)
+    }
+
+    /**
+     * @return 所有阶段都没有修改数据时返回null，继续使用原来的帧
+     */
+    private fun processNv21Segment(stages: Array<Stage>, start: Int, end: Int, frame: VideoFrame): VideoFrame? {
+        val buffer = frame.buffer
+        val width = buffer.width
+        val height = buffer.height
+        val toI420 = buffer.toI420()
+
+        val nv21Array = obtainNv21Array(stages[start] as Nv21Stage, width, height)
+        val converted = NV21Util.copyI420ToNV21(
+            toI420.dataY,
+            toI420.strideY,
+            toI420.dataU,
+            toI420.strideU,
+            toI420.dataV,
+            toI420.strideV,
+            nv21Array.dataY,
+            nv21Array.strideY,
+            nv21Array.dataVU,
+            nv21Array.strideVU,
+            width,
+            height
+        )
+        toI420.release()
+        if (converted.not()) {
+            nv21Array.release()
+            return null
+        }
+
+        var modified = false
+        for (index in start until end) {
+            val stage = stages[index]
+            if (stage is Nv21Stage && stage.enabled) {
+                val success = stage.handler.handleNV21(nv21Array.data, width, height, frame.rotation, frame.timestampNs)
+                modified = modified or success
+            }
+        }
+        if (modified.not()) {
+            nv21Array.release()
+            return null
+        }
+        //下游都释放后数组回到池中
+        return VideoFrame(
+            NV21Buffer(nv21Array.data, width, height, nv21Array.releaseCallback),
+            frame.rotation,
+            frame.timestampNs
+        )
+    }
+
+    private fun obtainNv21Array(stage: Nv21Stage, width: Int, height: Int): Nv21ArrayPool.Nv21Array {
+        val pool = stage.arrayPool?.takeIf { it.width == width && it.height == height }
+            ?: synchronized(stage) {
+                val current = stage.arrayPool
+                if (current != null && current.width == width && current.height == height) {
+                    current
+                } else {
+                    //分辨率变化，旧池中还没归还的数组归还到旧池后随旧池一起回收
+                    current?.clear()
+                    Nv21ArrayPool(width, height, MAX_POOLED_BUFFERS).also { stage.arrayPool = it }
+                }
+            }
+        return pool.obtain()
+    }
+}
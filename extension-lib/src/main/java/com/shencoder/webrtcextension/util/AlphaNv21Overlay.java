@@ -0,0 +1,260 @@
+package com.shencoder.webrtcextension.util;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * 带 8 位 alpha 的nv21叠图数据，用于真正的半透明混合，替代 {@link NV21Util#TRANSPARENT_Y} /
+ * {@link NV21Util#TRANSPARENT_UV} 这种按值判断的透明方式（边缘生硬，而且原图中真正的暗色像素也会被当成透明）。
+ * <p>
+ * 每个亮度像素一个 alpha；每个 2x2 色度块一个 alpha，取 4 个像素 alpha 的平均值，V、U 两个字节共用。
+ * 色度按 alpha 加权平均，透明像素的颜色不会渗到边缘。
+ * <p>
+ * 一般通过 {@link Nv21BufferUtil#argb8888BitmapToAlphaNv21Overlay} 从 ARGB Bitmap 创建一次，
+ * 之后每帧调用 {@link NV21Util#overlayNV21(byte[], int, int, int, int, AlphaNv21Overlay)} 混合。
+ * 创建后不可修改，可以在多个线程间共享。
+ */
+public final class AlphaNv21Overlay {
+    private final int width;
+    private final int height;
+    /**
+     * 颜色数据，标准nv21排列
+     */
+    private final byte[] nv21;
+    /**
+     * 与 nv21 一一对应的 alpha：前 width * height 个是 Y 的 alpha，后面是 VU 的 alpha（每对 V、U 的值相同）
+     */
+    private final byte[] alpha;
+    /**
+     * 每 8 个 alpha 打包成一个 long，每行 {@link #wordsPerRow} 个，不足 8 个的行尾不打包。
+     * 混合时一次比较就能判断 8 个像素是否全透明或全不透明。
+     */
+    private final long[] alphaWords;
+    private final int wordsPerRow;
+
+    private AlphaNv21Overlay(int width, int height, byte[] nv21, byte[] alpha) {
+        this.width = width;
+        this.height = height;
+        this.nv21 = nv21;
+        this.alpha = alpha;
+        this.wordsPerRow = width / 8;
+        int rows = height + height / 2;
+        this.alphaWords = new long[rows * wordsPerRow];
+        for (int row = 0; row < rows; row++) {
+            for (int word = 0; word < wordsPerRow; word++) {
+                int index = row * width + word * 8;
+                long packed = 0;
+                for (int i = 7; i >= 0; i--) {
+                    packed = (packed << 8) | (alpha[index + i] & 0xFFL);
+                }
+                alphaWords[row * wordsPerRow + word] = packed;
+            }
+        }
+    }
+
+    /**
+     * 从 ARGB 像素创建，像素为非预乘的 ARGB（{@link android.graphics.Bitmap#getPixels} 的格式）。
+     * 宽高为奇数时会去掉最后一列/一行。
+     *
+     * @param argb   像素数据，行优先，每行 width 个
+     * @param width  宽
+     * @param height 高
+     */
+    @NonNull
+    public static AlphaNv21Overlay fromArgb(@NonNull int[] argb, int width, int height) {
+        if (width < 2 || height < 2 || argb.length < width * height) {
+            throw new IllegalArgumentException("Unexpected size: " + width + "x" + height);
+        }
+        int srcStride = width;
+        //确保为偶数
+        width &= ~1;
+        height &= ~1;
+        int ySize = width * height;
+        byte[] nv21 = new byte[ySize * 3 / 2];
+        byte[] alpha = new byte[ySize * 3 / 2];
+        for (int row = 0; row < height; row++) {
+            for (int col = 0; col < width; col++) {
+                int color = argb[row * srcStride + col];
+                int r = (color >> 16) & 0xFF;
+                int g = (color >> 8) & 0xFF;
+                int b = color & 0xFF;
+                nv21[row * width + col] = (byte) ((66 * r + 129 * g + 25 * b + 0x1080) >> 8);
+                alpha[row * width + col] = (byte) (color >>> 24);
+            }
+        }
+        for (int row = 0; row < height / 2; row++) {
+            for (int col = 0; col < width / 2; col++) {
+                int sumR = 0;
+                int sumG = 0;
+                int sumB = 0;
+                int sumAlpha = 0;
+                for (int dy = 0; dy < 2; dy++) {
+                    for (int dx = 0; dx < 2; dx++) {
+                        int color = argb[(row * 2 + dy) * srcStride + col * 2 + dx];
+                        int a = color >>> 24;
+                        sumR += ((color >> 16) & 0xFF) * a;
+                        sumG += ((color >> 8) & 0xFF) * a;
+                        sumB += (color & 0xFF) * a;
+                        sumAlpha += a;
+                    }
+                }
+                int index = ySize + row * width + col * 2;
+                if (sumAlpha == 0) {
+                    nv21[index] = NV21Util.TRANSPARENT_UV;
+                    nv21[index + 1] = NV21Util.TRANSPARENT_UV;
+                    continue;
+                }
+                int r = sumR / sumAlpha;
+                int g = sumG / sumAlpha;
+                int b = sumB / sumAlpha;
+                //nv21 中 V 在前、U 在后
+                nv21[index] = (byte) ((112 * r - 94 * g - 18 * b + 0x8080) >> 8);
+                nv21[index + 1] = (byte) ((-38 * r - 74 * g + 112 * b + 0x8080) >> 8);
+                byte chromaAlpha = (byte) ((sumAlpha + 2) / 4);
+                alpha[index] = chromaAlpha;
+                alpha[index + 1] = chromaAlpha;
+            }
+        }
+        return new AlphaNv21Overlay(width, height, nv21, alpha);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * 估算的内存占用：颜色、alpha 以及打包后的 alpha
+     */
+    public long getByteCount() {
+        return (long) nv21.length + alpha.length + (long) alphaWords.length * Long.BYTES;
+    }
+
+    /**
+     * 顺时针旋转，颜色和 alpha 一起旋转，旋转 90°、270° 时宽高互换
+     *
+     * @param rotation 顺时针旋转的角度：0°、90°、180°、270°
+     * @return 旋转失败时返回null，rotation 为 0 时返回自身
+     */
+    @Nullable
+    public AlphaNv21Overlay rotate(int rotation) {
+        if (rotation == 0) {
+            return this;
+        }
+        byte[] rotatedNv21 = new byte[nv21.length];
+        byte[] rotatedAlpha = new byte[alpha.length];
+        //alpha 和 nv21 排列一致，VU 的 alpha 按对旋转后仍然相同
+        if (!NV21Util.rotateNV21(nv21, width, height, rotation, rotatedNv21, 0)
+                || !NV21Util.rotateNV21(alpha, width, height, rotation, rotatedAlpha, 0)) {
+            return null;
+        }
+        boolean swapSize = rotation == 90 || rotation == 270;
+        return new AlphaNv21Overlay(swapSize ? height : width, swapSize ? width : height, rotatedNv21, rotatedAlpha);
+    }
+
+    /**
+     * 剪裁，颜色和 alpha 一起剪裁
+     *
+     * @param clipWidth  剪裁的宽度，偶数
+     * @param clipHeight 剪裁的高度，偶数
+     * @param left       剪裁的开始的左边位置，偶数
+     * @param top        剪裁的开始的上边位置，偶数
+     * @return 剪裁失败时返回null，不需要剪裁时返回自身
+     */
+    @Nullable
+    public AlphaNv21Overlay crop(int clipWidth, int clipHeight, int left, int top) {
+        if (clipWidth == width && clipHeight == height && left == 0 && top == 0) {
+            return this;
+        }
+        if (clipWidth < 2 || clipHeight < 2 || ((clipWidth | clipHeight | left | top) & 1) != 0) {
+            return null;
+        }
+        byte[] croppedNv21 = NV21Util.cropNV21(nv21, width, height, clipWidth, clipHeight, left, top);
+        byte[] croppedAlpha = NV21Util.cropNV21(alpha, width, height, clipWidth, clipHeight, left, top);
+        if (croppedNv21 == null || croppedAlpha == null) {
+            return null;
+        }
+        return new AlphaNv21Overlay(clipWidth, clipHeight, croppedNv21, croppedAlpha);
+    }
+
+    /**
+     * 把左边 copyWidth 宽、[rowStart, rowEnd) 行范围内的像素混合到 dst。
+     *
+     * @param dst        目标nv21数据
+     * @param dstYStart  目标中叠图左上角 Y 数据的下标
+     * @param dstVUStart 目标中叠图左上角 VU 数据的下标
+     * @param dstStride  目标每行的字节数
+     * @param copyWidth  混合的宽，偶数
+     * @param rowStart   起始行（Y 平面的行），偶数
+     * @param rowEnd     结束行（不包含），偶数
+     */
+    void blendInto(byte[] dst, int dstYStart, int dstVUStart, int dstStride, int copyWidth, int rowStart, int rowEnd) {
+        blendPlane(0, 0, copyWidth, rowStart, rowEnd, dst, dstYStart, dstStride);
+        blendPlane(width * height, height, copyWidth, rowStart / 2, rowEnd / 2, dst, dstVUStart, dstStride);
+    }
+
+    /**
+     * @param srcStart 平面在 nv21 / alpha 中的起始下标
+     * @param wordRow  平面第一行在 alphaWords 中的行号
+     */
+    private void blendPlane(int srcStart, int wordRow, int copyWidth, int rowStart, int rowEnd, byte[] dst,
+                            int dstStart, int dstStride) {
+        byte[] src = nv21;
+        for (int row = rowStart; row < rowEnd; row++) {
+            int srcRow = srcStart + row * width;
+            int dstRow = dstStart + row * dstStride;
+            int wordIndex = (wordRow + row) * wordsPerRow;
+            int opaqueStart = -1;
+            int col = 0;
+            //每次判断 8 个像素：全不透明的连续片段合并成一次 arraycopy，全透明的直接跳过
+            for (; col + 8 <= copyWidth; col += 8, wordIndex++) {
+                long word = alphaWords[wordIndex];
+                if (word == -1L) {
+                    if (opaqueStart < 0) {
+                        opaqueStart = col;
+                    }
+                    continue;
+                }
+                if (opaqueStart >= 0) {
+                    System.arraycopy(src, srcRow + opaqueStart, dst, dstRow + opaqueStart, col - opaqueStart);
+                    opaqueStart = -1;
+                }
+                if (word != 0L) {
+                    blend8(src, srcRow + col, word, dst, dstRow + col);
+                }
+            }
+            if (opaqueStart >= 0) {
+                System.arraycopy(src, srcRow + opaqueStart, dst, dstRow + opaqueStart, col - opaqueStart);
+            }
+            //行尾不足 8 个
+            for (; col < copyWidth; col++) {
+                int dstIndex = dstRow + col;
+                dst[dstIndex] = blend(src[srcRow + col], dst[dstIndex], alpha[srcRow + col] & 0xFF);
+            }
+        }
+    }
+
+    /**
+     * 混合 8 个半透明像素，alpha 直接从打包的 long 中取，不再读数组。
+     */
+    private static void blend8(byte[] src, int srcIndex, long word, byte[] dst, int dstIndex) {
+        for (int i = 0; i < 8; i++, word >>>= 8) {
+            int a = (int) (word & 0xFF);
+            if (a != 0) {
+                dst[dstIndex + i] = blend(src[srcIndex + i], dst[dstIndex + i], a);
+            }
+        }
+    }
+
+    /**
+     * 定点混合：把 0~255 的 alpha 映射到 0~256，完全不透明时结果正好等于 src，之后用移位代替除法。
+     */
+    private static byte blend(byte src, byte dst, int alpha) {
+        int a = alpha + (alpha >> 7);
+        int d = dst & 0xFF;
+        return (byte) (d + ((((src & 0xFF) - d) * a) >> 8));
+    }
+}
@@ -0,0 +1,126 @@
+package com.shencoder.webrtcextension.util;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 把按行处理的nv21操作拆成若干条带（stripe），在专用的线程池里并行执行。
+ * <p>
+ * 不使用 {@code ForkJoinPool.commonPool()}，避免和应用里其他并行任务互相抢占；
+ * 线程池在第一次用到时才创建，线程为守护线程。调用线程自己也处理一个条带，处理完后等待其他条带结束。
+ */
+final class NV21StripeExecutor {
+    /**
+     * 单个条带至少的行数，行数太少时分发的开销比并行的收益大
+     */
+    private static final int MIN_STRIPE_ROWS = 64;
+    /**
+     * 线程池的线程数，留一个核给调用线程；单核设备上为 0，始终串行执行
+     */
+    private static final int WORKER_COUNT = Math.min(3, Runtime.getRuntime().availableProcessors() - 1);
+
+    /**
+     * 处理 [rowStart, rowEnd) 范围内的行，rowStart 和 rowEnd 都是偶数
+     */
+    interface RowTask {
+        void run(int rowStart, int rowEnd);
+    }
+
+    private static final class Holder {
+        private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(WORKER_COUNT, new ThreadFactory() {
+            private final AtomicInteger index = new AtomicInteger();
+
+            @Override
+            public Thread newThread(@NonNull Runnable r) {
+                Thread thread = new Thread(r, "NV21Stripe-" + index.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private NV21StripeExecutor() {
+    }
+
+    /**
+     * 把 rows 行拆成条带并行处理，所有条带完成后才返回，出现异常时也会等所有条带结束后再抛出。
+     * 行数不足以拆分时直接在调用线程上处理。
+     *
+     * @param rows 总行数，偶数
+     * @param task 处理单个条带
+     */
+    static void run(int rows, @NonNull RowTask task) {
+        int stripeCount = Math.min(WORKER_COUNT + 1, rows / MIN_STRIPE_ROWS);
+        if (stripeCount <= 1) {
+            task.run(0, rows);
+            return;
+        }
+        //条带边界保持偶数，保证 Y 的两行和对应的一行 VU 在同一个条带里
+        int stripeRows = ((rows + stripeCount - 1) / stripeCount + 1) & ~1;
+        CountDownLatch latch = new CountDownLatch(stripeCount - 1);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        int submitted = 0;
+        for (int start = stripeRows; start < rows; start += stripeRows) {
+            final int rowStart = start;
+            final int rowEnd = Math.min(start + stripeRows, rows);
+            Holder.EXECUTOR.execute(() -> {
+                try {
+                    task.run(rowStart, rowEnd);
+                } catch (Throwable t) {
+                    error.compareAndSet(null, t);
+                } finally {
+                    latch.countDown();
+                }
+            });
+            submitted++;
+        }
+        //取整后条带可能比预计的少一个
+        for (; submitted < stripeCount - 1; submitted++) {
+            latch.countDown();
+        }
+        Throwable callerError = null;
+        try {
+            task.run(0, Math.min(stripeRows, rows));
+        } catch (Throwable t) {
+            //不能直接抛出：其他条带还在写目标数组，调用方拿到异常后可能把数组放回池里给下一帧用
+            callerError = t;
+        }
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                //其他条带还在写目标数组，必须等它们结束
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        //优先抛出调用线程自己的异常，工作线程的异常附加在上面
+        Throwable t = error.get();
+        if (callerError != null) {
+            if (t != null) {
+                callerError.addSuppressed(t);
+            }
+            t = callerError;
+        }
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        if (t != null) {
+            throw new RuntimeException(t);
+        }
+    }
+}
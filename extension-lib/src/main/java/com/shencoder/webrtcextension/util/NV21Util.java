@@ -3,6 +3,8 @@ package com.shencoder.webrtcextension.util;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import java.nio.ByteBuffer;
+
 /**
  * @author ShenBen
  * @date 2021/11/21 14:01
@@ -17,6 +19,20 @@ public class NV21Util {
      * 透明UV值
      */
     public static final byte TRANSPARENT_UV = (byte) 0x80;
+    /**
+     * 并行版本（xxxParallel）的阈值：处理的像素数小于该值时直接在调用线程上串行执行，
+     * 分发到线程池的开销比并行节省的时间多
+     */
+    public static final int PARALLEL_THRESHOLD_PIXELS = 1920 * 1080;
+    /**
+     * 旋转时分块的边长（采样数），32x32 的块读写都能放进 L1 缓存
+     */
+    private static final int ROTATE_TILE_SIZE = 32;
+
+    /**
+     * {@link #copyI420ToNV21} 读取 direct buffer 时用的行缓存
+     */
+    private static final ThreadLocal<byte[]> CHROMA_ROW_SCRATCH = new ThreadLocal<>();
 
     /**
      * nv21数据剪裁
@@ -41,28 +57,85 @@ public class NV21Util {
         if (clipWidth == srcWidth && clipHeight == srcHeight && left == 0 && top == 0) {
             return src;
         }
+        byte[] cropBytes = new byte[(clipWidth & ~1) * (clipHeight & ~1) * 3 / 2];
+        if (!cropNV21Into(src, srcWidth, srcHeight, clipWidth, clipHeight, left, top, cropBytes, 0)) {
+            return null;
+        }
+        return cropBytes;
+    }
+
+    /**
+     * nv21数据剪裁，结果写入调用方提供的数组，不会分配内存，适合每帧调用。
+     * 剪裁的宽高和起始位置都会向下取偶数，写入的长度为 clipWidth * clipHeight * 3 / 2（取偶数后）。
+     *
+     * @param src        原始nv21数据
+     * @param srcWidth   原始nv21数据的宽
+     * @param srcHeight  原始nv21数据的高
+     * @param clipWidth  剪裁的宽度
+     * @param clipHeight 剪裁的高度
+     * @param left       剪裁的开始的左边位置，坐标相对于nv21原始数据
+     * @param top        剪裁的开始的上边位置，坐标相对于nv21原始数据
+     * @param dst        存放剪裁结果的数组
+     * @param dstOffset  从dst的哪个位置开始写入
+     * @return 参数异常或者dst空间不足时返回false
+     */
+    public static boolean cropNV21Into(@NonNull byte[] src, int srcWidth, int srcHeight, int clipWidth, int clipHeight,
+                                       int left, int top, @NonNull byte[] dst, int dstOffset) {
+        return cropNV21Into(src, srcWidth, srcHeight, clipWidth, clipHeight, left, top, dst, dstOffset, false);
+    }
+
+    /**
+     * {@link #cropNV21Into(byte[], int, int, int, int, int, int, byte[], int)} 的并行版本，按行拆成条带在专用线程池中复制，
+     * 用于 4K 等大分辨率。剪裁区域小于 {@link #PARALLEL_THRESHOLD_PIXELS} 时和串行版本一样在调用线程上执行。
+     */
+    public static boolean cropNV21IntoParallel(@NonNull byte[] src, int srcWidth, int srcHeight, int clipWidth,
+                                               int clipHeight, int left, int top, @NonNull byte[] dst, int dstOffset) {
+        return cropNV21Into(src, srcWidth, srcHeight, clipWidth, clipHeight, left, top, dst, dstOffset, true);
+    }
+
+    private static boolean cropNV21Into(@NonNull byte[] src, int srcWidth, int srcHeight, int clipWidth, int clipHeight,
+                                        int left, int top, @NonNull byte[] dst, int dstOffset, boolean parallel) {
+        if (src.length != srcWidth * srcHeight * 3 / 2) {
+            return false;
+        }
+        if (left < 0 || top < 0 || clipWidth + left > srcWidth || clipHeight + top > srcHeight) {
+            return false;
+        }
         //确保为偶数
-        clipWidth &= ~1;
-        clipHeight &= ~1;
-        left &= ~1;
-        top &= ~1;
-        byte[] cropBytes = new byte[clipWidth * clipHeight * 3 / 2];
-        int bottom = top + clipHeight;
+        final int width = clipWidth & ~1;
+        final int height = clipHeight & ~1;
+        final int startLeft = left & ~1;
+        final int startTop = top & ~1;
+        if (width <= 0 || height <= 0) {
+            return false;
+        }
+        if (dstOffset < 0 || dst.length - dstOffset < width * height * 3 / 2) {
+            return false;
+        }
+        if (parallel && width * height >= PARALLEL_THRESHOLD_PIXELS) {
+            NV21StripeExecutor.run(height, (rowStart, rowEnd) -> cropRows(src, srcWidth, srcHeight, width, height,
+                    startLeft, startTop, dst, dstOffset, rowStart, rowEnd));
+        } else {
+            cropRows(src, srcWidth, srcHeight, width, height, startLeft, startTop, dst, dstOffset, 0, height);
+        }
+        return true;
+    }
+
+    /**
+     * 复制剪裁结果中 [rowStart, rowEnd) 行的 Y 数据和对应的 VU 数据，参数都已经校验并取偶数。
+     */
+    private static void cropRows(byte[] src, int srcWidth, int srcHeight, int clipWidth, int clipHeight, int left,
+                                 int top, byte[] dst, int dstOffset, int rowStart, int rowEnd) {
         //先复制Y数据
-        for (int i = top; i < bottom; i++) {
-            System.arraycopy(src, left + i * srcWidth, cropBytes, (i - top) * clipWidth, clipWidth);
+        for (int i = rowStart; i < rowEnd; i++) {
+            System.arraycopy(src, left + (top + i) * srcWidth, dst, dstOffset + i * clipWidth, clipWidth);
         }
         //复制UV数据
-        int startH = srcHeight + top / 2;
-        int endH = srcHeight + bottom / 2;
-        for (int i = startH; i < endH; i++) {
-            System.arraycopy(src,
-                    left + i * srcWidth,
-                    cropBytes,
-                    (i - startH + clipHeight) * clipWidth,
-                    clipWidth);
+        int srcUVStart = srcWidth * srcHeight + (top / 2) * srcWidth + left;
+        int dstUVStart = dstOffset + clipWidth * clipHeight;
+        for (int i = rowStart / 2; i < rowEnd / 2; i++) {
+            System.arraycopy(src, srcUVStart + i * srcWidth, dst, dstUVStart + i * clipWidth, clipWidth);
         }
-        return cropBytes;
     }
 
     /**
@@ -95,81 +168,894 @@ public class NV21Util {
      * @param overlayWidth  小图的宽
      * @param overlayHeight 小图的高
      * @param transparent   叠图中是否有透明数据；如果有，但传参false的话，会以黑色填充；如果是true的话，会比较耗时
+     *                      <p>
+     *                      该方法不会分配内存，可以每帧调用。
      */
     public static void overlayNV21(@NonNull byte[] nv21, int width, int height, int left, int top, @NonNull byte[] overlayNv21, int overlayWidth, int overlayHeight, boolean transparent) {
+        overlayNV21(nv21, width, height, left, top, overlayNv21, overlayWidth, overlayHeight, transparent, null, false);
+    }
+
+    /**
+     * 带透明数据的叠图，使用预先计算好的不透明片段 {@link Nv21OverlayMask}，每帧只对这些片段做
+     * {@link System#arraycopy}，不再逐字节比较。小图不变时只需要创建一次 mask。
+     *
+     * @param nv21          叠图最下面的图的nv21数据
+     * @param width         最下面叠图的nv21数据的宽
+     * @param height        最下面叠图的nv21数据的高
+     * @param left          叠图起始左边位置
+     * @param top           叠图起始的上边位置
+     * @param overlayNv21   小图的nv21数据
+     * @param overlayWidth  小图的宽
+     * @param overlayHeight 小图的高
+     * @param mask          由同一份小图数据创建的 mask，宽高必须和小图一致
+     */
+    public static void overlayNV21(@NonNull byte[] nv21, int width, int height, int left, int top, @NonNull byte[] overlayNv21, int overlayWidth, int overlayHeight, @NonNull Nv21OverlayMask mask) {
+        if (mask.getWidth() != overlayWidth || mask.getHeight() != overlayHeight) {
+            return;
+        }
+        overlayNV21(nv21, width, height, left, top, overlayNv21, overlayWidth, overlayHeight, true, mask, false);
+    }
+
+    /**
+     * {@link #overlayNV21(byte[], int, int, int, int, byte[], int, int, boolean)} 的并行版本，按行拆成条带在专用线程池中叠图。
+     * 叠加区域小于 {@link #PARALLEL_THRESHOLD_PIXELS} 时和串行版本一样在调用线程上执行，小图叠加时不会有额外开销。
+     */
+    public static void overlayNV21Parallel(@NonNull byte[] nv21, int width, int height, int left, int top, @NonNull byte[] overlayNv21, int overlayWidth, int overlayHeight, boolean transparent) {
+        overlayNV21(nv21, width, height, left, top, overlayNv21, overlayWidth, overlayHeight, transparent, null, true);
+    }
+
+    /**
+     * {@link #overlayNV21(byte[], int, int, int, int, byte[], int, int, Nv21OverlayMask)} 的并行版本，规则同上。
+     */
+    public static void overlayNV21Parallel(@NonNull byte[] nv21, int width, int height, int left, int top, @NonNull byte[] overlayNv21, int overlayWidth, int overlayHeight, @NonNull Nv21OverlayMask mask) {
+        if (mask.getWidth() != overlayWidth || mask.getHeight() != overlayHeight) {
+            return;
+        }
+        overlayNV21(nv21, width, height, left, top, overlayNv21, overlayWidth, overlayHeight, true, mask, true);
+    }
+
+    /**
+     * 按 alpha 半透明混合叠图，超出范围的部分会被裁掉，规则同上。
+     * 完全不透明的部分直接复制，完全透明的部分跳过，只有半透明的像素需要计算。
+     * <p>
+     * 该方法不会分配内存，可以每帧调用。
+     *
+     * @param nv21    叠图最下面的图的nv21数据
+     * @param width   最下面叠图的nv21数据的宽
+     * @param height  最下面叠图的nv21数据的高
+     * @param left    叠图起始左边位置
+     * @param top     叠图起始的上边位置
+     * @param overlay 带 alpha 的小图，见 {@link AlphaNv21Overlay#fromArgb(int[], int, int)}
+     */
+    public static void overlayNV21(@NonNull byte[] nv21, int width, int height, int left, int top, @NonNull AlphaNv21Overlay overlay) {
+        overlayNV21(nv21, width, height, left, top, overlay, false);
+    }
+
+    /**
+     * {@link #overlayNV21(byte[], int, int, int, int, AlphaNv21Overlay)} 的并行版本，规则同上。
+     */
+    public static void overlayNV21Parallel(@NonNull byte[] nv21, int width, int height, int left, int top, @NonNull AlphaNv21Overlay overlay) {
+        overlayNV21(nv21, width, height, left, top, overlay, true);
+    }
+
+    private static void overlayNV21(@NonNull byte[] nv21, int width, int height, int left, int top, @NonNull AlphaNv21Overlay overlay, boolean parallel) {
+        if (nv21.length != width * height * 3 / 2) {
+            return;
+        }
+        int overlayWidth = overlay.getWidth();
+        int overlayHeight = overlay.getHeight();
+        if (overlayWidth + left > width) {
+            //不符合要求，只叠加范围内的部分
+            overlayWidth = width - left;
+        }
+        if (overlayHeight + top > height) {
+            //不符合要求，只叠加范围内的部分
+            overlayHeight = height - top;
+        }
+        //确保为偶数
+        left &= ~1;
+        top &= ~1;
+        final int copyWidth = overlayWidth & ~1;
+        final int copyHeight = overlayHeight & ~1;
+        if (copyWidth <= 0 || copyHeight <= 0) {
+            return;
+        }
+        final int yStart = left + top * width;
+        final int uvBasic = width * height + (top / 2) * width + left;
+        if (parallel && copyWidth * copyHeight >= PARALLEL_THRESHOLD_PIXELS) {
+            NV21StripeExecutor.run(copyHeight, (rowStart, rowEnd) ->
+                    overlay.blendInto(nv21, yStart, uvBasic, width, copyWidth, rowStart, rowEnd));
+        } else {
+            overlay.blendInto(nv21, yStart, uvBasic, width, copyWidth, 0, copyHeight);
+        }
+    }
+
+    private static void overlayNV21(@NonNull byte[] nv21, int width, int height, int left, int top, @NonNull byte[] overlayNv21, int overlayWidth, int overlayHeight, boolean transparent, @Nullable Nv21OverlayMask mask, boolean parallel) {
         if (nv21.length != width * height * 3 / 2) {
             return;
         }
         if (overlayNv21.length != overlayWidth * overlayHeight * 3 / 2) {
             return;
         }
-        int originalOverlayWidth = overlayWidth;
-        int originalOverlayHeight = overlayHeight;
+        //小图每一行的实际宽度，以及UV数据的起始位置；超出范围的部分直接按行跳过，不需要先剪裁小图
+        final int overlayStride = overlayWidth;
+        final int overlayUVOffset = overlayWidth * overlayHeight;
         if (overlayWidth + left > width) {
-            //不符合要求，进行二次剪裁
+            //不符合要求，只叠加范围内的部分
             overlayWidth = width - left;
         }
         if (overlayHeight + top > height) {
-            //不符合要求，进行二次剪裁
+            //不符合要求，只叠加范围内的部分
             overlayHeight = height - top;
         }
         //确保为偶数
         left &= ~1;
         top &= ~1;
-        overlayWidth &= ~1;
-        overlayHeight &= ~1;
+        final int copyWidth = overlayWidth & ~1;
+        final int copyHeight = overlayHeight & ~1;
+        if (copyWidth <= 0 || copyHeight <= 0) {
+            return;
+        }
+        final int yStart = left + top * width;
+        final int uvBasic = width * height + (top / 2) * width + left;
+        if (parallel && copyWidth * copyHeight >= PARALLEL_THRESHOLD_PIXELS) {
+            NV21StripeExecutor.run(copyHeight, (rowStart, rowEnd) -> overlayRows(nv21, yStart, uvBasic, width,
+                    overlayNv21, overlayStride, overlayUVOffset, copyWidth, transparent, mask, rowStart, rowEnd));
+        } else {
+            overlayRows(nv21, yStart, uvBasic, width, overlayNv21, overlayStride, overlayUVOffset, copyWidth,
+                    transparent, mask, 0, copyHeight);
+        }
+    }
+
+    /**
+     * 叠加小图中 [rowStart, rowEnd) 行的 Y 数据和对应的 VU 数据，参数都已经校验并取偶数。
+     */
+    private static void overlayRows(byte[] nv21, int yStart, int uvBasic, int width, byte[] overlayNv21,
+                                    int overlayStride, int overlayUVOffset, int copyWidth, boolean transparent,
+                                    @Nullable Nv21OverlayMask mask, int rowStart, int rowEnd) {
+        if (!transparent) {
+            //先复制Y数据
+            for (int i = rowStart; i < rowEnd; i++) {
+                System.arraycopy(overlayNv21, i * overlayStride, nv21, yStart + i * width, copyWidth);
+            }
+            //复制UV数据
+            for (int i = rowStart / 2; i < rowEnd / 2; i++) {
+                System.arraycopy(overlayNv21, overlayUVOffset + i * overlayStride, nv21, uvBasic + i * width, copyWidth);
+            }
+            return;
+        }
 
-        //裁剪
-        overlayNv21 = cropNV21(overlayNv21, originalOverlayWidth, originalOverlayHeight, overlayWidth, overlayHeight, 0, 0);
-        if (overlayNv21 == null) {
+        if (mask != null) {
+            //只复制预先算好的不透明片段
+            mask.copyOpaqueRuns(overlayNv21, copyWidth, rowStart, rowEnd, nv21, yStart, uvBasic, width);
             return;
         }
-        if (transparent) {
-            //途中有透明部分
-            //先剪裁出nv21中覆盖部分的相同位置的数据
-            byte[] cropNV21 = cropNV21(nv21, width, height, overlayWidth, overlayHeight, left, top);
-            if (cropNV21 == null) {
-                return;
-            }
-            int size = overlayWidth * overlayHeight * 3 / 2;
-            //然后合并
-            if (cropNV21.length != size || overlayNv21.length != size) {
-                return;
-            }
-
-            int splitY = overlayWidth * overlayHeight;
-            for (int i = 0; i < size; i++) {
-                if (i < splitY) {
-                    //Y数据
-                    if (overlayNv21[i] != TRANSPARENT_Y) {
-                        cropNV21[i] = overlayNv21[i];
+
+        //图中有透明部分：只把不透明的数据直接写到nv21对应位置，不需要先剪裁背景再合并
+        for (int i = rowStart; i < rowEnd; i++) {
+            int srcIndex = i * overlayStride;
+            int dstIndex = yStart + i * width;
+            for (int j = 0; j < copyWidth; j++, srcIndex++, dstIndex++) {
+                byte y = overlayNv21[srcIndex];
+                if (y != TRANSPARENT_Y) {
+                    nv21[dstIndex] = y;
+                }
+            }
+        }
+        for (int i = rowStart / 2; i < rowEnd / 2; i++) {
+            int srcIndex = overlayUVOffset + i * overlayStride;
+            int dstIndex = uvBasic + i * width;
+            for (int j = 0; j < copyWidth; j++, srcIndex++, dstIndex++) {
+                byte uv = overlayNv21[srcIndex];
+                if (uv != TRANSPARENT_UV) {
+                    nv21[dstIndex] = uv;
+                }
+            }
+        }
+    }
+
+    /**
+     * nv21数据 2:1 缩小（2x2 盒式滤波），结果写入调用方提供的数组，不会分配内存。
+     * 输出的宽高为 (srcWidth / 2) & ~1、(srcHeight / 2) & ~1，写入的长度为 dstWidth * dstHeight * 3 / 2。
+     *
+     * @param src       原始nv21数据
+     * @param srcWidth  原始nv21数据的宽
+     * @param srcHeight 原始nv21数据的高
+     * @param dst       存放缩小结果的数组
+     * @param dstOffset 从dst的哪个位置开始写入
+     * @return 参数异常或者dst空间不足时返回false
+     */
+    public static boolean downscaleNV21Half(@NonNull byte[] src, int srcWidth, int srcHeight, @NonNull byte[] dst,
+                                            int dstOffset) {
+        if (src.length != srcWidth * srcHeight * 3 / 2) {
+            return false;
+        }
+        int dstWidth = (srcWidth / 2) & ~1;
+        int dstHeight = (srcHeight / 2) & ~1;
+        if (dstWidth <= 0 || dstHeight <= 0) {
+            return false;
+        }
+        if (dstOffset < 0 || dst.length - dstOffset < dstWidth * dstHeight * 3 / 2) {
+            return false;
+        }
+        downscaleHalf(src, srcWidth, srcHeight, dst, dstOffset, dstWidth, dstHeight);
+        return true;
+    }
+
+    /**
+     * 连续 2:1 缩小，生成 1/2、1/4、1/8... 的多层nv21数据，例如缩略图和 simulcast 的低分辨率层。
+     * 每一层都由上一层缩小得到，原始帧只读取一次。
+     *
+     * @param src       原始nv21数据
+     * @param srcWidth  原始nv21数据的宽
+     * @param srcHeight 原始nv21数据的高
+     * @param layers    存放每一层结果的数组，layers[i] 为 1/2^(i+1) 的结果，大小至少为
+     *                  {@link #downscaleNV21Half} 对应层的输出大小
+     * @return 成功生成的层数；某一层太小或者数组空间不足时停止，后面的层不会写入
+     */
+    public static int downscaleNV21Pyramid(@NonNull byte[] src, int srcWidth, int srcHeight, @NonNull byte[][] layers) {
+        if (src.length != srcWidth * srcHeight * 3 / 2) {
+            return 0;
+        }
+        byte[] current = src;
+        int width = srcWidth;
+        int height = srcHeight;
+        for (int i = 0; i < layers.length; i++) {
+            byte[] layer = layers[i];
+            int layerWidth = (width / 2) & ~1;
+            int layerHeight = (height / 2) & ~1;
+            //每一层的数组可以比实际数据大，只要能放下即可
+            if (layer == null || layerWidth <= 0 || layerHeight <= 0
+                    || layer.length < layerWidth * layerHeight * 3 / 2) {
+                return i;
+            }
+            downscaleHalf(current, width, height, layer, 0, layerWidth, layerHeight);
+            current = layer;
+            width = layerWidth;
+            height = layerHeight;
+        }
+        return layers.length;
+    }
+
+    /**
+     * nv21数据双线性缩放，结果写入调用方提供的数组，不会分配内存。
+     * 目标宽高会向下取偶数，写入的长度为 dstWidth * dstHeight * 3 / 2。
+     *
+     * @param src       原始nv21数据
+     * @param srcWidth  原始nv21数据的宽
+     * @param srcHeight 原始nv21数据的高
+     * @param dst       存放缩放结果的数组
+     * @param dstOffset 从dst的哪个位置开始写入
+     * @param dstWidth  目标宽
+     * @param dstHeight 目标高
+     * @return 参数异常或者dst空间不足时返回false
+     */
+    public static boolean scaleNV21(@NonNull byte[] src, int srcWidth, int srcHeight, @NonNull byte[] dst,
+                                    int dstOffset, int dstWidth, int dstHeight) {
+        return cropScaleNV21(src, srcWidth, srcHeight, 0, 0, srcWidth, srcHeight, dst, dstOffset, dstWidth, dstHeight);
+    }
+
+    /**
+     * 先剪裁再双线性缩放，一次完成，不需要中间数组。
+     * 剪裁区域和目标宽高都会向下取偶数，写入的长度为 dstWidth * dstHeight * 3 / 2。
+     *
+     * @param src        原始nv21数据
+     * @param srcWidth   原始nv21数据的宽
+     * @param srcHeight  原始nv21数据的高
+     * @param left       剪裁的开始的左边位置
+     * @param top        剪裁的开始的上边位置
+     * @param clipWidth  剪裁的宽度
+     * @param clipHeight 剪裁的高度
+     * @param dst        存放缩放结果的数组
+     * @param dstOffset  从dst的哪个位置开始写入
+     * @param dstWidth   目标宽
+     * @param dstHeight  目标高
+     * @return 参数异常或者dst空间不足时返回false
+     */
+    public static boolean cropScaleNV21(@NonNull byte[] src, int srcWidth, int srcHeight, int left, int top,
+                                        int clipWidth, int clipHeight, @NonNull byte[] dst, int dstOffset,
+                                        int dstWidth, int dstHeight) {
+        if (src.length != srcWidth * srcHeight * 3 / 2) {
+            return false;
+        }
+        if (left < 0 || top < 0 || clipWidth + left > srcWidth || clipHeight + top > srcHeight) {
+            return false;
+        }
+        //确保为偶数
+        left &= ~1;
+        top &= ~1;
+        clipWidth &= ~1;
+        clipHeight &= ~1;
+        dstWidth &= ~1;
+        dstHeight &= ~1;
+        if (clipWidth <= 0 || clipHeight <= 0 || dstWidth <= 0 || dstHeight <= 0) {
+            return false;
+        }
+        if (dstOffset < 0 || dst.length - dstOffset < dstWidth * dstHeight * 3 / 2) {
+            return false;
+        }
+        //Y数据
+        scalePlaneBilinear(src, top * srcWidth + left, srcWidth, 1, clipWidth, clipHeight,
+                dst, dstOffset, dstWidth, 1, dstWidth, dstHeight);
+        //VU数据，V、U分别缩放
+        int srcUVStart = srcWidth * srcHeight + (top / 2) * srcWidth + left;
+        int dstUVStart = dstOffset + dstWidth * dstHeight;
+        for (int channel = 0; channel < 2; channel++) {
+            scalePlaneBilinear(src, srcUVStart + channel, srcWidth, 2, clipWidth / 2, clipHeight / 2,
+                    dst, dstUVStart + channel, dstWidth, 2, dstWidth / 2, dstHeight / 2);
+        }
+        return true;
+    }
+
+    /**
+     * 2:1 盒式滤波的实现，参数都已经校验。
+     */
+    private static void downscaleHalf(byte[] src, int srcWidth, int srcHeight, byte[] dst, int dstOffset,
+                                      int dstWidth, int dstHeight) {
+        //Y数据
+        for (int i = 0; i < dstHeight; i++) {
+            int srcIndex = 2 * i * srcWidth;
+            int dstIndex = dstOffset + i * dstWidth;
+            for (int j = 0; j < dstWidth; j++, srcIndex += 2, dstIndex++) {
+                int sum = (src[srcIndex] & 0xFF) + (src[srcIndex + 1] & 0xFF)
+                        + (src[srcIndex + srcWidth] & 0xFF) + (src[srcIndex + srcWidth + 1] & 0xFF);
+                dst[dstIndex] = (byte) ((sum + 2) >> 2);
+            }
+        }
+        //VU数据，V、U交错，相邻的两对VU分别取平均
+        int srcUVStart = srcWidth * srcHeight;
+        int dstUVStart = dstOffset + dstWidth * dstHeight;
+        for (int i = 0; i < dstHeight / 2; i++) {
+            int srcIndex = srcUVStart + 2 * i * srcWidth;
+            int dstIndex = dstUVStart + i * dstWidth;
+            for (int j = 0; j < dstWidth; j += 2, srcIndex += 4, dstIndex += 2) {
+                int sumV = (src[srcIndex] & 0xFF) + (src[srcIndex + 2] & 0xFF)
+                        + (src[srcIndex + srcWidth] & 0xFF) + (src[srcIndex + srcWidth + 2] & 0xFF);
+                int sumU = (src[srcIndex + 1] & 0xFF) + (src[srcIndex + 3] & 0xFF)
+                        + (src[srcIndex + srcWidth + 1] & 0xFF) + (src[srcIndex + srcWidth + 3] & 0xFF);
+                dst[dstIndex] = (byte) ((sumV + 2) >> 2);
+                dst[dstIndex + 1] = (byte) ((sumU + 2) >> 2);
+            }
+        }
+    }
+
+    /**
+     * 单个平面的双线性缩放，坐标按像素中心对齐，使用 16.16 定点数，权重精度为 8 位。
+     *
+     * @param srcStart  源平面左上角第一个采样的下标
+     * @param srcStride 源平面每行的字节数
+     * @param srcStep   同一行相邻两个采样的间隔，Y 为 1，交错的 VU 为 2
+     * @param srcWidth  源平面每行的采样数
+     * @param srcHeight 源平面的行数
+     */
+    private static void scalePlaneBilinear(byte[] src, int srcStart, int srcStride, int srcStep, int srcWidth,
+                                           int srcHeight, byte[] dst, int dstStart, int dstStride, int dstStep,
+                                           int dstWidth, int dstHeight) {
+        int dx = (int) (((long) srcWidth << 16) / dstWidth);
+        int dy = (int) (((long) srcHeight << 16) / dstHeight);
+        int maxX = (srcWidth - 1) << 16;
+        int maxY = (srcHeight - 1) << 16;
+        int y = dy / 2 - 0x8000;
+        for (int i = 0; i < dstHeight; i++, y += dy) {
+            int clampedY = Math.max(0, Math.min(y, maxY));
+            int row0 = srcStart + (clampedY >> 16) * srcStride;
+            //最后一行没有下一行，权重为 0 时读同一行即可
+            int row1 = (clampedY >> 16) + 1 < srcHeight ? row0 + srcStride : row0;
+            int fy = (clampedY >> 8) & 0xFF;
+            int dstIndex = dstStart + i * dstStride;
+            int x = dx / 2 - 0x8000;
+            for (int j = 0; j < dstWidth; j++, x += dx, dstIndex += dstStep) {
+                int clampedX = Math.max(0, Math.min(x, maxX));
+                int col0 = (clampedX >> 16) * srcStep;
+                int col1 = (clampedX >> 16) + 1 < srcWidth ? col0 + srcStep : col0;
+                int fx = (clampedX >> 8) & 0xFF;
+                int top = ((src[row0 + col0] & 0xFF) << 8) + ((src[row0 + col1] & 0xFF) - (src[row0 + col0] & 0xFF)) * fx;
+                int bottom = ((src[row1 + col0] & 0xFF) << 8) + ((src[row1 + col1] & 0xFF) - (src[row1 + col0] & 0xFF)) * fx;
+                dst[dstIndex] = (byte) (((top << 8) + (bottom - top) * fy + 0x8000) >> 16);
+            }
+        }
+    }
+
+    /**
+     * nv21数据顺时针旋转，结果写入调用方提供的数组，不会分配内存，可以每帧调用。
+     * 旋转 90°、270° 时输出的宽高互换。V、U 按对旋转，不会交换顺序。
+     *
+     * @param src       原始nv21数据
+     * @param width     原始nv21数据的宽，偶数
+     * @param height    原始nv21数据的高，偶数
+     * @param rotation  顺时针旋转的角度：0°、90°、180°、270°
+     * @param dst       存放旋转结果的数组，不能和src是同一个数组
+     * @param dstOffset 从dst的哪个位置开始写入
+     * @return 参数异常或者dst空间不足时返回false
+     */
+    public static boolean rotateNV21(@NonNull byte[] src, int width, int height, int rotation, @NonNull byte[] dst,
+                                     int dstOffset) {
+        if (src == dst || src.length != width * height * 3 / 2) {
+            return false;
+        }
+        if (width <= 0 || height <= 0 || (width & 1) != 0 || (height & 1) != 0) {
+            return false;
+        }
+        if (dstOffset < 0 || dst.length - dstOffset < src.length) {
+            return false;
+        }
+        int ySize = width * height;
+        switch (rotation) {
+            case 0:
+                System.arraycopy(src, 0, dst, dstOffset, src.length);
+                return true;
+            case 90:
+            case 270:
+                rotatePlaneTiled(src, 0, width, height, 1, rotation, dst, dstOffset);
+                rotatePlaneTiled(src, ySize, width / 2, height / 2, 2, rotation, dst, dstOffset + ySize);
+                return true;
+            case 180:
+                rotatePlane180(src, 0, width, height, 1, dst, dstOffset);
+                rotatePlane180(src, ySize, width / 2, height / 2, 2, dst, dstOffset + ySize);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 顺时针旋转 90°，见 {@link #rotateNV21(byte[], int, int, int, byte[], int)}
+     */
+    public static boolean rotate90NV21(@NonNull byte[] src, int width, int height, @NonNull byte[] dst, int dstOffset) {
+        return rotateNV21(src, width, height, 90, dst, dstOffset);
+    }
+
+    /**
+     * 旋转 180°，见 {@link #rotateNV21(byte[], int, int, int, byte[], int)}
+     */
+    public static boolean rotate180NV21(@NonNull byte[] src, int width, int height, @NonNull byte[] dst, int dstOffset) {
+        return rotateNV21(src, width, height, 180, dst, dstOffset);
+    }
+
+    /**
+     * 顺时针旋转 270°，见 {@link #rotateNV21(byte[], int, int, int, byte[], int)}
+     */
+    public static boolean rotate270NV21(@NonNull byte[] src, int width, int height, @NonNull byte[] dst, int dstOffset) {
+        return rotateNV21(src, width, height, 270, dst, dstOffset);
+    }
+
+    /**
+     * 按 {@link #ROTATE_TILE_SIZE} x {@link #ROTATE_TILE_SIZE} 的块旋转 90° 或 270°，
+     * 块内的读写都集中在少量缓存行上，避免整列写入时每个像素都换一条缓存行。
+     *
+     * @param srcWidth   每行的采样数
+     * @param srcHeight  行数
+     * @param sampleSize 每个采样的字节数，Y 为 1，VU 对为 2
+     */
+    private static void rotatePlaneTiled(byte[] src, int srcStart, int srcWidth, int srcHeight, int sampleSize,
+                                         int rotation, byte[] dst, int dstStart) {
+        int srcStride = srcWidth * sampleSize;
+        int dstStride = srcHeight * sampleSize;
+        for (int tileY = 0; tileY < srcHeight; tileY += ROTATE_TILE_SIZE) {
+            int tileBottom = Math.min(tileY + ROTATE_TILE_SIZE, srcHeight);
+            for (int tileX = 0; tileX < srcWidth; tileX += ROTATE_TILE_SIZE) {
+                int tileRight = Math.min(tileX + ROTATE_TILE_SIZE, srcWidth);
+                for (int y = tileY; y < tileBottom; y++) {
+                    int srcIndex = srcStart + y * srcStride + tileX * sampleSize;
+                    int dstIndex;
+                    int dstStep;
+                    if (rotation == 90) {
+                        //(x, y) -> (srcHeight - 1 - y, x)
+                        dstIndex = dstStart + tileX * dstStride + (srcHeight - 1 - y) * sampleSize;
+                        dstStep = dstStride;
+                    } else {
+                        //(x, y) -> (y, srcWidth - 1 - x)
+                        dstIndex = dstStart + (srcWidth - 1 - tileX) * dstStride + y * sampleSize;
+                        dstStep = -dstStride;
                     }
-                } else {
-                    //UV数据
-                    if (overlayNv21[i] != TRANSPARENT_UV) {
-                        cropNV21[i] = overlayNv21[i];
+                    if (sampleSize == 1) {
+                        for (int x = tileX; x < tileRight; x++, srcIndex++, dstIndex += dstStep) {
+                            dst[dstIndex] = src[srcIndex];
+                        }
+                    } else {
+                        for (int x = tileX; x < tileRight; x++, srcIndex += 2, dstIndex += dstStep) {
+                            dst[dstIndex] = src[srcIndex];
+                            dst[dstIndex + 1] = src[srcIndex + 1];
+                        }
                     }
                 }
             }
-            overlayNv21 = cropNV21;
         }
+    }
 
-        //先复制Y数据
-        for (int i = 0; i < overlayHeight; i++) {
-            System.arraycopy(overlayNv21, i * overlayWidth, nv21, left + (top + i) * width, overlayWidth);
+    /**
+     * 旋转 180°：行倒序，每行内的采样倒序。读写都是顺序的，不需要分块。
+     */
+    private static void rotatePlane180(byte[] src, int srcStart, int srcWidth, int srcHeight, int sampleSize,
+                                       byte[] dst, int dstStart) {
+        int stride = srcWidth * sampleSize;
+        for (int y = 0; y < srcHeight; y++) {
+            int srcIndex = srcStart + y * stride;
+            //目标行的最后一个采样
+            int dstIndex = dstStart + (srcHeight - 1 - y) * stride + stride - sampleSize;
+            if (sampleSize == 1) {
+                for (int x = 0; x < srcWidth; x++, srcIndex++, dstIndex--) {
+                    dst[dstIndex] = src[srcIndex];
+                }
+            } else {
+                for (int x = 0; x < srcWidth; x++, srcIndex += 2, dstIndex -= 2) {
+                    dst[dstIndex] = src[srcIndex];
+                    dst[dstIndex + 1] = src[srcIndex + 1];
+                }
+            }
         }
-        //复制UV数据
-        int startH = overlayHeight;
-        int endH = overlayHeight + (overlayWidth * overlayHeight / 2) / overlayWidth;
+    }
+
+    /**
+     * 按行复制一个平面，源和目标各自有行跨度（stride），可以直接用于
+     * {@code I420Buffer.getDataY()/getDataU()/getDataV()} 返回的带 stride 的平面。
+     * <p>
+     * 以下 ByteBuffer 版本的方法都以 buffer 当前的 position 作为平面的起点，不会修改传入 buffer 的
+     * position 和 limit。裁剪时把起点移到 {@code top * stride + left} 即可。
+     *
+     * @param src       源平面
+     * @param srcStride 源平面每行的字节数
+     * @param dst       目标平面
+     * @param dstStride 目标平面每行的字节数
+     * @param width     每行复制的字节数
+     * @param height    复制的行数
+     * @return 参数异常或者空间不足时返回false
+     */
+    public static boolean copyPlane(@NonNull ByteBuffer src, int srcStride, @NonNull ByteBuffer dst, int dstStride,
+                                    int width, int height) {
+        return copyPlane(src, src.position(), srcStride, dst, dst.position(), dstStride, width, height);
+    }
+
+    /**
+     * 带 stride 的nv21数据剪裁：Y 平面和 VU 交错平面分开传入，各自有 stride。
+     * 剪裁的宽高和起始位置都会向下取偶数。
+     *
+     * @param srcY        原始Y平面
+     * @param srcStrideY  原始Y平面每行的字节数
+     * @param srcVU       原始VU交错平面
+     * @param srcStrideVU 原始VU平面每行的字节数
+     * @param srcWidth    原始数据的宽
+     * @param srcHeight   原始数据的高
+     * @param clipWidth   剪裁的宽度
+     * @param clipHeight  剪裁的高度
+     * @param left        剪裁的开始的左边位置
+     * @param top         剪裁的开始的上边位置
+     * @param dstY        存放剪裁结果的Y平面
+     * @param dstStrideY  结果Y平面每行的字节数
+     * @param dstVU       存放剪裁结果的VU平面
+     * @param dstStrideVU 结果VU平面每行的字节数
+     * @return 参数异常或者空间不足时返回false
+     */
+    public static boolean cropNV21(@NonNull ByteBuffer srcY, int srcStrideY, @NonNull ByteBuffer srcVU, int srcStrideVU,
+                                   int srcWidth, int srcHeight, int clipWidth, int clipHeight, int left, int top,
+                                   @NonNull ByteBuffer dstY, int dstStrideY, @NonNull ByteBuffer dstVU, int dstStrideVU) {
+        if (left < 0 || top < 0 || clipWidth + left > srcWidth || clipHeight + top > srcHeight) {
+            return false;
+        }
+        //确保为偶数
+        clipWidth &= ~1;
+        clipHeight &= ~1;
+        left &= ~1;
+        top &= ~1;
+        if (clipWidth <= 0 || clipHeight <= 0) {
+            return false;
+        }
+        if (!fits(srcY, srcStrideY, left + clipWidth, top + clipHeight)
+                || !fits(srcVU, srcStrideVU, left + clipWidth, (top + clipHeight) / 2)) {
+            return false;
+        }
+        //VU交错排列，每行的字节数和Y相同，起始列也相同
+        return copyPlane(srcY, srcY.position() + top * srcStrideY + left, srcStrideY,
+                dstY, dstY.position(), dstStrideY, clipWidth, clipHeight)
+                && copyPlane(srcVU, srcVU.position() + (top / 2) * srcStrideVU + left, srcStrideVU,
+                dstVU, dstVU.position(), dstStrideVU, clipWidth, clipHeight / 2);
+    }
+
+    /**
+     * 带 stride 的nv21叠图，超出范围的部分会被裁掉。不会分配内存。
+     *
+     * @param y               叠图最下面的图的Y平面
+     * @param strideY         Y平面每行的字节数
+     * @param vu              叠图最下面的图的VU交错平面
+     * @param strideVU        VU平面每行的字节数
+     * @param width           最下面叠图的宽
+     * @param height          最下面叠图的高
+     * @param left            叠图起始左边位置
+     * @param top             叠图起始的上边位置
+     * @param overlayY        小图的Y平面
+     * @param overlayStrideY  小图Y平面每行的字节数
+     * @param overlayVU       小图的VU交错平面
+     * @param overlayStrideVU 小图VU平面每行的字节数
+     * @param overlayWidth    小图的宽
+     * @param overlayHeight   小图的高
+     * @param transparent     小图中是否有透明数据，{@link #TRANSPARENT_Y}、{@link #TRANSPARENT_UV} 的数据不会覆盖原图
+     * @return 参数异常或者空间不足时返回false
+     */
+    public static boolean overlayNV21(@NonNull ByteBuffer y, int strideY, @NonNull ByteBuffer vu, int strideVU,
+                                      int width, int height, int left, int top,
+                                      @NonNull ByteBuffer overlayY, int overlayStrideY,
+                                      @NonNull ByteBuffer overlayVU, int overlayStrideVU,
+                                      int overlayWidth, int overlayHeight, boolean transparent) {
+        if (left < 0 || top < 0) {
+            return false;
+        }
+        if (!fits(overlayY, overlayStrideY, overlayWidth, overlayHeight)
+                || !fits(overlayVU, overlayStrideVU, overlayWidth, overlayHeight / 2)) {
+            return false;
+        }
+        //超出范围的部分裁掉，并确保为偶数
+        left &= ~1;
+        top &= ~1;
+        int copyWidth = Math.min(overlayWidth, width - left) & ~1;
+        int copyHeight = Math.min(overlayHeight, height - top) & ~1;
+        if (copyWidth <= 0 || copyHeight <= 0) {
+            return false;
+        }
+        if (!fits(y, strideY, left + copyWidth, top + copyHeight)
+                || !fits(vu, strideVU, left + copyWidth, (top + copyHeight) / 2)) {
+            return false;
+        }
+        int yStart = y.position() + top * strideY + left;
+        int vuStart = vu.position() + (top / 2) * strideVU + left;
+        if (!transparent) {
+            return copyPlane(overlayY, overlayY.position(), overlayStrideY, y, yStart, strideY, copyWidth, copyHeight)
+                    && copyPlane(overlayVU, overlayVU.position(), overlayStrideVU, vu, vuStart, strideVU,
+                    copyWidth, copyHeight / 2);
+        }
+        overlayPlane(overlayY, overlayY.position(), overlayStrideY, y, yStart, strideY, copyWidth, copyHeight,
+                TRANSPARENT_Y);
+        overlayPlane(overlayVU, overlayVU.position(), overlayStrideVU, vu, vuStart, strideVU, copyWidth,
+                copyHeight / 2, TRANSPARENT_UV);
+        return true;
+    }
+
+    /**
+     * 把nv21小图直接叠加到 I420 的三个平面上（例如 {@code VideoFrame.I420Buffer}），超出范围的部分会被裁掉。
+     * 不需要先把 I420 转成 nv21。
+     *
+     * @param y               叠图最下面的图的Y平面
+     * @param strideY         Y平面每行的字节数
+     * @param u               U平面
+     * @param strideU         U平面每行的字节数
+     * @param v               V平面
+     * @param strideV         V平面每行的字节数
+     * @param width           最下面叠图的宽
+     * @param height          最下面叠图的高
+     * @param left            叠图起始左边位置
+     * @param top             叠图起始的上边位置
+     * @param overlayY        小图的Y平面
+     * @param overlayStrideY  小图Y平面每行的字节数
+     * @param overlayVU       小图的VU交错平面
+     * @param overlayStrideVU 小图VU平面每行的字节数
+     * @param overlayWidth    小图的宽
+     * @param overlayHeight   小图的高
+     * @param transparent     小图中是否有透明数据
+     * @return 参数异常或者空间不足时返回false
+     */
+    public static boolean overlayNV21OnI420(@NonNull ByteBuffer y, int strideY, @NonNull ByteBuffer u, int strideU,
+                                            @NonNull ByteBuffer v, int strideV, int width, int height, int left, int top,
+                                            @NonNull ByteBuffer overlayY, int overlayStrideY,
+                                            @NonNull ByteBuffer overlayVU, int overlayStrideVU,
+                                            int overlayWidth, int overlayHeight, boolean transparent) {
+        if (left < 0 || top < 0) {
+            return false;
+        }
+        if (!fits(overlayY, overlayStrideY, overlayWidth, overlayHeight)
+                || !fits(overlayVU, overlayStrideVU, overlayWidth, overlayHeight / 2)) {
+            return false;
+        }
+        left &= ~1;
+        top &= ~1;
+        int copyWidth = Math.min(overlayWidth, width - left) & ~1;
+        int copyHeight = Math.min(overlayHeight, height - top) & ~1;
+        if (copyWidth <= 0 || copyHeight <= 0) {
+            return false;
+        }
+        int chromaLeft = left / 2;
+        int chromaTop = top / 2;
+        int chromaWidth = copyWidth / 2;
+        int chromaHeight = copyHeight / 2;
+        if (!fits(y, strideY, left + copyWidth, top + copyHeight)
+                || !fits(u, strideU, chromaLeft + chromaWidth, chromaTop + chromaHeight)
+                || !fits(v, strideV, chromaLeft + chromaWidth, chromaTop + chromaHeight)) {
+            return false;
+        }
+        int yStart = y.position() + top * strideY + left;
+        if (transparent) {
+            overlayPlane(overlayY, overlayY.position(), overlayStrideY, y, yStart, strideY, copyWidth, copyHeight,
+                    TRANSPARENT_Y);
+        } else {
+            copyPlane(overlayY, overlayY.position(), overlayStrideY, y, yStart, strideY, copyWidth, copyHeight);
+        }
+        //VU交错数据拆分到U、V两个平面
+        int uStart = u.position() + chromaTop * strideU + chromaLeft;
+        int vStart = v.position() + chromaTop * strideV + chromaLeft;
+        int vuStart = overlayVU.position();
+        for (int row = 0; row < chromaHeight; row++) {
+            int srcIndex = vuStart + row * overlayStrideVU;
+            int uIndex = uStart + row * strideU;
+            int vIndex = vStart + row * strideV;
+            for (int col = 0; col < chromaWidth; col++, srcIndex += 2, uIndex++, vIndex++) {
+                byte vValue = overlayVU.get(srcIndex);
+                byte uValue = overlayVU.get(srcIndex + 1);
+                if (!transparent || vValue != TRANSPARENT_UV) {
+                    v.put(vIndex, vValue);
+                }
+                if (!transparent || uValue != TRANSPARENT_UV) {
+                    u.put(uIndex, uValue);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 把带 stride 的 I420 三个平面一次性转换成 nv21 的 Y 平面和 VU 交错平面，不需要先把平面重新打包。
+     *
+     * @param srcY        I420的Y平面
+     * @param srcStrideY  Y平面每行的字节数
+     * @param srcU        I420的U平面
+     * @param srcStrideU  U平面每行的字节数
+     * @param srcV        I420的V平面
+     * @param srcStrideV  V平面每行的字节数
+     * @param dstY        nv21的Y平面
+     * @param dstStrideY  nv21 Y平面每行的字节数
+     * @param dstVU       nv21的VU交错平面
+     * @param dstStrideVU nv21 VU平面每行的字节数
+     * @param width       图像宽
+     * @param height      图像高
+     * @return 参数异常或者空间不足时返回false
+     */
+    public static boolean copyI420ToNV21(@NonNull ByteBuffer srcY, int srcStrideY, @NonNull ByteBuffer srcU, int srcStrideU,
+                                         @NonNull ByteBuffer srcV, int srcStrideV,
+                                         @NonNull ByteBuffer dstY, int dstStrideY, @NonNull ByteBuffer dstVU, int dstStrideVU,
+                                         int width, int height) {
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        if (!fits(srcU, srcStrideU, chromaWidth, chromaHeight) || !fits(srcV, srcStrideV, chromaWidth, chromaHeight)
+                || !fits(dstVU, dstStrideVU, chromaWidth * 2, chromaHeight)) {
+            return false;
+        }
+        if (!copyPlane(srcY, srcY.position(), srcStrideY, dstY, dstY.position(), dstStrideY, width, height)) {
+            return false;
+        }
+        int uStart = srcU.position();
+        int vStart = srcV.position();
+        int vuStart = dstVU.position();
+        if (srcU.hasArray() && srcV.hasArray() && dstVU.hasArray()) {
+            byte[] u = srcU.array();
+            byte[] v = srcV.array();
+            byte[] vu = dstVU.array();
+            uStart += srcU.arrayOffset();
+            vStart += srcV.arrayOffset();
+            vuStart += dstVU.arrayOffset();
+            for (int row = 0; row < chromaHeight; row++) {
+                int uIndex = uStart + row * srcStrideU;
+                int vIndex = vStart + row * srcStrideV;
+                int dstIndex = vuStart + row * dstStrideVU;
+                for (int col = 0; col < chromaWidth; col++) {
+                    vu[dstIndex++] = v[vIndex++];
+                    vu[dstIndex++] = u[uIndex++];
+                }
+            }
+            return true;
+        }
+        //direct buffer（toI420() 的平面都是）：U、V 每行批量读到堆上的行缓存里再交错，不逐字节 get/put
+        byte[] scratch = chromaRowScratch(chromaWidth * 4);
+        int vuRowStart = chromaWidth * 2;
+        ByteBuffer uRow = srcU.duplicate();
+        ByteBuffer vRow = srcV.duplicate();
+        ByteBuffer vuRow = dstVU.hasArray() ? null : dstVU.duplicate();
+        byte[] vu = dstVU.hasArray() ? dstVU.array() : scratch;
+        for (int row = 0; row < chromaHeight; row++) {
+            int uIndex = uStart + row * srcStrideU;
+            int vIndex = vStart + row * srcStrideV;
+            uRow.limit(uIndex + chromaWidth);
+            uRow.position(uIndex);
+            uRow.get(scratch, 0, chromaWidth);
+            vRow.limit(vIndex + chromaWidth);
+            vRow.position(vIndex);
+            vRow.get(scratch, chromaWidth, chromaWidth);
+            int dstIndex = vuRow == null ? dstVU.arrayOffset() + vuStart + row * dstStrideVU : vuRowStart;
+            for (int col = 0; col < chromaWidth; col++) {
+                vu[dstIndex++] = scratch[chromaWidth + col];
+                vu[dstIndex++] = scratch[col];
+            }
+            if (vuRow != null) {
+                vuRow.position(vuStart + row * dstStrideVU);
+                vuRow.put(scratch, vuRowStart, chromaWidth * 2);
+            }
+        }
+        return true;
+    }
 
-        int basic = height + top / 2;
-        for (int i = startH; i < endH; i++) {
-            System.arraycopy(overlayNv21,
-                    i * overlayWidth,
-                    nv21,
-                    left + (basic + (i - startH)) * width,
-                    overlayWidth);
+    /**
+     * 当前线程复用的行缓存，至少 size 字节；视频帧一般固定在同一个线程上处理，稳定后不再分配
+     */
+    private static byte[] chromaRowScratch(int size) {
+        byte[] scratch = CHROMA_ROW_SCRATCH.get();
+        if (scratch == null || scratch.length < size) {
+            scratch = new byte[size];
+            CHROMA_ROW_SCRATCH.set(scratch);
+        }
+        return scratch;
+    }
+
+    /**
+     * 按行复制，src、dst 的起点是绝对下标。都是堆内存时直接 arraycopy，否则用 duplicate 做批量复制。
+     */
+    private static boolean copyPlane(ByteBuffer src, int srcStart, int srcStride, ByteBuffer dst, int dstStart,
+                                     int dstStride, int width, int height) {
+        if (width <= 0 || height <= 0) {
+            return false;
+        }
+        if (srcStart + (height - 1) * srcStride + width > src.limit()
+                || dstStart + (height - 1) * dstStride + width > dst.limit()) {
+            return false;
+        }
+        if (src.hasArray() && dst.hasArray()) {
+            byte[] srcArray = src.array();
+            byte[] dstArray = dst.array();
+            int srcIndex = src.arrayOffset() + srcStart;
+            int dstIndex = dst.arrayOffset() + dstStart;
+            for (int i = 0; i < height; i++, srcIndex += srcStride, dstIndex += dstStride) {
+                System.arraycopy(srcArray, srcIndex, dstArray, dstIndex, width);
+            }
+            return true;
+        }
+        //direct buffer：只创建两个 duplicate，逐行批量复制
+        ByteBuffer srcRow = src.duplicate();
+        ByteBuffer dstRow = dst.duplicate();
+        for (int i = 0; i < height; i++) {
+            int srcIndex = srcStart + i * srcStride;
+            srcRow.limit(srcIndex + width);
+            srcRow.position(srcIndex);
+            dstRow.position(dstStart + i * dstStride);
+            dstRow.put(srcRow);
+        }
+        return true;
+    }
+
+    /**
+     * 按行叠加，等于 transparentValue 的字节不覆盖目标。
+     */
+    private static void overlayPlane(ByteBuffer src, int srcStart, int srcStride, ByteBuffer dst, int dstStart,
+                                     int dstStride, int width, int height, byte transparentValue) {
+        if (src.hasArray() && dst.hasArray()) {
+            byte[] srcArray = src.array();
+            byte[] dstArray = dst.array();
+            for (int i = 0; i < height; i++) {
+                int srcIndex = src.arrayOffset() + srcStart + i * srcStride;
+                int dstIndex = dst.arrayOffset() + dstStart + i * dstStride;
+                for (int j = 0; j < width; j++, srcIndex++, dstIndex++) {
+                    byte value = srcArray[srcIndex];
+                    if (value != transparentValue) {
+                        dstArray[dstIndex] = value;
+                    }
+                }
+            }
+            return;
+        }
+        for (int i = 0; i < height; i++) {
+            int srcIndex = srcStart + i * srcStride;
+            int dstIndex = dstStart + i * dstStride;
+            for (int j = 0; j < width; j++, srcIndex++, dstIndex++) {
+                byte value = src.get(srcIndex);
+                if (value != transparentValue) {
+                    dst.put(dstIndex, value);
+                }
+            }
+        }
+    }
+
+    /**
+     * 从 position 开始，buffer 是否能放下 rows 行、每行 rowBytes 字节、行跨度为 stride 的平面。
+     */
+    private static boolean fits(ByteBuffer buffer, int stride, int rowBytes, int rows) {
+        if (rows <= 0 || rowBytes <= 0) {
+            return true;
         }
+        return stride >= rowBytes && (long) (rows - 1) * stride + rowBytes <= buffer.remaining();
     }
 
 }
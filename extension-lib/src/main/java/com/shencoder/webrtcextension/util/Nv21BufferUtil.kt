@@ -77,6 +77,33 @@ object Nv21BufferUtil {
         return nv21Buffer
     }
 
+    /**
+     * [Bitmap]To[AlphaNv21Overlay]，保留每个像素的 alpha，用于半透明叠图
+     * Only use when [Bitmap.getConfig] is [Bitmap.Config.ARGB_8888]
+     *
+     * 宽高为奇数时会去掉最后一列/一行。
+     *
+     * @param bitmap
+     * @param recycleBitmap is recycle [bitmap]
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun argb8888BitmapToAlphaNv21Overlay(bitmap: Bitmap, recycleBitmap: Boolean = false): AlphaNv21Overlay {
+        val config = bitmap.config
+        if (config != Bitmap.Config.ARGB_8888) {
+            throw IllegalArgumentException("Unexpected bitmap config:$config")
+        }
+        val width = bitmap.width
+        val height = bitmap.height
+        val pixels = IntArray(width * height)
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height)
+
+        if (recycleBitmap) {
+            bitmap.recycle()
+        }
+        return AlphaNv21Overlay.fromArgb(pixels, width, height)
+    }
+
     /**
      * nv21 [ByteArray] to [Nv21Buffer]
      */
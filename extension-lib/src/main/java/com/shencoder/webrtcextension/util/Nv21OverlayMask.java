@@ -0,0 +1,142 @@
+package com.shencoder.webrtcextension.util;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * 带透明数据的nv21叠图的不透明片段表。
+ * <p>
+ * 叠图数据不变时，透明部分的位置也不会变。创建时扫描一次小图，记录 Y 平面和 VU 交错平面每一行中
+ * 连续不透明的片段（值不等于 {@link NV21Util#TRANSPARENT_Y} / {@link NV21Util#TRANSPARENT_UV}），
+ * 之后每帧叠图只需要对这些片段做 {@link System#arraycopy}，不再逐字节比较。
+ * <p>
+ * 配合 {@link NV21Util#overlayNV21(byte[], int, int, int, int, byte[], int, int, Nv21OverlayMask)} 使用，
+ * 创建后不可修改，可以在多个线程间共享。
+ */
+public final class Nv21OverlayMask {
+    private final int width;
+    private final int height;
+    /**
+     * 第 row 行的片段在 {@link #yRuns} 中的下标范围为 [yRowStarts[row], yRowStarts[row + 1])，
+     * 每个片段占两个 int：起始列、长度。片段按起始列升序排列。
+     */
+    private final int[] yRowStarts;
+    private final int[] yRuns;
+    /**
+     * VU 平面的片段，格式同上，列为字节下标。
+     */
+    private final int[] vuRowStarts;
+    private final int[] vuRuns;
+
+    private Nv21OverlayMask(int width, int height, int[] yRowStarts, int[] yRuns, int[] vuRowStarts, int[] vuRuns) {
+        this.width = width;
+        this.height = height;
+        this.yRowStarts = yRowStarts;
+        this.yRuns = yRuns;
+        this.vuRowStarts = vuRowStarts;
+        this.vuRuns = vuRuns;
+    }
+
+    /**
+     * 扫描叠图数据，生成不透明片段表。
+     *
+     * @param overlayNv21   小图的nv21数据
+     * @param overlayWidth  小图的宽
+     * @param overlayHeight 小图的高
+     * @return 数据大小和宽高不匹配时返回null
+     */
+    @Nullable
+    public static Nv21OverlayMask create(@NonNull byte[] overlayNv21, int overlayWidth, int overlayHeight) {
+        if (overlayWidth <= 0 || overlayHeight <= 0 || overlayNv21.length != overlayWidth * overlayHeight * 3 / 2) {
+            return null;
+        }
+        int[] yRowStarts = new int[overlayHeight + 1];
+        int[] yRuns = scanRuns(overlayNv21, 0, overlayWidth, overlayHeight, NV21Util.TRANSPARENT_Y, yRowStarts);
+        int uvRows = overlayHeight / 2;
+        int[] vuRowStarts = new int[uvRows + 1];
+        int[] vuRuns = scanRuns(overlayNv21, overlayWidth * overlayHeight, overlayWidth, uvRows,
+                NV21Util.TRANSPARENT_UV, vuRowStarts);
+        return new Nv21OverlayMask(overlayWidth, overlayHeight, yRowStarts, yRuns, vuRowStarts, vuRuns);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * 不透明片段的总数，也就是每帧叠图时 {@link System#arraycopy} 的最大次数。
+     */
+    public int getRunCount() {
+        return (yRuns.length + vuRuns.length) / 2;
+    }
+
+    /**
+     * 把小图左边 copyWidth 宽、[rowStart, rowEnd) 行范围内的不透明片段复制到 dst。
+     *
+     * @param overlayNv21 创建 mask 时使用的小图数据
+     * @param copyWidth   叠加的宽，超出部分的片段会被截断，偶数
+     * @param rowStart    起始行（Y 平面的行），偶数
+     * @param rowEnd      结束行（不包含），偶数
+     * @param dst         目标nv21数据
+     * @param dstYStart   目标中叠图左上角 Y 数据的下标
+     * @param dstVUStart  目标中叠图左上角 VU 数据的下标
+     * @param dstStride   目标每行的字节数
+     */
+    void copyOpaqueRuns(byte[] overlayNv21, int copyWidth, int rowStart, int rowEnd, byte[] dst, int dstYStart,
+                        int dstVUStart, int dstStride) {
+        copyRuns(overlayNv21, 0, yRowStarts, yRuns, copyWidth, rowStart, rowEnd, dst, dstYStart, dstStride);
+        copyRuns(overlayNv21, width * height, vuRowStarts, vuRuns, copyWidth, rowStart / 2, rowEnd / 2, dst,
+                dstVUStart, dstStride);
+    }
+
+    private void copyRuns(byte[] src, int srcStart, int[] rowStarts, int[] runs, int copyWidth, int rowStart,
+                          int rowEnd, byte[] dst, int dstStart, int dstStride) {
+        for (int row = rowStart; row < rowEnd; row++) {
+            int srcRow = srcStart + row * width;
+            int dstRow = dstStart + row * dstStride;
+            for (int i = rowStarts[row]; i < rowStarts[row + 1]; i += 2) {
+                int start = runs[i];
+                if (start >= copyWidth) {
+                    //片段按起始列升序，后面的都在叠加范围外
+                    break;
+                }
+                int length = Math.min(runs[i + 1], copyWidth - start);
+                System.arraycopy(src, srcRow + start, dst, dstRow + start, length);
+            }
+        }
+    }
+
+    private static int[] scanRuns(byte[] src, int srcStart, int rowBytes, int rows, byte transparentValue,
+                                  int[] rowStarts) {
+        int[] runs = new int[16];
+        int count = 0;
+        for (int row = 0; row < rows; row++) {
+            rowStarts[row] = count;
+            int rowOffset = srcStart + row * rowBytes;
+            int col = 0;
+            while (col < rowBytes) {
+                if (src[rowOffset + col] == transparentValue) {
+                    col++;
+                    continue;
+                }
+                int start = col;
+                while (col < rowBytes && src[rowOffset + col] != transparentValue) {
+                    col++;
+                }
+                if (count + 2 > runs.length) {
+                    runs = Arrays.copyOf(runs, runs.length * 2);
+                }
+                runs[count++] = start;
+                runs[count++] = col - start;
+            }
+        }
+        rowStarts[rows] = count;
+        return Arrays.copyOf(runs, count);
+    }
+}
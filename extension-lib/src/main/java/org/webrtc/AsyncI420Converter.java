@@ -0,0 +1,300 @@
+/*
+ *  Copyright 2026 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.graphics.Matrix;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 用双缓冲 PBO（pixel buffer object）+ fence 异步把 RGB 纹理转成 I420 的转换器。
+ *
+ * <p>和 {@link YuvConverter} 一样，先用 shader 把 Y、U、V 三个平面打包画进一张 RGBA FBO，
+ * 区别在于 glReadPixels 读到 PBO 里、立即返回，不等 GPU 画完；下一帧提交之后再从上一个 PBO
+ * 里取数据，这时 GPU 早已画完，map 不会阻塞。代价是输出比输入晚一帧，可以用 {@link #flush()}
+ * 取出最后一帧。
+ *
+ * <p>PBO 和 fence 需要 OpenGL ES 3.0，调用前先用 {@link GlProcessingContext#isGles3Supported()} 判断。
+ * 所有方法都必须在持有 current EGLContext 的 GL 线程上调用。
+ */
+final class AsyncI420Converter {
+    private static final String TAG = "AsyncI420Converter";
+    private static final int SLOT_COUNT = 2;
+    // 上一帧的 fence 正常情况下早已 signaled，这里只是防止驱动异常时无限等待。
+    private static final long FENCE_TIMEOUT_NS = 100_000_000L;
+    // 下游（编码器等）可能同时持有几帧。
+    private static final int MAX_POOLED_BUFFERS = 4;
+
+    private static final String FRAGMENT_SHADER =
+            // 纹理坐标中 x 方向一个像素对应的偏移量。
+            "uniform vec2 xUnit;\n"
+                    // 颜色转换系数，第 4 个分量是常数项。
+                    + "uniform vec4 coeffs;\n"
+                    + "\n"
+                    + "void main() {\n"
+                    // 一个输出 RGBA 像素打包 4 个相邻的 Y（或 U/V）采样。
+                    + "  gl_FragColor.r = coeffs.a + dot(coeffs.rgb,\n"
+                    + "      sample(tc - 1.5 * xUnit).rgb);\n"
+                    + "  gl_FragColor.g = coeffs.a + dot(coeffs.rgb,\n"
+                    + "      sample(tc - 0.5 * xUnit).rgb);\n"
+                    + "  gl_FragColor.b = coeffs.a + dot(coeffs.rgb,\n"
+                    + "      sample(tc + 0.5 * xUnit).rgb);\n"
+                    + "  gl_FragColor.a = coeffs.a + dot(coeffs.rgb,\n"
+                    + "      sample(tc + 1.5 * xUnit).rgb);\n"
+                    + "}\n";
+
+    private static final class ShaderCallbacks implements GlGenericDrawer.ShaderCallbacks {
+        // BT.601 系数，和 YuvConverter 保持一致。
+        private static final float[] Y_COEFFS = new float[]{0.256788f, 0.504129f, 0.0979059f, 0.0627451f};
+        private static final float[] U_COEFFS = new float[]{-0.148223f, -0.290993f, 0.439216f, 0.501961f};
+        private static final float[] V_COEFFS = new float[]{0.439216f, -0.367788f, -0.0714274f, 0.501961f};
+
+        private int xUnitLocation;
+        private int coeffsLocation;
+        private float[] coeffs = Y_COEFFS;
+        private float stepSize = 1f;
+
+        void setPlaneY() {
+            coeffs = Y_COEFFS;
+            stepSize = 1f;
+        }
+
+        void setPlaneU() {
+            coeffs = U_COEFFS;
+            stepSize = 2f;
+        }
+
+        void setPlaneV() {
+            coeffs = V_COEFFS;
+            stepSize = 2f;
+        }
+
+        @Override
+        public void onNewShader(GlShader shader) {
+            xUnitLocation = shader.getUniformLocation("xUnit");
+            coeffsLocation = shader.getUniformLocation("coeffs");
+        }
+
+        @Override
+        public void onPrepareShader(GlShader shader, float[] texMatrix, int frameWidth, int frameHeight,
+                                    int viewportWidth, int viewportHeight) {
+            GLES20.glUniform4fv(coeffsLocation, 1, coeffs, 0);
+            // texMatrix * (1, 0, 0, 0) / (width / stepSize)，OpenGL 矩阵按列存储。
+            GLES20.glUniform2f(xUnitLocation, stepSize * texMatrix[0] / frameWidth,
+                    stepSize * texMatrix[1] / frameWidth);
+        }
+    }
+
+    /**
+     * 一个 PBO 以及正在读回的那一帧的信息。
+     */
+    private static final class Slot {
+        int pboId;
+        int capacity;
+        long fence;
+        boolean pending;
+        int width;
+        int height;
+        int stride;
+        int size;
+        long timestampNs;
+    }
+
+    // glReadPixels 从最下面一行开始读，先上下翻转，读回的行顺序才是 I420 的从上到下。
+    private static final float[] RENDER_MATRIX = createRenderMatrix();
+
+    private final ShaderCallbacks shaderCallbacks = new ShaderCallbacks();
+    private final GlGenericDrawer drawer = new GlGenericDrawer(FRAGMENT_SHADER, shaderCallbacks);
+    private final GlTextureFrameBuffer frameBuffer = new GlTextureFrameBuffer(GLES20.GL_RGBA);
+    private final Slot[] slots = new Slot[SLOT_COUNT];
+    // 输出帧的内存，下游 release 后复用，不再每帧分配 direct buffer。
+    private final I420BufferPool bufferPool = new I420BufferPool(MAX_POOLED_BUFFERS);
+    private int nextSlot;
+
+    AsyncI420Converter() {
+        final int[] pboIds = new int[SLOT_COUNT];
+        GLES20.glGenBuffers(SLOT_COUNT, pboIds, 0);
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            slots[i] = new Slot();
+            slots[i].pboId = pboIds[i];
+        }
+        GlUtil.checkNoGLES2Error("AsyncI420Converter.init");
+    }
+
+    /**
+     * 提交一帧 RGB 纹理的异步读回，并取出上一次提交的帧。
+     *
+     * <p>返回之后输入纹理就可以复用：读回的数据已经画进内部 FBO，后续 GL 命令会按顺序执行。
+     *
+     * @param textureId GL_TEXTURE_2D 的 RGB 纹理，原点在左下角（FBO 渲染结果）
+     * @return 上一次提交的帧，没有时返回 null；调用方负责 release
+     */
+    @Nullable
+    VideoFrame convert(int textureId, int width, int height, long timestampNs) {
+        final Slot slot = slots[nextSlot];
+        // 正常情况下这个 slot 已经在上一次 convert 中取走；flush 之后也是空的。
+        VideoFrame dropped = collect(slot);
+        if (dropped != null) {
+            dropped.release();
+        }
+        submit(slot, textureId, width, height, timestampNs);
+        nextSlot = (nextSlot + 1) % SLOT_COUNT;
+        return collect(slots[nextSlot]);
+    }
+
+    /**
+     * 取出还在读回中的帧，必要时等待 GPU 完成。
+     */
+    @Nullable
+    VideoFrame flush() {
+        // 只有上一次提交的 slot 可能还在读回中。
+        final int lastSlot = (nextSlot + SLOT_COUNT - 1) % SLOT_COUNT;
+        return collect(slots[lastSlot]);
+    }
+
+    /**
+     * 是否还有已提交、尚未取出的帧。
+     */
+    boolean hasPendingFrame() {
+        for (Slot slot : slots) {
+            if (slot.pending) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void release() {
+        final int[] pboIds = new int[SLOT_COUNT];
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            final Slot slot = slots[i];
+            if (slot.pending) {
+                GLES30.glDeleteSync(slot.fence);
+                slot.pending = false;
+            }
+            pboIds[i] = slot.pboId;
+        }
+        GLES20.glDeleteBuffers(SLOT_COUNT, pboIds, 0);
+        drawer.release();
+        frameBuffer.release();
+        bufferPool.release();
+    }
+
+    private void submit(Slot slot, int textureId, int width, int height, long timestampNs) {
+        // 和 YuvConverter 相同的内存布局：Y 平面在上，U、V 每行左右各占一半、交替排列。
+        final int stride = ((width + 7) / 8) * 8;
+        final int uvHeight = (height + 1) / 2;
+        final int totalHeight = height + uvHeight;
+        final int viewportWidth = stride / 4;
+        final int size = stride * totalHeight;
+
+        frameBuffer.setSize(viewportWidth, totalHeight);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBuffer.getFrameBufferId());
+        GLES20.glDisable(GLES20.GL_BLEND);
+
+        shaderCallbacks.setPlaneY();
+        drawer.drawRgb(textureId, RENDER_MATRIX, width, height, 0, 0, viewportWidth, height);
+        shaderCallbacks.setPlaneU();
+        drawer.drawRgb(textureId, RENDER_MATRIX, width, height, 0, height, viewportWidth / 2, uvHeight);
+        shaderCallbacks.setPlaneV();
+        drawer.drawRgb(textureId, RENDER_MATRIX, width, height, viewportWidth / 2, height, viewportWidth / 2,
+                uvHeight);
+
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, slot.pboId);
+        if (slot.capacity < size) {
+            GLES30.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, size, null, GLES30.GL_STREAM_READ);
+            slot.capacity = size;
+        }
+        // 目标是 PBO 时最后一个参数是 PBO 内的偏移量，调用立即返回，不会等待 GPU。
+        GLES30.glReadPixels(0, 0, viewportWidth, totalHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, 0);
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        slot.fence = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        // 确保命令提交给 GPU，下一帧再取数据时 fence 才可能已经 signaled。
+        GLES20.glFlush();
+        GlUtil.checkNoGLES2Error("AsyncI420Converter.submit");
+
+        slot.pending = true;
+        slot.width = width;
+        slot.height = height;
+        slot.stride = stride;
+        slot.size = size;
+        slot.timestampNs = timestampNs;
+    }
+
+    @Nullable
+    private VideoFrame collect(Slot slot) {
+        if (!slot.pending) {
+            return null;
+        }
+        slot.pending = false;
+        final int waitResult = GLES30.glClientWaitSync(slot.fence, GLES30.GL_SYNC_FLUSH_COMMANDS_BIT,
+                FENCE_TIMEOUT_NS);
+        GLES30.glDeleteSync(slot.fence);
+        slot.fence = 0;
+        if (waitResult == GLES30.GL_TIMEOUT_EXPIRED || waitResult == GLES30.GL_WAIT_FAILED) {
+            Logging.w(TAG, "Readback fence not signaled, dropping frame. result: " + waitResult);
+            return null;
+        }
+
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, slot.pboId);
+        final ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER, 0, slot.size,
+                GLES30.GL_MAP_READ_BIT);
+        if (mapped == null) {
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+            Logging.w(TAG, "glMapBufferRange failed, dropping frame.");
+            return null;
+        }
+        final JavaI420Buffer buffer = bufferPool.acquire(slot.width, slot.height);
+        copyI420(mapped, slot.width, slot.height, slot.stride, buffer);
+        GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        GlUtil.checkNoGLES2Error("AsyncI420Converter.collect");
+
+        return new VideoFrame(buffer, 0 /* rotation */, slot.timestampNs);
+    }
+
+    /**
+     * 把 PBO 里的数据按平面复制到池里取出的紧凑 I420 buffer。
+     */
+    private static void copyI420(ByteBuffer mapped, int width, int height, int stride, JavaI420Buffer dst) {
+        final int uvHeight = (height + 1) / 2;
+        final int uPos = stride * height;
+        // U、V 的行交替排列，所以 V 从第一行 U 的后半部分开始。
+        final int vPos = uPos + stride / 2;
+        final int uvSize = stride * (uvHeight - 1) + stride / 2;
+
+        mapped.position(0);
+        mapped.limit(uPos);
+        final ByteBuffer dataY = mapped.slice();
+
+        mapped.position(uPos);
+        mapped.limit(uPos + uvSize);
+        final ByteBuffer dataU = mapped.slice();
+
+        mapped.position(vPos);
+        mapped.limit(vPos + uvSize);
+        final ByteBuffer dataV = mapped.slice();
+
+        YuvHelper.I420Copy(dataY, stride, dataU, stride, dataV, stride,
+                dst.getDataY(), dst.getStrideY(), dst.getDataU(), dst.getStrideU(), dst.getDataV(), dst.getStrideV(),
+                width, height);
+    }
+
+    private static float[] createRenderMatrix() {
+        final Matrix matrix = new Matrix();
+        matrix.preTranslate(0.5f, 0.5f);
+        matrix.preScale(1f, -1f);
+        matrix.preTranslate(-0.5f, -0.5f);
+        return RendererCommon.convertMatrixFromAndroidGraphicsMatrix(matrix);
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ *  Copyright 2026 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.ColorSpace;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.opengl.GLES20;
+import android.os.Build;
+
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * 把 Bitmap 中的若干矩形区域用 glTexSubImage2D 上传到当前绑定的 GL_TEXTURE_2D。
+ *
+ * <p>GLES2 没有 GL_UNPACK_ROW_LENGTH，不能直接从整张 Bitmap 中间取一块上传；Bitmap 也只能
+ * 整张 copyPixelsToBuffer。所以先把所有脏区域的外接矩形用 Canvas 原样画到复用的小 Bitmap 上，
+ * 只拷贝这一块像素，再把脏区域逐行打包成紧凑数据上传；外接矩形接近整张时直接拷贝整张。
+ * 只支持 ARGB_8888，其内存布局正好是 premultiplied 的 RGBA 字节序，和 GLUtils.texImage2D 上传的结果一致。
+ *
+ * <p>目标纹理必须是 RGBA/UNSIGNED_BYTE：图集始终如此，单张纹理要求上次整张上传时 Bitmap 也是 ARGB_8888，
+ * 否则 glTexSubImage2D 会产生 GL_INVALID_OPERATION。
+ *
+ * <p>必须在 GL 线程上调用，且 GL_UNPACK_ALIGNMENT 已设为 1。
+ */
+final class BitmapRegionUploader {
+    private static final int BYTES_PER_PIXEL = 4;
+
+    // 原样复制像素：不混合、不过滤。
+    private final Paint copyPaint = new Paint();
+    private final Rect bounds = new Rect();
+    private final Rect scratchRect = new Rect();
+
+    @Nullable
+    private ByteBuffer pixels;
+    @Nullable
+    private ByteBuffer packedRegion;
+    // 外接矩形的像素副本，尺寸变化时 reconfigure 复用内存。
+    @Nullable
+    private Bitmap scratch;
+    @Nullable
+    private Canvas scratchCanvas;
+
+    BitmapRegionUploader() {
+        copyPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+        copyPaint.setFilterBitmap(false);
+    }
+
+    /**
+     * @param rects 已经裁剪到 Bitmap 范围内的区域
+     * @param dstX  Bitmap 左上角在目标纹理中的 x
+     * @param dstY  Bitmap 左上角在目标纹理中的 y
+     * @return Bitmap 格式不支持局部上传时返回 false，调用方需要整张上传
+     * @throws RuntimeException 上传产生 GL 错误，目标纹理内容不可信，调用方需要丢弃后整张上传
+     */
+    boolean upload(Bitmap bitmap, Rect[] rects, int count, int dstX, int dstY) {
+        if (bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+            return false;
+        }
+        if (count == 0) {
+            return true;
+        }
+        bounds.set(rects[0]);
+        for (int i = 1; i < count; i++) {
+            bounds.union(rects[i]);
+        }
+        // pixels 中像素的来源：外接矩形副本，或者整张 Bitmap
+        final int originX;
+        final int originY;
+        final int rowBytes;
+        final long boundsArea = (long) bounds.width() * bounds.height();
+        if (bitmap.isPremultiplied() && boundsArea * 2 < (long) bitmap.getWidth() * bitmap.getHeight()) {
+            copyBounds(bitmap);
+            originX = bounds.left;
+            originY = bounds.top;
+            rowBytes = bounds.width() * BYTES_PER_PIXEL;
+        } else {
+            rowBytes = bitmap.getRowBytes();
+            pixels = ensureCapacity(pixels, rowBytes * bitmap.getHeight());
+            pixels.clear();
+            bitmap.copyPixelsToBuffer(pixels);
+            originX = 0;
+            originY = 0;
+        }
+
+        for (int i = 0; i < count; i++) {
+            final Rect rect = rects[i];
+            final int regionRowBytes = rect.width() * BYTES_PER_PIXEL;
+            final int left = rect.left - originX;
+            final ByteBuffer source;
+            if (left == 0 && regionRowBytes == rowBytes) {
+                // 整行变化（例如横幅文字区域）时可以直接从拷贝的像素上传，不用再打包。
+                pixels.clear();
+                pixels.position((rect.top - originY) * rowBytes);
+                source = pixels;
+            } else {
+                packedRegion = ensureCapacity(packedRegion, regionRowBytes * rect.height());
+                packedRegion.clear();
+                for (int y = rect.top; y < rect.bottom; y++) {
+                    final int offset = (y - originY) * rowBytes + left * BYTES_PER_PIXEL;
+                    pixels.clear();
+                    pixels.position(offset);
+                    pixels.limit(offset + regionRowBytes);
+                    packedRegion.put(pixels);
+                }
+                packedRegion.flip();
+                source = packedRegion;
+            }
+            GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, dstX + rect.left, dstY + rect.top,
+                    rect.width(), rect.height(), GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, source);
+        }
+        GlUtil.checkNoGLES2Error("BitmapRegionUploader.upload");
+        return true;
+    }
+
+    /**
+     * 把 bitmap 中 {@link #bounds} 范围的像素复制到 {@link #pixels}，行宽为 bounds.width() * 4。
+     */
+    private void copyBounds(Bitmap bitmap) {
+        final int width = bounds.width();
+        final int height = bounds.height();
+        final int byteCount = width * height * BYTES_PER_PIXEL;
+        if (scratch == null || scratch.getAllocationByteCount() < byteCount || !sameColorSpace(scratch, bitmap)) {
+            if (scratch != null) {
+                scratch.recycle();
+            }
+            scratch = createScratch(bitmap, width, height);
+            scratchCanvas = new Canvas(scratch);
+        } else if (scratch.getWidth() != width || scratch.getHeight() != height) {
+            scratch.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+            scratchCanvas.setBitmap(scratch);
+        }
+        scratchRect.set(0, 0, width, height);
+        scratchCanvas.drawBitmap(bitmap, bounds, scratchRect, copyPaint);
+        pixels = ensureCapacity(pixels, byteCount);
+        pixels.clear();
+        scratch.copyPixelsToBuffer(pixels);
+    }
+
+    private static Bitmap createScratch(Bitmap bitmap, int width, int height) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && bitmap.getColorSpace() != null) {
+            // 色彩空间一致时 Canvas 不做转换，复制结果和原始像素完全相同。
+            return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888, true, bitmap.getColorSpace());
+        }
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    private static boolean sameColorSpace(Bitmap a, Bitmap b) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            return true;
+        }
+        final ColorSpace colorSpace = a.getColorSpace();
+        return colorSpace == null ? b.getColorSpace() == null : colorSpace.equals(b.getColorSpace());
+    }
+
+    private static ByteBuffer ensureCapacity(@Nullable ByteBuffer buffer, int capacity) {
+        if (buffer != null && buffer.capacity() >= capacity) {
+            return buffer;
+        }
+        return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+    }
+}
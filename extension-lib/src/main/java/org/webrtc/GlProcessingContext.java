@@ -0,0 +1,305 @@
+/*
+ *  Copyright 2026 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.opengl.GLES20;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 多个 {@link WatermarkVideoProcessor} 共用的 GL 处理环境：一个渲染线程、一个离屏 EGLContext，
+ * 以及共用的 drawer、shader 和水印纹理缓存。
+ *
+ * <p>多摄像头、屏幕共享 + 摄像头这类场景里，每个处理器各开一个 GL 线程和 EGLContext 会互相争抢 GPU。
+ * 把它们挂到同一个 GlProcessingContext 上之后，各路帧在同一个线程上按轮转（round-robin）顺序处理，
+ * 每次只处理一路的一帧，帧率高的一路不会饿死其它路；同一个 Bitmap 在多路中只上传一次纹理。
+ *
+ * <p>调用 {@link #release()} 之后，要等所有挂在上面的处理器都 dispose、并且它们送出去的帧都被
+ * release，才会真正销毁 EGL 资源并退出线程。
+ */
+public final class GlProcessingContext {
+    private static final String TAG = "GlProcessingContext";
+
+    // 水印片元 shader：从水印纹理中采样当前像素，并乘上外部传入的整体透明度 alpha。
+    private static final String WATERMARK_FRAGMENT_SHADER =
+            "uniform float alpha;\n"
+                    + "void main() {\n"
+                    + "  gl_FragColor = sample(tc) * alpha;\n"
+                    + "}\n";
+
+    private static final class WatermarkShaderCallbacks implements GlGenericDrawer.ShaderCallbacks {
+        private int alphaLocation;
+        private float alpha = 1f;
+
+        void setAlpha(float alpha) {
+            this.alpha = alpha;
+        }
+
+        @Override
+        public void onNewShader(GlShader shader) {
+            // shader 第一次创建或切换输入类型时拿 uniform 位置，避免每帧重复查找。
+            alphaLocation = shader.getUniformLocation("alpha");
+        }
+
+        @Override
+        public void onPrepareShader(GlShader shader, float[] texMatrix, int frameWidth,
+                                    int frameHeight, int viewportWidth, int viewportHeight) {
+            GLES20.glUniform1f(alphaLocation, alpha);
+        }
+    }
+
+    // 所有 OpenGL 调用都必须在同一个有 current EGLContext 的线程上执行。
+    private final HandlerThread renderThread;
+    private final Handler renderHandler;
+    private final AtomicBoolean released = new AtomicBoolean(false);
+
+    // 有帧等待处理的处理器，按轮转顺序排队；由 scheduleLock 保护。
+    private final ArrayDeque<WatermarkVideoProcessor> readyProcessors = new ArrayDeque<>();
+    private final Object scheduleLock = new Object();
+    private final Runnable schedulerRunnable = this::runScheduler;
+    private boolean schedulerPosted;
+
+    // 以下字段只在 GL 线程上访问。
+    // 能创建 ES 3.0 context 时用 gles3Context，否则退回 EglBase 的 ES 2.0 context，两者只有一个非空。
+    @Nullable
+    private Gles3PbufferContext gles3Context;
+    @Nullable
+    private EglBase eglBase;
+    @Nullable
+    private VideoFrameDrawer frameDrawer;
+    @Nullable
+    private GlRectDrawer frameGlDrawer;
+    @Nullable
+    private WatermarkShaderCallbacks watermarkShaderCallbacks;
+    @Nullable
+    private GlGenericDrawer watermarkDrawer;
+    @Nullable
+    private YuvConverter yuvConverter;
+    @Nullable
+    private TexturedQuadBatch quadBatch;
+    // PBO、fence 等 ES 3.0 功能只在 gles3Context 上启用。
+    private boolean gles3Supported;
+    private final WatermarkTextureCache watermarkTextures = new WatermarkTextureCache();
+    private int attachedProcessors;
+    private boolean releaseRequested;
+    private boolean glReleased;
+
+    public static GlProcessingContext create(EglBase.Context sharedContext) {
+        return create(sharedContext, "GlProcessingContext");
+    }
+
+    public static GlProcessingContext create(EglBase.Context sharedContext, String threadName) {
+        if (sharedContext == null) {
+            throw new IllegalArgumentException("sharedContext must not be null.");
+        }
+        return new GlProcessingContext(sharedContext, threadName);
+    }
+
+    private GlProcessingContext(EglBase.Context sharedContext, String threadName) {
+        renderThread = new HandlerThread(threadName);
+        renderThread.start();
+        renderHandler = new Handler(renderThread.getLooper());
+        try {
+            ThreadUtils.invokeAtFrontUninterruptibly(renderHandler, () -> initGl(sharedContext));
+        } catch (RuntimeException e) {
+            renderThread.quit();
+            throw e;
+        }
+    }
+
+    /**
+     * 释放共用的 GL/EGL 资源。已经挂上的处理器可以继续工作，等它们全部 dispose 后才真正销毁。
+     */
+    public void release() {
+        if (!released.compareAndSet(false, true)) {
+            return;
+        }
+        renderHandler.post(() -> {
+            releaseRequested = true;
+            maybeReleaseGlResources();
+        });
+    }
+
+    Handler getHandler() {
+        return renderHandler;
+    }
+
+    /**
+     * 处理器创建时挂到本环境上。
+     */
+    void attach() {
+        ThreadUtils.invokeAtFrontUninterruptibly(renderHandler, () -> {
+            if (releaseRequested || glReleased) {
+                throw new IllegalStateException("GlProcessingContext has been released.");
+            }
+            attachedProcessors++;
+        });
+    }
+
+    /**
+     * 处理器的 GL 资源全部释放后从本环境上摘下，必须在 GL 线程上调用。
+     */
+    void detach() {
+        attachedProcessors--;
+        maybeReleaseGlResources();
+    }
+
+    /**
+     * 处理器有新帧排队时调用。已经在轮转队列里的处理器不会重复排队。
+     */
+    void scheduleFrame(WatermarkVideoProcessor processor) {
+        synchronized (scheduleLock) {
+            if (!readyProcessors.contains(processor)) {
+                readyProcessors.addLast(processor);
+            }
+            if (schedulerPosted) {
+                return;
+            }
+            schedulerPosted = true;
+        }
+        renderHandler.post(schedulerRunnable);
+    }
+
+    /**
+     * 每次只处理队首处理器的一帧，还有帧的话排回队尾，然后重新 post 自己，
+     * 让其它消息（纹理回收、配置变更）有机会穿插执行。
+     */
+    private void runScheduler() {
+        final WatermarkVideoProcessor processor;
+        synchronized (scheduleLock) {
+            processor = readyProcessors.pollFirst();
+            if (processor == null) {
+                schedulerPosted = false;
+                return;
+            }
+        }
+        final boolean hasMoreFrames = processor.processPendingFrame();
+        synchronized (scheduleLock) {
+            if (hasMoreFrames && !readyProcessors.contains(processor)) {
+                readyProcessors.addLast(processor);
+            }
+            if (readyProcessors.isEmpty()) {
+                schedulerPosted = false;
+                return;
+            }
+        }
+        renderHandler.post(schedulerRunnable);
+    }
+
+    VideoFrameDrawer getFrameDrawer() {
+        return frameDrawer;
+    }
+
+    GlRectDrawer getFrameGlDrawer() {
+        return frameGlDrawer;
+    }
+
+    /**
+     * 用共用的 GlGenericDrawer 画一张水印纹理。
+     */
+    void drawWatermark(int textureId, float[] texMatrix, int textureWidth, int textureHeight,
+                       int viewportX, int viewportY, int viewportWidth, int viewportHeight, float alpha) {
+        if (watermarkShaderCallbacks == null || watermarkDrawer == null) {
+            return;
+        }
+        watermarkShaderCallbacks.setAlpha(alpha);
+        watermarkDrawer.drawRgb(textureId, texMatrix, textureWidth, textureHeight, viewportX, viewportY,
+                viewportWidth, viewportHeight);
+    }
+
+    YuvConverter getYuvConverter() {
+        return yuvConverter;
+    }
+
+    TexturedQuadBatch getQuadBatch() {
+        if (quadBatch == null) {
+            quadBatch = new TexturedQuadBatch();
+        }
+        return quadBatch;
+    }
+
+    WatermarkTextureCache getWatermarkTextures() {
+        return watermarkTextures;
+    }
+
+    /**
+     * 当前 EGLContext 是否支持 OpenGL ES 3.0（PBO、fence sync）。
+     */
+    boolean isGles3Supported() {
+        return gles3Supported;
+    }
+
+    /**
+     * 创建一个和外部共享 context 的离屏 pbuffer surface。这样既能访问输入纹理，又不会直接画到屏幕上。
+     * 优先创建 ES 3.0 context，失败时退回 ES 2.0，此时不支持 PBO 异步读回和 GPU 计时。
+     */
+    private void initGl(EglBase.Context sharedContext) {
+        gles3Context = Gles3PbufferContext.create(sharedContext);
+        if (gles3Context != null) {
+            gles3Context.makeCurrent();
+        } else {
+            eglBase = EglBase.create(sharedContext, EglBase.CONFIG_PIXEL_BUFFER);
+            eglBase.createDummyPbufferSurface();
+            eglBase.makeCurrent();
+        }
+        gles3Supported = gles3Context != null;
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+
+        frameDrawer = new VideoFrameDrawer();
+        frameGlDrawer = new GlRectDrawer();
+        watermarkShaderCallbacks = new WatermarkShaderCallbacks();
+        watermarkDrawer = new GlGenericDrawer(WATERMARK_FRAGMENT_SHADER, watermarkShaderCallbacks);
+        yuvConverter = new YuvConverter();
+    }
+
+    private void maybeReleaseGlResources() {
+        // 只有 release 已请求，并且所有处理器都已经摘下后，才能真正销毁 EGL/GL 资源。
+        if (!releaseRequested || attachedProcessors != 0 || glReleased) {
+            return;
+        }
+        glReleased = true;
+        Logging.d(TAG, "Releasing GL resources.");
+        watermarkTextures.releaseAll();
+        if (quadBatch != null) {
+            quadBatch.release();
+            quadBatch = null;
+        }
+        if (watermarkDrawer != null) {
+            watermarkDrawer.release();
+            watermarkDrawer = null;
+        }
+        if (frameGlDrawer != null) {
+            frameGlDrawer.release();
+            frameGlDrawer = null;
+        }
+        if (frameDrawer != null) {
+            frameDrawer.release();
+            frameDrawer = null;
+        }
+        if (yuvConverter != null) {
+            yuvConverter.release();
+            yuvConverter = null;
+        }
+        if (gles3Context != null) {
+            gles3Context.detachCurrent();
+            gles3Context.release();
+            gles3Context = null;
+        }
+        if (eglBase != null) {
+            eglBase.detachCurrent();
+            eglBase.release();
+            eglBase = null;
+        }
+        renderThread.quit();
+    }
+}
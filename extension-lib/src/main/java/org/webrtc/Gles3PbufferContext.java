@@ -0,0 +1,122 @@
+/*
+ *  Copyright 2026 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLSurface;
+
+import androidx.annotation.Nullable;
+
+/**
+ * 带 1x1 pbuffer surface 的 OpenGL ES 3.0 EGLContext。
+ *
+ * <p>{@link EglBase#create} 固定请求 ES 2.0 context，在上面调用 PBO、fence 等 ES 3.0 接口属于未定义行为，
+ * 所以需要这些功能时直接用 EGL14 创建 ES 3.0 context，和外部 context 共享纹理。
+ * 所有方法都必须在同一个线程上调用。
+ */
+final class Gles3PbufferContext {
+    private static final String TAG = "Gles3PbufferContext";
+    // EGL_KHR_create_context 中定义，EGL14 没有这个常量。
+    private static final int EGL_OPENGL_ES3_BIT_KHR = 0x40;
+
+    private static final int[] CONFIG_ATTRIBUTES = {
+            EGL14.EGL_RED_SIZE, 8,
+            EGL14.EGL_GREEN_SIZE, 8,
+            EGL14.EGL_BLUE_SIZE, 8,
+            EGL14.EGL_RENDERABLE_TYPE, EGL_OPENGL_ES3_BIT_KHR,
+            EGL14.EGL_SURFACE_TYPE, EGL14.EGL_PBUFFER_BIT,
+            EGL14.EGL_NONE
+    };
+
+    private final EGLDisplay eglDisplay;
+    private EGLContext eglContext;
+    private EGLSurface eglSurface;
+
+    private Gles3PbufferContext(EGLDisplay eglDisplay, EGLContext eglContext, EGLSurface eglSurface) {
+        this.eglDisplay = eglDisplay;
+        this.eglContext = eglContext;
+        this.eglSurface = eglSurface;
+    }
+
+    /**
+     * @return 外部 context 不是 EGL14 的，或者设备不支持 ES 3.0 时返回 null，调用方退回 {@link EglBase}
+     */
+    @Nullable
+    static Gles3PbufferContext create(EglBase.Context sharedContext) {
+        if (!(sharedContext instanceof EglBase14.Context)) {
+            return null;
+        }
+        final EGLContext rawSharedContext = ((EglBase14.Context) sharedContext).getRawContext();
+        final EGLDisplay display = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        final int[] version = new int[2];
+        if (display == EGL14.EGL_NO_DISPLAY || !EGL14.eglInitialize(display, version, 0, version, 1)) {
+            Logging.w(TAG, "Unable to initialize EGL14 display: 0x" + Integer.toHexString(EGL14.eglGetError()));
+            return null;
+        }
+        final EGLConfig[] configs = new EGLConfig[1];
+        final int[] numConfigs = new int[1];
+        if (!EGL14.eglChooseConfig(display, CONFIG_ATTRIBUTES, 0, configs, 0, configs.length, numConfigs, 0)
+                || numConfigs[0] <= 0 || configs[0] == null) {
+            Logging.w(TAG, "No EGL config supports OpenGL ES 3.0.");
+            EGL14.eglTerminate(display);
+            return null;
+        }
+        final int[] contextAttributes = {EGL14.EGL_CONTEXT_CLIENT_VERSION, 3, EGL14.EGL_NONE};
+        final EGLContext context;
+        // 和 EglBase14 一样，部分驱动并发创建 context 会出错。
+        synchronized (EglBase.lock) {
+            context = EGL14.eglCreateContext(display, configs[0], rawSharedContext, contextAttributes, 0);
+        }
+        if (context == null || context == EGL14.EGL_NO_CONTEXT) {
+            Logging.w(TAG, "Failed to create OpenGL ES 3.0 context: 0x" + Integer.toHexString(EGL14.eglGetError()));
+            EGL14.eglTerminate(display);
+            return null;
+        }
+        final int[] surfaceAttributes = {EGL14.EGL_WIDTH, 1, EGL14.EGL_HEIGHT, 1, EGL14.EGL_NONE};
+        final EGLSurface surface = EGL14.eglCreatePbufferSurface(display, configs[0], surfaceAttributes, 0);
+        if (surface == null || surface == EGL14.EGL_NO_SURFACE) {
+            Logging.w(TAG, "Failed to create pbuffer surface: 0x" + Integer.toHexString(EGL14.eglGetError()));
+            EGL14.eglDestroyContext(display, context);
+            EGL14.eglTerminate(display);
+            return null;
+        }
+        return new Gles3PbufferContext(display, context, surface);
+    }
+
+    void makeCurrent() {
+        synchronized (EglBase.lock) {
+            if (!EGL14.eglMakeCurrent(eglDisplay, eglSurface, eglSurface, eglContext)) {
+                throw new RuntimeException("eglMakeCurrent failed: 0x" + Integer.toHexString(EGL14.eglGetError()));
+            }
+        }
+    }
+
+    void detachCurrent() {
+        synchronized (EglBase.lock) {
+            if (!EGL14.eglMakeCurrent(eglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE,
+                    EGL14.EGL_NO_CONTEXT)) {
+                throw new RuntimeException("eglDetachCurrent failed: 0x" + Integer.toHexString(EGL14.eglGetError()));
+            }
+        }
+    }
+
+    void release() {
+        if (eglContext == EGL14.EGL_NO_CONTEXT) {
+            return;
+        }
+        EGL14.eglDestroySurface(eglDisplay, eglSurface);
+        EGL14.eglDestroyContext(eglDisplay, eglContext);
+        EGL14.eglReleaseThread();
+        EGL14.eglTerminate(eglDisplay);
+        eglSurface = EGL14.EGL_NO_SURFACE;
+        eglContext = EGL14.EGL_NO_CONTEXT;
+    }
+}
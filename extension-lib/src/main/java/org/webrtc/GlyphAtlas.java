@@ -0,0 +1,192 @@
+/*
+ *  Copyright 2026 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+import android.util.SparseIntArray;
+
+import java.util.Calendar;
+
+/**
+ * {@link TextWatermark} 的字形图集：创建时把模板可能用到的所有字符光栅化一次并上传成纹理，
+ * 之后每帧只生成文字、排版成四边形，通过 {@link TexturedQuadBatch} 一次画完。
+ *
+ * <p>所有方法都必须在持有 current EGLContext 的 GL 线程上调用。
+ */
+final class GlyphAtlas {
+    // 字形之间留出透明间隔，避免线性采样时串到隔壁字形。
+    private static final int PADDING = 2;
+    // 字形格子在墨迹范围外再留出的像素，抗锯齿的边缘可能超出 getTextBounds 的整数范围。
+    private static final int INK_PADDING = 1;
+    private static final int MAX_ROW_WIDTH = 1024;
+
+    private final TextWatermark watermark;
+    // char -> 字形下标，不会对 char 装箱。
+    private final SparseIntArray glyphIndices = new SparseIntArray();
+    private final float[] advances;
+    // 字形格子左边相对笔位置（基线原点）的偏移，墨迹超出原点左侧（例如斜体）时为负数。
+    private final int[] cellOffsetX;
+    private final float[] u0;
+    private final float[] v0;
+    private final float[] u1;
+    private final float[] v1;
+    private final int[] cellWidths;
+    private final int cellHeight;
+    // 排版用的行高（ascent 到 descent），锚点按它计算，不受个别字形墨迹超出的影响。
+    private final int lineHeight;
+    // 字形格子顶部相对行顶部的偏移，墨迹超出 ascent 时为负数。
+    private final float cellOffsetY;
+    private final int textureId;
+    // 每帧格式化文字用的缓冲区和日历，只在 GL 线程上使用。
+    private final char[] text;
+    private final Calendar calendar = Calendar.getInstance();
+    private long frameIndex;
+
+    GlyphAtlas(TextWatermark watermark) {
+        this.watermark = watermark;
+        this.text = new char[watermark.maxLength];
+
+        final Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        paint.setTextSize(watermark.textSizePx);
+        paint.setColor(watermark.color);
+        if (watermark.typeface != null) {
+            paint.setTypeface(watermark.typeface);
+        }
+        final Paint.FontMetrics fontMetrics = paint.getFontMetrics();
+        lineHeight = (int) Math.ceil(fontMetrics.descent - fontMetrics.ascent);
+
+        final String chars = watermark.glyphChars;
+        final int glyphCount = chars.length();
+        advances = new float[glyphCount];
+        cellOffsetX = new int[glyphCount];
+        u0 = new float[glyphCount];
+        v0 = new float[glyphCount];
+        u1 = new float[glyphCount];
+        v1 = new float[glyphCount];
+        cellWidths = new int[glyphCount];
+        final int[] cellX = new int[glyphCount];
+        final int[] glyphOriginX = new int[glyphCount];
+        final int[] cellY = new int[glyphCount];
+
+        // 格子按墨迹范围（getTextBounds）和 advance 的并集确定，斜体、部分数字的墨迹会超出 advance。
+        final Rect inkBounds = new Rect();
+        float inkTop = fontMetrics.ascent;
+        float inkBottom = fontMetrics.descent;
+        // 数字统一使用最宽数字的 advance（等宽数字），时间、帧号变化时文字宽度不变，
+        // 右对齐、居中的文字不会每帧抖动。
+        float digitAdvance = 0f;
+        for (int i = 0; i < glyphCount; i++) {
+            advances[i] = paint.measureText(chars, i, i + 1);
+            if (isDigit(chars.charAt(i))) {
+                digitAdvance = Math.max(digitAdvance, advances[i]);
+            }
+        }
+        for (int i = 0; i < glyphCount; i++) {
+            if (isDigit(chars.charAt(i))) {
+                // 数字在等宽的格子里居中，格子偏移同样计入。
+                cellOffsetX[i] = Math.round((digitAdvance - advances[i]) / 2f);
+                advances[i] = digitAdvance;
+            }
+            paint.getTextBounds(chars, i, i + 1, inkBounds);
+            final int glyphOffset = cellOffsetX[i];
+            final int left = Math.min(0, glyphOffset + inkBounds.left) - INK_PADDING;
+            final int right = Math.max((int) Math.ceil(advances[i]), glyphOffset + inkBounds.right) + INK_PADDING;
+            cellOffsetX[i] = left;
+            cellWidths[i] = right - left;
+            // 字形在格子里的绘制原点
+            glyphOriginX[i] = glyphOffset - left;
+            if (!inkBounds.isEmpty()) {
+                inkTop = Math.min(inkTop, inkBounds.top);
+                inkBottom = Math.max(inkBottom, inkBounds.bottom);
+            }
+        }
+        final int cellTop = (int) Math.floor(inkTop) - INK_PADDING;
+        cellHeight = (int) Math.ceil(inkBottom) + INK_PADDING - cellTop;
+        cellOffsetY = cellTop - fontMetrics.ascent;
+
+        // 按行摆放字形，一行放不下就另起一行。
+        int x = 0;
+        int y = 0;
+        int atlasWidth = 0;
+        for (int i = 0; i < glyphCount; i++) {
+            if (x > 0 && x + cellWidths[i] + PADDING > MAX_ROW_WIDTH) {
+                x = 0;
+                y += cellHeight + PADDING;
+            }
+            cellX[i] = x;
+            cellY[i] = y;
+            x += cellWidths[i] + PADDING;
+            atlasWidth = Math.max(atlasWidth, x);
+            glyphIndices.put(chars.charAt(i), i);
+        }
+        final int atlasHeight = y + cellHeight + PADDING;
+
+        final Bitmap bitmap = Bitmap.createBitmap(atlasWidth, atlasHeight, Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(bitmap);
+        for (int i = 0; i < glyphCount; i++) {
+            canvas.drawText(chars, i, i + 1, cellX[i] + glyphOriginX[i], cellY[i] - cellTop, paint);
+            // 和水印图集一样，Bitmap 第一行在纹理 v 较小的一侧。
+            u0[i] = cellX[i] / (float) atlasWidth;
+            u1[i] = (cellX[i] + cellWidths[i]) / (float) atlasWidth;
+            v0[i] = cellY[i] / (float) atlasHeight;
+            v1[i] = (cellY[i] + cellHeight) / (float) atlasHeight;
+        }
+
+        textureId = GlUtil.generateTexture(GLES20.GL_TEXTURE_2D);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+        GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        bitmap.recycle();
+        GlUtil.checkNoGLES2Error("GlyphAtlas.init");
+    }
+
+    /**
+     * 按当前帧时间戳生成文字并画到当前 FBO 上。调用方负责开启混合。
+     */
+    void draw(long timestampNs, TexturedQuadBatch quadBatch, int outputWidth, int outputHeight) {
+        final int length = watermark.format(timestampNs, frameIndex++, calendar, text);
+        float textWidth = 0f;
+        for (int i = 0; i < length; i++) {
+            final int index = glyphIndices.get(text[i], -1);
+            if (index >= 0) {
+                textWidth += advances[index];
+            }
+        }
+        final int textWidthPx = (int) Math.ceil(textWidth);
+        float penX = WatermarkVideoProcessor.anchoredX(watermark.anchor, watermark.offsetXPx, textWidthPx,
+                outputWidth);
+        final float top = WatermarkVideoProcessor.anchoredY(watermark.anchor, watermark.offsetYPx, lineHeight,
+                outputHeight) + cellOffsetY;
+
+        quadBatch.begin();
+        for (int i = 0; i < length; i++) {
+            final int index = glyphIndices.get(text[i], -1);
+            if (index < 0) {
+                continue;
+            }
+            quadBatch.addQuad(penX + cellOffsetX[index], top, cellWidths[index], cellHeight, u0[index], v0[index], u1[index],
+                    v1[index], watermark.alpha, outputWidth, outputHeight);
+            penX += advances[index];
+        }
+        quadBatch.draw(textureId);
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    void release() {
+        GLES20.glDeleteTextures(1, new int[]{textureId}, 0);
+    }
+}
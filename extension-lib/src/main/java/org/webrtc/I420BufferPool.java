@@ -0,0 +1,85 @@
+/*
+ *  Copyright 2026 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * 可复用内存的 {@link JavaI420Buffer} 池。
+ *
+ * <p>取出的 buffer 在最后一个持有者 release 后把内存还回池里，下一帧直接复用，不再每帧分配
+ * 整帧大小的 direct buffer。只缓存最近一次请求的尺寸，尺寸变化时丢弃旧内存。
+ * release 可能发生在编码线程等任意线程上，所以内部加锁。
+ */
+public final class I420BufferPool {
+    private final Object lock = new Object();
+    private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<>();
+    private final int maxPooledBuffers;
+    // 以下字段由 lock 保护。
+    private int bufferSize;
+    private boolean released;
+
+    public I420BufferPool(int maxPooledBuffers) {
+        this.maxPooledBuffers = maxPooledBuffers;
+    }
+
+    /**
+     * 取一个紧凑排列的 I420 buffer：Y stride 为 width，U/V stride 为 (width + 1) / 2。内容未初始化。
+     */
+    public JavaI420Buffer acquire(int width, int height) {
+        final int chromaWidth = (width + 1) / 2;
+        final int chromaHeight = (height + 1) / 2;
+        final int sizeY = width * height;
+        final int sizeUV = chromaWidth * chromaHeight;
+        final int size = sizeY + 2 * sizeUV;
+
+        ByteBuffer buffer;
+        synchronized (lock) {
+            if (size != bufferSize) {
+                freeBuffers.clear();
+                bufferSize = size;
+            }
+            buffer = freeBuffers.pollFirst();
+        }
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(size);
+        }
+        final ByteBuffer data = buffer;
+        return JavaI420Buffer.wrap(width, height,
+                slice(data, 0, sizeY), width,
+                slice(data, sizeY, sizeUV), chromaWidth,
+                slice(data, sizeY + sizeUV, sizeUV), chromaWidth,
+                () -> recycle(data, size));
+    }
+
+    /**
+     * 清空池，之后归还的内存直接丢弃。
+     */
+    public void release() {
+        synchronized (lock) {
+            released = true;
+            freeBuffers.clear();
+        }
+    }
+
+    private void recycle(ByteBuffer buffer, int size) {
+        synchronized (lock) {
+            if (!released && size == bufferSize && freeBuffers.size() < maxPooledBuffers) {
+                freeBuffers.addLast(buffer);
+            }
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        buffer.clear();
+        buffer.position(offset);
+        buffer.limit(offset + length);
+        return buffer.slice();
+    }
+}
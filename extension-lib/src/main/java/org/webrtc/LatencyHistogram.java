@@ -0,0 +1,91 @@
+/*
+ *  Copyright 2026 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+/**
+ * 固定桶的耗时直方图，记录时不分配对象。
+ *
+ * <p>桶的上界从 10us 开始按 1.2 倍递增到 2s 左右，超过最后一个上界的记录都算进溢出桶。
+ * 百分位数返回所在桶的上界，误差不超过 20%，用来观察趋势和长尾足够了。
+ * 记录在 GL 线程上，读取可能在任意线程上，所以方法都加锁；锁基本无竞争。
+ */
+final class LatencyHistogram {
+    private static final long[] BUCKET_UPPER_BOUNDS_NS = createBucketUpperBounds();
+
+    // 最后一个桶是溢出桶。
+    private final long[] counts = new long[BUCKET_UPPER_BOUNDS_NS.length + 1];
+    private long totalCount;
+    private long maxNs;
+
+    synchronized void record(long durationNs) {
+        counts[bucketIndex(durationNs)]++;
+        totalCount++;
+        if (durationNs > maxNs) {
+            maxNs = durationNs;
+        }
+    }
+
+    synchronized void reset() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = 0;
+        }
+        totalCount = 0;
+        maxNs = 0;
+    }
+
+    synchronized WatermarkProcessorStats.StageStats snapshot() {
+        return new WatermarkProcessorStats.StageStats(totalCount, percentileMs(0.50), percentileMs(0.95),
+                percentileMs(0.99), maxNs / 1_000_000.0);
+    }
+
+    private double percentileMs(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        final long target = (long) Math.ceil(totalCount * percentile);
+        long cumulative = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            if (cumulative >= target) {
+                // 溢出桶没有上界，用记录到的最大值。
+                final long boundNs = i < BUCKET_UPPER_BOUNDS_NS.length ? BUCKET_UPPER_BOUNDS_NS[i] : maxNs;
+                return Math.min(boundNs, maxNs) / 1_000_000.0;
+            }
+        }
+        return maxNs / 1_000_000.0;
+    }
+
+    private static int bucketIndex(long durationNs) {
+        // 二分查找第一个上界 >= durationNs 的桶。
+        int low = 0;
+        int high = BUCKET_UPPER_BOUNDS_NS.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (BUCKET_UPPER_BOUNDS_NS[mid] < durationNs) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static long[] createBucketUpperBounds() {
+        int count = 0;
+        for (double bound = 10_000; bound < 2_000_000_000L; bound *= 1.2) {
+            count++;
+        }
+        final long[] bounds = new long[count];
+        double bound = 10_000;
+        for (int i = 0; i < count; i++) {
+            bounds[i] = (long) bound;
+            bound *= 1.2;
+        }
+        return bounds;
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ *  Copyright 2026 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.graphics.Color;
+import android.graphics.Typeface;
+
+import androidx.annotation.Nullable;
+
+import java.util.Calendar;
+
+/**
+ * 由 GPU 逐帧排版的文字水印，例如时间戳、帧号、用户 ID。配合
+ * {@link WatermarkVideoProcessor#setTextWatermarks} 使用。
+ *
+ * <p>字形只会在第一次绘制时光栅化一次到字形图集纹理里，之后每帧只根据当前文字生成一组四边形，
+ * 不再创建 Bitmap，也不会重新上传纹理。
+ *
+ * <p>模板语法：
+ * <ul>
+ *     <li>{@code {time:yyyy-MM-dd HH:mm:ss.SSS}}：由 {@link VideoFrame#getTimestampNs()} 换算出的本地时间。
+ *     支持 y、M、d、H、m、s、S，字母重复次数表示最少位数（{@code yy} 表示两位年份），其他字符原样输出；</li>
+ *     <li>{@code {frame}}：该水印已经绘制过的帧数，从 0 开始；</li>
+ *     <li>其他文字原样输出，例如用户 ID。</li>
+ * </ul>
+ * 例如 {@code "{time:yyyy-MM-dd HH:mm:ss.SSS} #{frame} user-42"}。
+ *
+ * <p>WebRTC 的帧时间戳基于 {@link System#nanoTime()}，创建水印时会记录一次它与墙上时间的差值，
+ * 之后每帧都用这个差值换算，不受帧到达处理器时的延迟影响。
+ */
+public final class TextWatermark {
+    static final int TOKEN_LITERAL = 0;
+    static final int TOKEN_YEAR = 1;
+    static final int TOKEN_MONTH = 2;
+    static final int TOKEN_DAY = 3;
+    static final int TOKEN_HOUR = 4;
+    static final int TOKEN_MINUTE = 5;
+    static final int TOKEN_SECOND = 6;
+    static final int TOKEN_MILLIS = 7;
+    static final int TOKEN_FRAME = 8;
+
+    private static final String TIME_PREFIX = "{time:";
+    private static final String FRAME_TOKEN = "{frame}";
+    private static final String DIGITS = "0123456789";
+
+    public final String template;
+    public final float textSizePx;
+    public final int color;
+    @Nullable
+    public final Typeface typeface;
+    public final WatermarkVideoProcessor.Anchor anchor;
+    public final int offsetXPx;
+    public final int offsetYPx;
+    public final float alpha;
+
+    // 编译后的模板：每个 token 一个类型和一个参数（字面字符的 char 值，或数字的最少位数）。
+    private final int[] tokenTypes;
+    private final int[] tokenArgs;
+    private final int tokenCount;
+    // 格式化结果的最大长度，渲染时按它预先分配 char[]。
+    final int maxLength;
+    // 需要光栅化进字形图集的所有字符，去重后的结果。
+    final String glyphChars;
+    final long wallClockOffsetNs;
+
+    private TextWatermark(String template, float textSizePx, int color, @Nullable Typeface typeface,
+                          WatermarkVideoProcessor.Anchor anchor, int offsetXPx, int offsetYPx, float alpha,
+                          long wallClockOffsetNs) {
+        if (template == null || template.isEmpty()) {
+            throw new IllegalArgumentException("template must not be empty.");
+        }
+        if (textSizePx <= 0f) {
+            throw new IllegalArgumentException("textSizePx must be positive.");
+        }
+        if (anchor == null) {
+            throw new IllegalArgumentException("anchor must not be null.");
+        }
+        this.template = template;
+        this.textSizePx = textSizePx;
+        this.color = color;
+        this.typeface = typeface;
+        this.anchor = anchor;
+        this.offsetXPx = offsetXPx;
+        this.offsetYPx = offsetYPx;
+        this.alpha = Math.max(0f, Math.min(1f, alpha));
+        this.wallClockOffsetNs = wallClockOffsetNs;
+
+        final int[] types = new int[template.length()];
+        final int[] args = new int[template.length()];
+        int count = 0;
+        int length = 0;
+        final StringBuilder chars = new StringBuilder(DIGITS);
+        int i = 0;
+        while (i < template.length()) {
+            if (template.startsWith(FRAME_TOKEN, i)) {
+                types[count] = TOKEN_FRAME;
+                args[count++] = 1;
+                length += 19;
+                i += FRAME_TOKEN.length();
+                continue;
+            }
+            if (template.startsWith(TIME_PREFIX, i)) {
+                final int end = template.indexOf('}', i);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Unclosed {time: in template: " + template);
+                }
+                int j = i + TIME_PREFIX.length();
+                while (j < end) {
+                    final char c = template.charAt(j);
+                    final int type = timeTokenType(c);
+                    if (type == TOKEN_LITERAL) {
+                        types[count] = TOKEN_LITERAL;
+                        args[count++] = c;
+                        length++;
+                        appendGlyph(chars, c);
+                        j++;
+                        continue;
+                    }
+                    int repeat = 1;
+                    while (j + repeat < end && template.charAt(j + repeat) == c) {
+                        repeat++;
+                    }
+                    types[count] = type;
+                    args[count++] = repeat;
+                    length += Math.max(repeat, maxDigits(type));
+                    j += repeat;
+                }
+                i = end + 1;
+                continue;
+            }
+            final char c = template.charAt(i);
+            types[count] = TOKEN_LITERAL;
+            args[count++] = c;
+            length++;
+            appendGlyph(chars, c);
+            i++;
+        }
+        this.tokenTypes = types;
+        this.tokenArgs = args;
+        this.tokenCount = count;
+        this.maxLength = length;
+        this.glyphChars = chars.toString();
+    }
+
+    /**
+     * 创建文字水印，默认白色、不透明。
+     */
+    public static TextWatermark create(String template, float textSizePx, WatermarkVideoProcessor.Anchor anchor,
+                                       int offsetXPx, int offsetYPx) {
+        return new TextWatermark(template, textSizePx, Color.WHITE, null, anchor, offsetXPx, offsetYPx, 1f,
+                System.currentTimeMillis() * 1_000_000L - System.nanoTime());
+    }
+
+    /**
+     * 返回一个只修改文字颜色的新水印配置，原对象保持不变。
+     */
+    public TextWatermark withColor(int color) {
+        return new TextWatermark(template, textSizePx, color, typeface, anchor, offsetXPx, offsetYPx, alpha,
+                wallClockOffsetNs);
+    }
+
+    /**
+     * 返回一个只修改字体的新水印配置。
+     */
+    public TextWatermark withTypeface(@Nullable Typeface typeface) {
+        return new TextWatermark(template, textSizePx, color, typeface, anchor, offsetXPx, offsetYPx, alpha,
+                wallClockOffsetNs);
+    }
+
+    /**
+     * 返回一个只修改整体透明度的新水印配置。
+     */
+    public TextWatermark withAlpha(float alpha) {
+        return new TextWatermark(template, textSizePx, color, typeface, anchor, offsetXPx, offsetYPx, alpha,
+                wallClockOffsetNs);
+    }
+
+    /**
+     * 返回一个只修改偏移量的新水印配置，偏移量按视觉坐标理解。
+     */
+    public TextWatermark withOffset(int offsetXPx, int offsetYPx) {
+        return new TextWatermark(template, textSizePx, color, typeface, anchor, offsetXPx, offsetYPx, alpha,
+                wallClockOffsetNs);
+    }
+
+    /**
+     * 按模板生成当前帧要显示的文字，写入 out，不分配对象。
+     *
+     * @param out 长度至少为 {@link #maxLength}
+     * @return 写入的字符数
+     */
+    int format(long timestampNs, long frameIndex, Calendar calendar, char[] out) {
+        calendar.setTimeInMillis((timestampNs + wallClockOffsetNs) / 1_000_000L);
+        int position = 0;
+        for (int i = 0; i < tokenCount; i++) {
+            final int arg = tokenArgs[i];
+            switch (tokenTypes[i]) {
+                case TOKEN_LITERAL:
+                    out[position++] = (char) arg;
+                    break;
+                case TOKEN_YEAR:
+                    final int year = calendar.get(Calendar.YEAR);
+                    position = writeNumber(out, position, arg == 2 ? year % 100 : year, arg);
+                    break;
+                case TOKEN_MONTH:
+                    position = writeNumber(out, position, calendar.get(Calendar.MONTH) + 1, arg);
+                    break;
+                case TOKEN_DAY:
+                    position = writeNumber(out, position, calendar.get(Calendar.DAY_OF_MONTH), arg);
+                    break;
+                case TOKEN_HOUR:
+                    position = writeNumber(out, position, calendar.get(Calendar.HOUR_OF_DAY), arg);
+                    break;
+                case TOKEN_MINUTE:
+                    position = writeNumber(out, position, calendar.get(Calendar.MINUTE), arg);
+                    break;
+                case TOKEN_SECOND:
+                    position = writeNumber(out, position, calendar.get(Calendar.SECOND), arg);
+                    break;
+                case TOKEN_MILLIS:
+                    position = writeNumber(out, position, calendar.get(Calendar.MILLISECOND), arg);
+                    break;
+                case TOKEN_FRAME:
+                    position = writeNumber(out, position, frameIndex, arg);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown token type.");
+            }
+        }
+        return position;
+    }
+
+    private static int writeNumber(char[] out, int position, long value, int minDigits) {
+        int digits = 1;
+        for (long v = value / 10; v > 0; v /= 10) {
+            digits++;
+        }
+        final int width = Math.max(digits, minDigits);
+        for (int i = position + width - 1; i >= position; i--) {
+            out[i] = (char) ('0' + (int) (value % 10));
+            value /= 10;
+        }
+        return position + width;
+    }
+
+    private static int timeTokenType(char c) {
+        switch (c) {
+            case 'y':
+                return TOKEN_YEAR;
+            case 'M':
+                return TOKEN_MONTH;
+            case 'd':
+                return TOKEN_DAY;
+            case 'H':
+                return TOKEN_HOUR;
+            case 'm':
+                return TOKEN_MINUTE;
+            case 's':
+                return TOKEN_SECOND;
+            case 'S':
+                return TOKEN_MILLIS;
+            default:
+                return TOKEN_LITERAL;
+        }
+    }
+
+    private static int maxDigits(int type) {
+        switch (type) {
+            case TOKEN_YEAR:
+                return 4;
+            case TOKEN_MILLIS:
+                return 3;
+            default:
+                return 2;
+        }
+    }
+
+    private static void appendGlyph(StringBuilder chars, char c) {
+        if (chars.indexOf(String.valueOf(c)) < 0) {
+            chars.append(c);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ *  Copyright 2026 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * 一批共用同一张纹理的四边形，收集完后用一次 glDrawArrays 画出，每个四边形带自己的透明度。
+ * 水印图集和文字水印的字形图集都用它来绘制。
+ *
+ * <p>所有方法都必须在持有 current EGLContext 的 GL 线程上调用。
+ */
+final class TexturedQuadBatch {
+    // 每个顶点：x, y, u, v, alpha。
+    private static final int FLOATS_PER_VERTEX = 5;
+    private static final int VERTICES_PER_QUAD = 6;
+    private static final int BYTES_PER_FLOAT = 4;
+    private static final int STRIDE_BYTES = FLOATS_PER_VERTEX * BYTES_PER_FLOAT;
+    private static final int INITIAL_QUAD_CAPACITY = 32;
+
+    private static final String VERTEX_SHADER =
+            "attribute vec4 in_pos;\n"
+                    + "attribute vec2 in_tc;\n"
+                    + "attribute float in_alpha;\n"
+                    + "varying vec2 tc;\n"
+                    + "varying float alpha;\n"
+                    + "void main() {\n"
+                    + "  gl_Position = in_pos;\n"
+                    + "  tc = in_tc;\n"
+                    + "  alpha = in_alpha;\n"
+                    + "}\n";
+
+    // 和单张水印的 shader 一样：premultiplied 像素整体乘上透明度。
+    private static final String FRAGMENT_SHADER =
+            "precision mediump float;\n"
+                    + "varying vec2 tc;\n"
+                    + "varying float alpha;\n"
+                    + "uniform sampler2D tex;\n"
+                    + "void main() {\n"
+                    + "  gl_FragColor = texture2D(tex, tc) * alpha;\n"
+                    + "}\n";
+
+    private final GlShader shader;
+    private final int positionLocation;
+    private final int texCoordLocation;
+    private final int alphaLocation;
+
+    private FloatBuffer vertexBuffer = createFloatBuffer(INITIAL_QUAD_CAPACITY);
+    private int quadCount;
+
+    TexturedQuadBatch() {
+        shader = new GlShader(VERTEX_SHADER, FRAGMENT_SHADER);
+        shader.useProgram();
+        positionLocation = shader.getAttribLocation("in_pos");
+        texCoordLocation = shader.getAttribLocation("in_tc");
+        alphaLocation = shader.getAttribLocation("in_alpha");
+        GLES20.glUniform1i(shader.getUniformLocation("tex"), 0);
+        GlUtil.checkNoGLES2Error("TexturedQuadBatch.init");
+    }
+
+    /**
+     * 开始收集新一批四边形。
+     */
+    void begin() {
+        quadCount = 0;
+        vertexBuffer.clear();
+    }
+
+    /**
+     * 追加一个四边形。位置按视觉坐标（左上角为原点，单位像素）理解；纹理坐标的 v0 对应四边形顶部。
+     */
+    void addQuad(float visualLeft, float visualTop, float width, float height,
+                 float u0, float v0, float u1, float v1, float alpha, int outputWidth, int outputHeight) {
+        ensureQuadCapacity(quadCount + 1);
+        // 视觉坐标 y=0 在上方，NDC 的 y=1 在上方。
+        final float left = visualLeft * 2f / outputWidth - 1f;
+        final float right = (visualLeft + width) * 2f / outputWidth - 1f;
+        final float top = 1f - visualTop * 2f / outputHeight;
+        final float bottom = 1f - (visualTop + height) * 2f / outputHeight;
+        putVertex(left, bottom, u0, v1, alpha);
+        putVertex(right, bottom, u1, v1, alpha);
+        putVertex(left, top, u0, v0, alpha);
+        putVertex(left, top, u0, v0, alpha);
+        putVertex(right, bottom, u1, v1, alpha);
+        putVertex(right, top, u1, v0, alpha);
+        quadCount++;
+    }
+
+    /**
+     * 一次 draw call 画出本批所有四边形。调用方负责设置 FBO、viewport 和混合模式。
+     */
+    void draw(int textureId) {
+        if (quadCount == 0 || textureId == 0) {
+            return;
+        }
+        shader.useProgram();
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+
+        vertexBuffer.position(0);
+        GLES20.glVertexAttribPointer(positionLocation, 2, GLES20.GL_FLOAT, false, STRIDE_BYTES, vertexBuffer);
+        GLES20.glEnableVertexAttribArray(positionLocation);
+        vertexBuffer.position(2);
+        GLES20.glVertexAttribPointer(texCoordLocation, 2, GLES20.GL_FLOAT, false, STRIDE_BYTES, vertexBuffer);
+        GLES20.glEnableVertexAttribArray(texCoordLocation);
+        vertexBuffer.position(4);
+        GLES20.glVertexAttribPointer(alphaLocation, 1, GLES20.GL_FLOAT, false, STRIDE_BYTES, vertexBuffer);
+        GLES20.glEnableVertexAttribArray(alphaLocation);
+
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, quadCount * VERTICES_PER_QUAD);
+
+        GLES20.glDisableVertexAttribArray(positionLocation);
+        GLES20.glDisableVertexAttribArray(texCoordLocation);
+        GLES20.glDisableVertexAttribArray(alphaLocation);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GlUtil.checkNoGLES2Error("TexturedQuadBatch.draw");
+    }
+
+    void release() {
+        shader.release();
+    }
+
+    private void putVertex(float x, float y, float u, float v, float alpha) {
+        vertexBuffer.put(x).put(y).put(u).put(v).put(alpha);
+    }
+
+    private void ensureQuadCapacity(int quads) {
+        final int required = quads * VERTICES_PER_QUAD * FLOATS_PER_VERTEX;
+        if (vertexBuffer.capacity() >= required) {
+            return;
+        }
+        // 四边形数量超过当前容量时扩容一次，之后每帧直接复用。
+        final FloatBuffer newBuffer = createFloatBuffer(Math.max(quads, quadCount * 2));
+        vertexBuffer.flip();
+        newBuffer.put(vertexBuffer);
+        vertexBuffer = newBuffer;
+    }
+
+    private static FloatBuffer createFloatBuffer(int quads) {
+        return ByteBuffer.allocateDirect(quads * VERTICES_PER_QUAD * FLOATS_PER_VERTEX * BYTES_PER_FLOAT)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ *  Copyright 2026 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * 水印纹理图集：把多张水印 Bitmap 打包进同一张 GL_TEXTURE_2D，再通过
+ * {@link TexturedQuadBatch} 用一次 draw call 画出所有水印四边形，每个四边形带自己的透明度。
+ *
+ * <p>所有方法都必须在持有 current EGLContext 的 GL 线程上调用。
+ */
+final class WatermarkAtlas {
+    private static final String TAG = "WatermarkAtlas";
+
+    // 相邻子图之间留出透明间隔，避免线性采样时串到隔壁水印的像素。
+    private static final int PADDING = 2;
+
+    private static final class Entry {
+        final int x;
+        final int y;
+        final int width;
+        final int height;
+        // 已上传内容对应的 generationId；变化后需要局部更新或重新打包上传。
+        int generationId;
+
+        Entry(int x, int y, int width, int height, int generationId) {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.generationId = generationId;
+        }
+    }
+
+    // 用 Bitmap 对象身份作为 key，和 WatermarkVideoProcessor 的单纹理缓存保持一致。
+    private final IdentityHashMap<Bitmap, Entry> entries = new IdentityHashMap<>();
+    private final TexturedQuadBatch quadBatch;
+    private final int maxTextureSize;
+    // 取脏区域时记录的 generationId。
+    private final int[] dirtyGeneration = new int[1];
+
+    private int textureId;
+    private int atlasWidth;
+    private int atlasHeight;
+
+    WatermarkAtlas(TexturedQuadBatch quadBatch) {
+        this.quadBatch = quadBatch;
+        final int[] maxSize = new int[1];
+        GLES20.glGetIntegerv(GLES20.GL_MAX_TEXTURE_SIZE, maxSize, 0);
+        maxTextureSize = maxSize[0];
+        GlUtil.checkNoGLES2Error("WatermarkAtlas.init");
+    }
+
+    /**
+     * 图集里是否缺少某张水印，或者某张水印 Bitmap 的内容/尺寸已经变化。每帧调用，不分配对象。
+     */
+    boolean isStale(List<? extends WatermarkVideoProcessor.Watermark> watermarks) {
+        for (int i = 0; i < watermarks.size(); i++) {
+            final WatermarkVideoProcessor.Watermark watermark = watermarks.get(i);
+            if (watermark == null || watermark.bitmap.isRecycled()) {
+                continue;
+            }
+            final Bitmap bitmap = watermark.bitmap;
+            final Entry entry = entries.get(bitmap);
+            if (entry == null || entry.generationId != bitmap.getGenerationId()
+                    || entry.width != bitmap.getWidth() || entry.height != bitmap.getHeight()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 对 generationId 变化、尺寸不变且标记了脏区域的水印，只把脏区域更新到图集里对应的位置。
+     * 没有脏区域的变化仍交给 {@link #isStale} / {@link #rebuild} 处理。
+     */
+    void applyDirtyRegions(List<? extends WatermarkVideoProcessor.Watermark> watermarks, Rect[] dirtyRects,
+                           BitmapRegionUploader uploader) {
+        for (int i = 0; i < watermarks.size(); i++) {
+            final WatermarkVideoProcessor.Watermark watermark = watermarks.get(i);
+            if (watermark == null || watermark.bitmap.isRecycled()) {
+                continue;
+            }
+            final Bitmap bitmap = watermark.bitmap;
+            final Entry entry = entries.get(bitmap);
+            final int generationId = bitmap.getGenerationId();
+            if (entry == null || entry.generationId == generationId
+                    || entry.width != bitmap.getWidth() || entry.height != bitmap.getHeight()) {
+                continue;
+            }
+            final int dirtyCount = watermark.dirtyRegion.drainTo(dirtyRects, dirtyGeneration, entry.width, entry.height);
+            if (dirtyCount == 0) {
+                continue;
+            }
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+            final boolean uploaded = uploader.upload(bitmap, dirtyRects, dirtyCount, entry.x, entry.y);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+            if (uploaded) {
+                // 只认 invalidate 时记录的 generationId，最后一次 invalidate 还没调用时下一帧会再处理。
+                entry.generationId = dirtyGeneration[0];
+            }
+        }
+    }
+
+    /**
+     * 重新打包并上传所有水印 Bitmap。非 ARGB_8888 的 Bitmap 上传前会临时转换。
+     *
+     * @return 图集超过 GL_MAX_TEXTURE_SIZE 时返回 false，此时图集为空，调用方应改用逐张绘制。
+     * @throws RuntimeException 上传失败，此时图集同样为空
+     */
+    boolean rebuild(List<? extends WatermarkVideoProcessor.Watermark> watermarks) {
+        entries.clear();
+        final IdentityHashMap<Bitmap, Boolean> distinctBitmaps = new IdentityHashMap<>();
+        final List<Bitmap> bitmaps = new ArrayList<>();
+        for (WatermarkVideoProcessor.Watermark watermark : watermarks) {
+            if (watermark == null || watermark.bitmap.isRecycled()) {
+                continue;
+            }
+            // 重新打包会整张上传，之前记录的脏区域已经没有意义。
+            watermark.dirtyRegion.clear();
+            if (distinctBitmaps.put(watermark.bitmap, Boolean.TRUE) == null) {
+                bitmaps.add(watermark.bitmap);
+            }
+        }
+        if (bitmaps.isEmpty()) {
+            return true;
+        }
+
+        // Shelf packing：按高度从高到低排序，逐行摆放，一行放不下就另起一行。
+        Collections.sort(bitmaps, (a, b) -> b.getHeight() - a.getHeight());
+        int maxItemWidth = 0;
+        long totalArea = 0;
+        for (Bitmap bitmap : bitmaps) {
+            maxItemWidth = Math.max(maxItemWidth, bitmap.getWidth() + PADDING);
+            totalArea += (long) (bitmap.getWidth() + PADDING) * (bitmap.getHeight() + PADDING);
+        }
+        final int width = Math.max(maxItemWidth, (int) Math.ceil(Math.sqrt(totalArea)));
+        if (width > maxTextureSize) {
+            Logging.w(TAG, "Watermark atlas too wide: " + width + ", max: " + maxTextureSize);
+            return false;
+        }
+        final int[] positions = new int[bitmaps.size() * 2];
+        int shelfX = 0;
+        int shelfY = 0;
+        int shelfHeight = 0;
+        for (int i = 0; i < bitmaps.size(); i++) {
+            final Bitmap bitmap = bitmaps.get(i);
+            if (shelfX + bitmap.getWidth() + PADDING > width) {
+                shelfY += shelfHeight;
+                shelfX = 0;
+                shelfHeight = 0;
+            }
+            positions[i * 2] = shelfX;
+            positions[i * 2 + 1] = shelfY;
+            shelfX += bitmap.getWidth() + PADDING;
+            shelfHeight = Math.max(shelfHeight, bitmap.getHeight() + PADDING);
+        }
+        final int height = shelfY + shelfHeight;
+        if (height > maxTextureSize) {
+            Logging.w(TAG, "Watermark atlas too tall: " + height + ", max: " + maxTextureSize);
+            return false;
+        }
+
+        allocateTexture(width, height);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+        try {
+            for (int i = 0; i < bitmaps.size(); i++) {
+                final Bitmap bitmap = bitmaps.get(i);
+                final int x = positions[i * 2];
+                final int y = positions[i * 2 + 1];
+                uploadBitmap(bitmap, x, y);
+                entries.put(bitmap, new Entry(x, y, bitmap.getWidth(), bitmap.getHeight(), bitmap.getGenerationId()));
+            }
+            GlUtil.checkNoGLES2Error("WatermarkAtlas.rebuild");
+        } catch (RuntimeException e) {
+            // 上传失败的区域内容未定义，不能留下任何 entry 让后续帧去画。
+            entries.clear();
+            throw e;
+        } finally {
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        }
+        return true;
+    }
+
+    /**
+     * GLUtils.texSubImage2D 使用 Bitmap 自己的格式和类型，而图集按 RGBA/UNSIGNED_BYTE 分配，
+     * RGB_565、ALPHA_8 等格式直接上传会产生 GL_INVALID_OPERATION，所以先转换成 ARGB_8888。
+     */
+    private static void uploadBitmap(Bitmap bitmap, int x, int y) {
+        if (bitmap.getConfig() == Bitmap.Config.ARGB_8888) {
+            GLUtils.texSubImage2D(GLES20.GL_TEXTURE_2D, 0, x, y, bitmap);
+            return;
+        }
+        final Bitmap converted = bitmap.copy(Bitmap.Config.ARGB_8888, false);
+        if (converted == null) {
+            throw new IllegalStateException("Unable to convert watermark bitmap: " + bitmap.getConfig());
+        }
+        try {
+            GLUtils.texSubImage2D(GLES20.GL_TEXTURE_2D, 0, x, y, converted);
+        } finally {
+            converted.recycle();
+        }
+    }
+
+    /**
+     * 开始收集新一批四边形。
+     */
+    void beginBatch() {
+        quadBatch.begin();
+    }
+
+    /**
+     * 追加一个水印四边形，坐标按视觉坐标（左上角为原点）理解。
+     *
+     * @return Bitmap 不在图集里时返回 false
+     */
+    boolean addQuad(Bitmap bitmap, int visualX, int visualY, int width, int height, float alpha,
+                    int outputWidth, int outputHeight) {
+        final Entry entry = entries.get(bitmap);
+        if (entry == null) {
+            return false;
+        }
+        // texSubImage2D 把 Bitmap 第一行放在纹理 v 较小的一侧，所以 Bitmap 顶部对应 v0。
+        final float u0 = entry.x / (float) atlasWidth;
+        final float u1 = (entry.x + entry.width) / (float) atlasWidth;
+        final float v0 = entry.y / (float) atlasHeight;
+        final float v1 = (entry.y + entry.height) / (float) atlasHeight;
+        quadBatch.addQuad(visualX, visualY, width, height, u0, v0, u1, v1, alpha, outputWidth, outputHeight);
+        return true;
+    }
+
+    /**
+     * 一次 draw call 画出本批所有四边形。调用方负责设置 FBO、viewport 和混合模式。
+     */
+    void drawBatch() {
+        quadBatch.draw(textureId);
+    }
+
+    void release() {
+        entries.clear();
+        deleteTexture();
+    }
+
+    private void allocateTexture(int width, int height) {
+        if (textureId == 0 || width != atlasWidth || height != atlasHeight) {
+            deleteTexture();
+            textureId = GlUtil.generateTexture(GLES20.GL_TEXTURE_2D);
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                    GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+            atlasWidth = width;
+            atlasHeight = height;
+        }
+        clearTexture();
+    }
+
+    /**
+     * glTexImage2D(null) 的内容是未定义的，间隔区域必须清成全透明。借一个临时 FBO 做 glClear，
+     * 结束后恢复调用方原来绑定的 FBO。
+     */
+    private void clearTexture() {
+        final int[] previousFrameBuffer = new int[1];
+        GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, previousFrameBuffer, 0);
+        final int[] frameBuffers = new int[1];
+        GLES20.glGenFramebuffers(1, frameBuffers, 0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBuffers[0]);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, textureId, 0);
+        GLES20.glClearColor(0f, 0f, 0f, 0f);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, previousFrameBuffer[0]);
+        GLES20.glDeleteFramebuffers(1, frameBuffers, 0);
+    }
+
+    private void deleteTexture() {
+        if (textureId != 0) {
+            GLES20.glDeleteTextures(1, new int[]{textureId}, 0);
+            textureId = 0;
+        }
+        atlasWidth = 0;
+        atlasHeight = 0;
+    }
+}
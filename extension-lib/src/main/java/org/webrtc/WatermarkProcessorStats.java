@@ -0,0 +1,92 @@
+/*
+ *  Copyright 2026 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import java.util.Locale;
+
+/**
+ * {@link WatermarkVideoProcessor#getStats()} 返回的统计快照，创建后不再变化。
+ *
+ * <p>帧数计数始终有效；各阶段耗时只有在 {@link WatermarkVideoProcessor#setStatsEnabled(boolean)}
+ * 开启后才会记录，单位为毫秒。
+ */
+public final class WatermarkProcessorStats {
+    /**
+     * 单个阶段的耗时分布。
+     */
+    public static final class StageStats {
+        public final long count;
+        public final double p50Ms;
+        public final double p95Ms;
+        public final double p99Ms;
+        public final double maxMs;
+
+        StageStats(long count, double p50Ms, double p95Ms, double p99Ms, double maxMs) {
+            this.count = count;
+            this.p50Ms = p50Ms;
+            this.p95Ms = p95Ms;
+            this.p99Ms = p99Ms;
+            this.maxMs = maxMs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "n=%d p50=%.2fms p95=%.2fms p99=%.2fms max=%.2fms",
+                    count, p50Ms, p95Ms, p99Ms, maxMs);
+        }
+    }
+
+    // 合成了水印并送出的帧数。
+    public final long framesProcessed;
+    // 没有水印或处理器关闭时原样透传的帧数。
+    public final long framesForwarded;
+    // 合成失败、退回原帧透传的帧数。
+    public final long framesFailed;
+    // 排队帧数达到上限被丢掉的帧数。
+    public final long framesDropped;
+
+    // 从 onFrameCaptured 入队到 GL 线程开始处理。
+    public final StageStats queueWait;
+    // 把原视频帧画进 FBO（CPU 快速路径下为复制 + 旋转）。
+    public final StageStats drawFrame;
+    // 叠加所有 Bitmap 水印和文字水印。
+    public final StageStats drawWatermarks;
+    // 合成命令之后插入 fence 到 GL 线程在后续帧上查询到执行完成，是 GPU 耗时的上限；需要 OpenGL ES 3.0 的 fence sync。
+    public final StageStats gpu;
+    // 调用下游 sink.onFrame。
+    public final StageStats sinkHandoff;
+
+    WatermarkProcessorStats(long framesProcessed, long framesForwarded, long framesFailed, long framesDropped,
+                            StageStats queueWait, StageStats drawFrame, StageStats drawWatermarks,
+                            StageStats gpu, StageStats sinkHandoff) {
+        this.framesProcessed = framesProcessed;
+        this.framesForwarded = framesForwarded;
+        this.framesFailed = framesFailed;
+        this.framesDropped = framesDropped;
+        this.queueWait = queueWait;
+        this.drawFrame = drawFrame;
+        this.drawWatermarks = drawWatermarks;
+        this.gpu = gpu;
+        this.sinkHandoff = sinkHandoff;
+    }
+
+    @Override
+    public String toString() {
+        return "WatermarkProcessorStats{"
+                + "processed=" + framesProcessed
+                + ", forwarded=" + framesForwarded
+                + ", failed=" + framesFailed
+                + ", dropped=" + framesDropped
+                + ", queueWait=[" + queueWait + "]"
+                + ", drawFrame=[" + drawFrame + "]"
+                + ", drawWatermarks=[" + drawWatermarks + "]"
+                + ", gpu=[" + gpu + "]"
+                + ", sinkHandoff=[" + sinkHandoff + "]"
+                + '}';
+    }
+}
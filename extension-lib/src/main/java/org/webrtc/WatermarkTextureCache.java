@@ -0,0 +1,154 @@
+/*
+ *  Copyright 2026 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+
+import androidx.annotation.Nullable;
+
+import java.util.IdentityHashMap;
+
+/**
+ * 水印 Bitmap 到 GL_TEXTURE_2D 的缓存，挂在同一个 {@link GlProcessingContext} 上的处理器共用。
+ *
+ * <p>用 Bitmap 对象身份作为 key，按使用它的处理器数量做引用计数：同一个 Bitmap 被多路视频使用时
+ * 只上传一次，最后一个处理器不再使用时才删除纹理。所有方法都必须在 GL 线程上调用。
+ */
+final class WatermarkTextureCache {
+    private static final String TAG = "WatermarkTextureCache";
+
+    static final class WatermarkTexture {
+        // 0 表示还没上传，或者 Bitmap 已经被 recycle。
+        int textureId;
+        int width;
+        int height;
+        // Bitmap 内容变化时 generationId 会变化，用它判断缓存的 GL 纹理是否需要重新上传。
+        int generationId;
+        // 上传时 Bitmap 的格式，决定纹理的内部格式；只有 ARGB_8888（RGBA 纹理）能局部更新。
+        @Nullable
+        Bitmap.Config config;
+        int refCount;
+    }
+
+    private final IdentityHashMap<Bitmap, WatermarkTexture> textures = new IdentityHashMap<>();
+    private final BitmapRegionUploader regionUploader = new BitmapRegionUploader();
+    // 取脏区域用的临时数组，预先分配，避免每帧创建 Rect。
+    private final Rect[] dirtyRects = new Rect[WatermarkVideoProcessor.DirtyRegion.MAX_RECTS];
+    private final int[] dirtyGeneration = new int[1];
+
+    WatermarkTextureCache() {
+        for (int i = 0; i < dirtyRects.length; i++) {
+            dirtyRects[i] = new Rect();
+        }
+    }
+
+    /**
+     * 某个处理器开始使用这张 Bitmap。
+     */
+    void retain(Bitmap bitmap) {
+        WatermarkTexture texture = textures.get(bitmap);
+        if (texture == null) {
+            texture = new WatermarkTexture();
+            textures.put(bitmap, texture);
+        }
+        texture.refCount++;
+    }
+
+    /**
+     * 某个处理器不再使用这张 Bitmap；没有处理器使用时删除纹理。
+     */
+    void release(Bitmap bitmap) {
+        final WatermarkTexture texture = textures.get(bitmap);
+        if (texture == null) {
+            return;
+        }
+        texture.refCount--;
+        if (texture.refCount <= 0) {
+            deleteTexture(texture);
+            textures.remove(bitmap);
+        }
+    }
+
+    /**
+     * 返回已经和 Bitmap 当前内容一致的纹理，必要时上传。调用前必须先 {@link #retain}。
+     */
+    @Nullable
+    WatermarkTexture get(WatermarkVideoProcessor.Watermark watermark) {
+        final Bitmap bitmap = watermark.bitmap;
+        final WatermarkTexture texture = textures.get(bitmap);
+        if (texture == null) {
+            return null;
+        }
+        if (bitmap.isRecycled()) {
+            deleteTexture(texture);
+            return null;
+        }
+        final int generationId = bitmap.getGenerationId();
+        if (texture.textureId != 0 && texture.width == bitmap.getWidth() && texture.height == bitmap.getHeight()) {
+            // Bitmap 没变就复用已上传的 GL 纹理，避免每帧 texImage2D 造成卡顿。
+            if (texture.generationId == generationId) {
+                return texture;
+            }
+            // 尺寸没变且调用方标记了脏区域：只把变化的区域更新到已有纹理。
+            final int dirtyCount = watermark.dirtyRegion.drainTo(dirtyRects, dirtyGeneration,
+                    bitmap.getWidth(), bitmap.getHeight());
+            if (dirtyCount > 0 && texture.config == Bitmap.Config.ARGB_8888) {
+                GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture.textureId);
+                boolean uploaded;
+                try {
+                    uploaded = regionUploader.upload(bitmap, dirtyRects, dirtyCount, 0, 0);
+                } catch (RuntimeException e) {
+                    // 局部更新失败时纹理内容不可信，下面删除后整张重新上传。
+                    Logging.e(TAG, "Failed to upload dirty regions.", e);
+                    uploaded = false;
+                }
+                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+                if (uploaded) {
+                    // 只认 invalidate 时记录的 generationId：Bitmap 已经更新、但最后一次 invalidate 还没调用时，
+                    // 纹理仍然是旧的，下一帧 generationId 不一致会再处理。
+                    texture.generationId = dirtyGeneration[0];
+                    return texture;
+                }
+            }
+        }
+        deleteTexture(texture);
+
+        // Bitmap 新建或内容已变化：上传到 GL_TEXTURE_2D，之后绘制水印只绑定纹理即可。
+        // 整张上传已经包含所有脏区域。
+        watermark.dirtyRegion.clear();
+        texture.textureId = GlUtil.generateTexture(GLES20.GL_TEXTURE_2D);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture.textureId);
+        GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GlUtil.checkNoGLES2Error("WatermarkTextureCache.uploadWatermarkTexture");
+        texture.width = bitmap.getWidth();
+        texture.height = bitmap.getHeight();
+        texture.generationId = generationId;
+        texture.config = bitmap.getConfig();
+        return texture;
+    }
+
+    void releaseAll() {
+        for (WatermarkTexture texture : textures.values()) {
+            deleteTexture(texture);
+        }
+        textures.clear();
+    }
+
+    private static void deleteTexture(WatermarkTexture texture) {
+        if (texture.textureId != 0) {
+            GLES20.glDeleteTextures(1, new int[]{texture.textureId}, 0);
+            texture.textureId = 0;
+        }
+    }
+}
@@ -9,28 +9,35 @@ package org.webrtc;
 
 import android.graphics.Bitmap;
 import android.graphics.Matrix;
+import android.graphics.Rect;
 import android.opengl.GLES20;
-import android.opengl.GLUtils;
+import android.opengl.GLES30;
 import android.os.Handler;
-import android.os.HandlerThread;
+import android.os.SystemClock;
 
 import androidx.annotation.Nullable;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 给视频帧绘制一组或多组 Bitmap 水印的 {@link VideoProcessor}。
  *
  * <p>水印坐标按“视觉正方向”的画面理解：{@code (0, 0)} 表示左上角，x 向右增长，
  * y 向下增长，画面尺寸使用 {@link VideoFrame#getRotatedWidth()} x
- * {@link VideoFrame#getRotatedHeight()}。处理后的输出帧是 RGB
- * {@link VideoFrame.TextureBuffer}，并且 rotation 固定为 0。
+ * {@link VideoFrame#getRotatedHeight()}。处理后的输出帧默认是 RGB
+ * {@link VideoFrame.TextureBuffer}，也可以通过 {@link #setOutputMode} 改为 I420，rotation 固定为 0。
+ * 输入是 CPU buffer 时默认直接在 CPU 上混合，输出 I420，见 {@link #setCpuFastPathEnabled}。
  *
  * <p>也就是说，调用方只需要按用户看到的正常方向配置水印位置，本类内部负责处理
  * WebRTC frame rotation、纹理 transform、FBO 离屏渲染和 OpenGL 坐标系差异。
@@ -38,13 +45,6 @@ import java.util.concurrent.atomic.AtomicBoolean;
 public class WatermarkVideoProcessor implements VideoProcessor {
     private static final String TAG = "WatermarkVideoProcessor";
 
-    // 水印片元 shader：从水印纹理中采样当前像素，并乘上外部传入的整体透明度 alpha。
-    private static final String WATERMARK_FRAGMENT_SHADER =
-            "uniform float alpha;\n"
-                    + "void main() {\n"
-                    + "  gl_FragColor = sample(tc) * alpha;\n"
-                    + "}\n";
-
     // Bitmap 像素数据的原点在左上角，OpenGL 纹理坐标的原点在左下角；这里预先做一次 Y 翻转。
     private static final float[] BITMAP_TEXTURE_MATRIX = createBitmapTextureMatrix();
 
@@ -61,8 +61,87 @@ public class WatermarkVideoProcessor implements VideoProcessor {
         BOTTOM_RIGHT
     }
 
+    // GL 线程处理不过来、排队帧数达到上限时的丢帧策略。
+    public enum FrameDropPolicy {
+        // 丢掉队列里最旧的帧，保证输出延迟最低。
+        DROP_OLDEST,
+        // 丢掉新到的帧，保证已经排队的帧按顺序处理完。
+        DROP_NEWEST
+    }
+
+    // 处理后输出帧的 buffer 类型。
+    public enum OutputMode {
+        // 输出 RGB TextureBuffer，适合硬件编码器和本地渲染。
+        TEXTURE,
+        // 在 GL 线程上直接转成 I420 输出，适合 VP8/VP9 等软件编码器，避免编码线程同步 glReadPixels。
+        I420
+    }
+
     private enum SizeMode {PIXELS, FRAME_WIDTH_FRACTION, FRAME_HEIGHT_FRACTION}
 
+    /**
+     * Bitmap 上等待上传的脏区域。调用方线程写入，GL 线程取出，内部加锁；矩形对象预先分配，
+     * 超过上限时合并成一个外接矩形。
+     *
+     * <p>同时记录最后一次 invalidate 时 Bitmap 的 generationId，和脏区域一起取出：GL 线程看到
+     * 新的 generationId 时，对应的 invalidate 可能还没调用，只有记录的 generationId 和纹理要对齐的
+     * 一致，才能认为纹理已经是最新内容。
+     */
+    static final class DirtyRegion {
+        static final int MAX_RECTS = 8;
+
+        private final Rect[] rects = new Rect[MAX_RECTS];
+        private int count;
+        private int generationId;
+
+        DirtyRegion() {
+            for (int i = 0; i < MAX_RECTS; i++) {
+                rects[i] = new Rect();
+            }
+        }
+
+        /**
+         * @param generationId 修改完成后 Bitmap 的 generationId
+         */
+        synchronized void add(Rect dirty, int generationId) {
+            this.generationId = generationId;
+            if (count == MAX_RECTS) {
+                for (int i = 1; i < count; i++) {
+                    rects[0].union(rects[i]);
+                }
+                rects[0].union(dirty);
+                count = 1;
+                return;
+            }
+            rects[count++].set(dirty);
+        }
+
+        /**
+         * 取出所有脏区域并清空记录。
+         *
+         * @param out           至少 {@link #MAX_RECTS} 个预先分配的 Rect
+         * @param generationOut 长度至少为 1，返回非 0 时写入最后一次 invalidate 记录的 generationId
+         * @return 裁剪到 Bitmap 范围后仍非空的区域数量
+         */
+        synchronized int drainTo(Rect[] out, int[] generationOut, int bitmapWidth, int bitmapHeight) {
+            int outCount = 0;
+            for (int i = 0; i < count; i++) {
+                final Rect rect = out[outCount];
+                rect.set(rects[i]);
+                if (rect.intersect(0, 0, bitmapWidth, bitmapHeight)) {
+                    outCount++;
+                }
+            }
+            count = 0;
+            generationOut[0] = generationId;
+            return outCount;
+        }
+
+        synchronized void clear() {
+            count = 0;
+        }
+    }
+
     public static final class Watermark {
         // 原始水印图。为了性能，实际绘制时会缓存成 GL_TEXTURE_2D。
         public final Bitmap bitmap;
@@ -74,9 +153,17 @@ public class WatermarkVideoProcessor implements VideoProcessor {
         private final SizeMode sizeMode;
         private final float widthValue;
         private final float heightValue;
+        // withAlpha/withOffset/withAnchor 生成的新配置共用同一张 Bitmap，所以也共用同一份脏区域。
+        final DirtyRegion dirtyRegion;
 
         private Watermark(Bitmap bitmap, SizeMode sizeMode, float widthValue, float heightValue,
                           Anchor anchor, int offsetXPx, int offsetYPx, float alpha) {
+            this(bitmap, sizeMode, widthValue, heightValue, anchor, offsetXPx, offsetYPx, alpha,
+                    new DirtyRegion());
+        }
+
+        private Watermark(Bitmap bitmap, SizeMode sizeMode, float widthValue, float heightValue,
+                          Anchor anchor, int offsetXPx, int offsetYPx, float alpha, DirtyRegion dirtyRegion) {
             if (bitmap == null) {
                 throw new IllegalArgumentException("bitmap must not be null.");
             }
@@ -94,6 +181,7 @@ public class WatermarkVideoProcessor implements VideoProcessor {
             this.offsetXPx = offsetXPx;
             this.offsetYPx = offsetYPx;
             this.alpha = clamp(alpha, 0f, 1f);
+            this.dirtyRegion = dirtyRegion;
         }
 
         /**
@@ -142,21 +230,40 @@ public class WatermarkVideoProcessor implements VideoProcessor {
          * 返回一个只修改整体透明度的新水印配置，原对象保持不变。
          */
         public Watermark withAlpha(float alpha) {
-            return new Watermark(bitmap, sizeMode, widthValue, heightValue, anchor, offsetXPx, offsetYPx, alpha);
+            return new Watermark(bitmap, sizeMode, widthValue, heightValue, anchor, offsetXPx, offsetYPx, alpha,
+                    dirtyRegion);
         }
 
         /**
          * 返回一个只修改偏移量的新水印配置，偏移量仍按视觉坐标理解。
          */
         public Watermark withOffset(int offsetXPx, int offsetYPx) {
-            return new Watermark(bitmap, sizeMode, widthValue, heightValue, anchor, offsetXPx, offsetYPx, alpha);
+            return new Watermark(bitmap, sizeMode, widthValue, heightValue, anchor, offsetXPx, offsetYPx, alpha,
+                    dirtyRegion);
         }
 
         /**
          * 返回一个只修改锚点的新水印配置。
          */
         public Watermark withAnchor(Anchor anchor) {
-            return new Watermark(bitmap, sizeMode, widthValue, heightValue, anchor, offsetXPx, offsetYPx, alpha);
+            return new Watermark(bitmap, sizeMode, widthValue, heightValue, anchor, offsetXPx, offsetYPx, alpha,
+                    dirtyRegion);
+        }
+
+        /**
+         * 标记 Bitmap 中内容发生变化的区域，坐标是 Bitmap 自身的像素坐标。
+         *
+         * <p>先修改 Bitmap，再调用本方法。Bitmap 的 generationId 变化时，处理器只把这些区域用
+         * glTexSubImage2D 更新到已有纹理里，适合时钟、比分这类局部刷新的水印。没有调用本方法时，
+         * 仍然整张重新上传。只有 {@link Bitmap.Config#ARGB_8888} 支持局部上传。
+         */
+        public void invalidate(Rect dirty) {
+            if (dirty == null) {
+                throw new IllegalArgumentException("dirty must not be null.");
+            }
+            if (!dirty.isEmpty()) {
+                dirtyRegion.add(dirty, bitmap.getGenerationId());
+            }
         }
 
         /**
@@ -197,53 +304,9 @@ public class WatermarkVideoProcessor implements VideoProcessor {
                 return ResolvedWatermark.empty();
             }
 
-            int x;
-            int y;
             // 再根据锚点把 offset 转换成视觉坐标系中的左上角坐标。
-            switch (anchor) {
-                case TOP_LEFT:
-                    x = offsetXPx;
-                    y = offsetYPx;
-                    break;
-                case TOP_CENTER:
-                    x = (frameWidth - width) / 2 + offsetXPx;
-                    y = offsetYPx;
-                    break;
-                case TOP_RIGHT:
-                    x = frameWidth - width - offsetXPx;
-                    y = offsetYPx;
-                    break;
-                case CENTER_LEFT:
-                    x = offsetXPx;
-                    y = (frameHeight - height) / 2 + offsetYPx;
-                    break;
-                case CENTER:
-                    x = (frameWidth - width) / 2 + offsetXPx;
-                    y = (frameHeight - height) / 2 + offsetYPx;
-                    break;
-                case CENTER_RIGHT:
-                    x = frameWidth - width - offsetXPx;
-                    y = (frameHeight - height) / 2 + offsetYPx;
-                    break;
-                case BOTTOM_LEFT:
-                    x = offsetXPx;
-                    y = frameHeight - height - offsetYPx;
-                    break;
-                case BOTTOM_CENTER:
-                    x = (frameWidth - width) / 2 + offsetXPx;
-                    y = frameHeight - height - offsetYPx;
-                    break;
-                case BOTTOM_RIGHT:
-                    x = frameWidth - width - offsetXPx;
-                    y = frameHeight - height - offsetYPx;
-                    break;
-                default:
-                    throw new IllegalStateException("Unknown anchor.");
-            }
-
-            // 不让水印跑出画面外。后续如果需要允许半透明水印被裁切，可以把这里改成不 clamp。
-            x = clamp(x, 0, Math.max(0, frameWidth - width));
-            y = clamp(y, 0, Math.max(0, frameHeight - height));
+            final int x = anchoredX(anchor, offsetXPx, width, frameWidth);
+            final int y = anchoredY(anchor, offsetYPx, height, frameHeight);
             return new ResolvedWatermark(x, y, width, height);
         }
     }
@@ -270,66 +333,173 @@ public class WatermarkVideoProcessor implements VideoProcessor {
         }
     }
 
-    private static final class WatermarkTexture {
+    /**
+     * 某个水印列表在某个输出尺寸下预先算好的绘制布局，创建后不再修改。
+     *
+     * <p>只有 {@link #setWatermarks} 换了列表，或者旋转后的帧尺寸变化时才重新计算，
+     * 每帧的绘制循环直接读数组，不再调用 resolve()，也不分配对象。
+     */
+    private static final class WatermarkLayout {
+        // 计算布局时使用的列表，按对象身份比较；setWatermarks 每次都会换成新的列表对象。
+        final List<Watermark> source;
+        final int outputWidth;
+        final int outputHeight;
+        final int count;
+        final Watermark[] watermarks;
+        // 视觉坐标系（左上角为原点）中的左上角。
+        final int[] visualX;
+        final int[] visualY;
+        // glViewport 使用的左下角坐标。
+        final int[] viewportX;
+        final int[] viewportY;
+        final int[] width;
+        final int[] height;
+        final float[] alpha;
+
+        WatermarkLayout(List<Watermark> source, int outputWidth, int outputHeight) {
+            this.source = source;
+            this.outputWidth = outputWidth;
+            this.outputHeight = outputHeight;
+            final int capacity = source.size();
+            watermarks = new Watermark[capacity];
+            visualX = new int[capacity];
+            visualY = new int[capacity];
+            viewportX = new int[capacity];
+            viewportY = new int[capacity];
+            width = new int[capacity];
+            height = new int[capacity];
+            alpha = new float[capacity];
+            int resolvedCount = 0;
+            for (int i = 0; i < capacity; i++) {
+                final Watermark watermark = source.get(i);
+                if (watermark == null) {
+                    continue;
+                }
+                final ResolvedWatermark resolved = watermark.resolve(outputWidth, outputHeight);
+                if (resolved.isEmpty()) {
+                    continue;
+                }
+                watermarks[resolvedCount] = watermark;
+                visualX[resolvedCount] = resolved.visualX;
+                visualY[resolvedCount] = resolved.visualY;
+                viewportX[resolvedCount] = resolved.visualX;
+                // 视觉坐标 y=0 在上方，而 glViewport 的 y=0 在下方，所以这里要翻转 Y。
+                viewportY[resolvedCount] = outputHeight - resolved.visualY - resolved.height;
+                width[resolvedCount] = resolved.width;
+                height[resolvedCount] = resolved.height;
+                alpha[resolvedCount] = watermark.alpha;
+                resolvedCount++;
+            }
+            count = resolvedCount;
+        }
+
+        boolean matches(List<Watermark> source, int outputWidth, int outputHeight) {
+            return this.source == source && this.outputWidth == outputWidth && this.outputHeight == outputHeight;
+        }
+    }
+
+    /**
+     * 一组可复用的输出纹理 + FBO。FBO 始终挂着同一张纹理，复用时只需重新 bind。
+     */
+    private static final class OutputTarget {
         final int textureId;
+        final int frameBufferId;
         final int width;
         final int height;
-        // Bitmap 内容变化时 generationId 会变化，用它判断缓存的 GL 纹理是否需要重新上传。
-        final int generationId;
 
-        WatermarkTexture(int textureId, int width, int height, int generationId) {
+        OutputTarget(int textureId, int frameBufferId, int width, int height) {
             this.textureId = textureId;
+            this.frameBufferId = frameBufferId;
             this.width = width;
             this.height = height;
-            this.generationId = generationId;
         }
     }
 
-    private static final class WatermarkShaderCallbacks implements GlGenericDrawer.ShaderCallbacks {
-        private int alphaLocation;
-        private float alpha = 1f;
-
-        void setAlpha(float alpha) {
-            this.alpha = alpha;
-        }
-
-        @Override
-        public void onNewShader(GlShader shader) {
-            // shader 第一次创建或切换输入类型时拿 uniform 位置，避免每帧重复查找。
-            alphaLocation = shader.getUniformLocation("alpha");
-        }
-
-        @Override
-        public void onPrepareShader(GlShader shader, float[] texMatrix, int frameWidth,
-                                    int frameHeight, int viewportWidth, int viewportHeight) {
-            GLES20.glUniform1f(alphaLocation, alpha);
-        }
-    }
-
-    // 所有 OpenGL 调用都必须在同一个有 current EGLContext 的线程上执行。
-    private final HandlerThread renderThread;
+    // 每种输出尺寸默认最多缓存的空闲输出纹理数量。
+    private static final int DEFAULT_MAX_POOLED_OUTPUT_TARGETS = 3;
+    // 默认最多排队的帧数。超过后按丢帧策略丢帧，避免 GL 线程落后时相机 buffer 被无限持有。
+    private static final int DEFAULT_MAX_PENDING_FRAMES = 3;
+    // I420 输出比输入晚一帧；输入停下来后，最后一帧最多再等这么久就取出来送给下游。
+    private static final long I420_FLUSH_DELAY_MS = 50;
+
+    // 所有 OpenGL 调用都在 glContext 的渲染线程上执行；多个处理器可以共用同一个 glContext。
+    private final GlProcessingContext glContext;
+    // 处理器自己创建的 glContext 在 dispose 时一起释放；外部传入的由调用方负责释放。
+    private final boolean ownsGlContext;
     private final Handler renderHandler;
     private final AtomicBoolean disposed = new AtomicBoolean(false);
-    // 用 Bitmap 对象身份作为 key；同内容但不同 Bitmap 实例会各自上传纹理。
-    private final IdentityHashMap<Bitmap, WatermarkTexture> watermarkTextures = new IdentityHashMap<>();
+    // 等待 GL 线程处理的帧，都已经 retain；由 frameQueueLock 保护。
+    private final ArrayDeque<VideoFrame> pendingFrames = new ArrayDeque<>();
+    private final Object frameQueueLock = new Object();
+    // 本处理器在 glContext 共享纹理缓存中引用的 Bitmap；同内容但不同 Bitmap 实例会各自上传纹理。
+    private final IdentityHashMap<Bitmap, Boolean> retainedBitmaps = new IdentityHashMap<>();
+    // 空闲输出纹理池，key 为 outputSizeKey(width, height)；只在 GL 线程上访问。
+    private final Map<Long, ArrayDeque<OutputTarget>> outputTargetPools = new HashMap<>();
 
     @Nullable
     private volatile VideoSink sink;
     private volatile List<Watermark> watermarks = Collections.emptyList();
+    private volatile List<TextWatermark> textWatermarks = Collections.emptyList();
     private volatile boolean enabled = true;
-
-    @Nullable
-    private EglBase eglBase;
-    @Nullable
-    private VideoFrameDrawer frameDrawer;
+    private volatile boolean atlasEnabled;
+    private volatile OutputMode outputMode = OutputMode.TEXTURE;
+    private volatile boolean cpuFastPathEnabled = true;
+    private volatile int maxPooledOutputTargets = DEFAULT_MAX_POOLED_OUTPUT_TARGETS;
+    // 只在 GL 线程上写，volatile 保证其它线程读到最新值。
+    private volatile long outputTexturePoolHits;
+    private volatile long outputTexturePoolMisses;
+    private volatile int maxPendingFrames = DEFAULT_MAX_PENDING_FRAMES;
+    private volatile FrameDropPolicy frameDropPolicy = FrameDropPolicy.DROP_OLDEST;
+    // 以下计数由 frameQueueLock 保护写入。
+    private volatile long droppedFrames;
+    private volatile int maxQueueDepth;
+    // 与 pendingFrames 一一对应的入队时间（环形数组），由 frameQueueLock 保护；没开统计时记为 0。
+    private long[] enqueueTimesNs = new long[DEFAULT_MAX_PENDING_FRAMES];
+    private int enqueueTimesHead;
+
+    private volatile boolean statsEnabled;
+    private final AtomicLong framesProcessed = new AtomicLong();
+    private final AtomicLong framesForwarded = new AtomicLong();
+    private final AtomicLong framesFailed = new AtomicLong();
+    private final LatencyHistogram queueWaitHistogram = new LatencyHistogram();
+    private final LatencyHistogram drawFrameHistogram = new LatencyHistogram();
+    private final LatencyHistogram drawWatermarksHistogram = new LatencyHistogram();
+    private final LatencyHistogram gpuHistogram = new LatencyHistogram();
+    private final LatencyHistogram sinkHandoffHistogram = new LatencyHistogram();
+    // 统计 GPU 耗时用的 fence 和它的插入时间，只在 GL 线程上访问；0 表示没有在等的 fence。
+    private long gpuFence;
+    private long gpuFenceStartNs;
+
+    // 当前水印列表 + 输出尺寸对应的布局缓存，只在 GL 线程上访问。
     @Nullable
-    private GlRectDrawer frameGlDrawer;
+    private WatermarkLayout watermarkLayout;
     @Nullable
-    private WatermarkShaderCallbacks watermarkShaderCallbacks;
+    private WatermarkAtlas watermarkAtlas;
+    // 每个文字水印各自的字形图集，按对象身份缓存。
+    private final IdentityHashMap<TextWatermark, GlyphAtlas> glyphAtlases = new IdentityHashMap<>();
+    private final BitmapRegionUploader regionUploader = new BitmapRegionUploader();
+    // GL 线程取脏区域用的临时数组，预先分配，避免每帧创建 Rect。
+    private final Rect[] dirtyRects = createRects(DirtyRegion.MAX_RECTS);
+    // setWatermarks 之后需要重新打包图集；打包失败时在下一次 setWatermarks 之前都改用逐张绘制。
+    private boolean atlasDirty = true;
+    private boolean atlasUnavailable;
+    // I420 输出的 PBO 异步读回；当前 context 不支持 ES 3.0 时为 null，退回 YuvConverter 同步转换。
     @Nullable
-    private GlGenericDrawer watermarkDrawer;
-    @Nullable
-    private YuvConverter yuvConverter;
+    private AsyncI420Converter i420Converter;
+    private boolean i420ConverterChecked;
+    private final Runnable flushI420Runnable = this::onI420FlushTimeout;
+    // 以下两个字段只在 GL 线程上访问：flushI420Runnable 是否已经在队列里，最近一次异步读回的时间。
+    // 每帧只更新时间，不再每帧 removeCallbacks + postDelayed 分配 Message。
+    private boolean i420FlushScheduled;
+    private long lastI420ConvertMs;
+    // CPU buffer 输入时使用：预先转换成 I420 + alpha 的水印，按水印对象身份缓存；以及复用的输出 buffer。
+    private final IdentityHashMap<Watermark, YuvWatermark> yuvWatermarks = new IdentityHashMap<>();
+    // 无法在 CPU 上转换的水印（例如 HARDWARE Bitmap），包含它们的帧直接走 GPU 流程，不再每帧重试。
+    private final Set<Watermark> cpuUnsupportedWatermarks =
+            Collections.newSetFromMap(new IdentityHashMap<Watermark, Boolean>());
+    // processCpuFrame 每帧复用，用完清空。
+    private YuvWatermark[] preparedYuvWatermarks = new YuvWatermark[0];
+    private final I420BufferPool i420BufferPool = new I420BufferPool(DEFAULT_MAX_POOLED_OUTPUT_TARGETS);
 
     private int pendingOutputTextures;
     // dispose() 以后不能立刻释放 EGL：下游可能还持有本类输出的纹理帧。
@@ -341,16 +511,32 @@ public class WatermarkVideoProcessor implements VideoProcessor {
     }
 
     public WatermarkVideoProcessor(EglBase.Context sharedContext, String threadName) {
-        if (sharedContext == null) {
-            throw new IllegalArgumentException("sharedContext must not be null.");
+        this(GlProcessingContext.create(sharedContext, threadName), true);
+    }
+
+    /**
+     * 挂到一个共用的 {@link GlProcessingContext} 上。多路视频各用一个处理器、共用同一个
+     * glContext 时，只有一个 GL 线程和一个 EGLContext，各路帧按轮转顺序处理。
+     *
+     * <p>glContext 由调用方负责 {@link GlProcessingContext#release()}。
+     */
+    public WatermarkVideoProcessor(GlProcessingContext glContext) {
+        this(glContext, false);
+    }
+
+    private WatermarkVideoProcessor(GlProcessingContext glContext, boolean ownsGlContext) {
+        if (glContext == null) {
+            throw new IllegalArgumentException("glContext must not be null.");
         }
-        renderThread = new HandlerThread(threadName);
-        renderThread.start();
-        renderHandler = new Handler(renderThread.getLooper());
+        this.glContext = glContext;
+        this.ownsGlContext = ownsGlContext;
+        this.renderHandler = glContext.getHandler();
         try {
-            ThreadUtils.invokeAtFrontUninterruptibly(renderHandler, () -> initGl(sharedContext));
+            glContext.attach();
         } catch (RuntimeException e) {
-            renderThread.quit();
+            if (ownsGlContext) {
+                glContext.release();
+            }
             throw e;
         }
     }
@@ -362,6 +548,154 @@ public class WatermarkVideoProcessor implements VideoProcessor {
         this.enabled = enabled;
     }
 
+    /**
+     * 设置最多排队等待 GL 线程处理的帧数，以及排满后的丢帧策略。被丢掉的帧会立刻 release。
+     *
+     * <p>GL 线程因为降频、大水印上传等原因处理不过来时，排队的帧都持有相机 buffer，
+     * 不限制的话延迟和内存会一直增长。默认最多排队 3 帧，丢弃最旧的帧。
+     */
+    public void setFrameQueueLimit(int maxPendingFrames, FrameDropPolicy frameDropPolicy) {
+        if (maxPendingFrames <= 0) {
+            throw new IllegalArgumentException("maxPendingFrames must be positive.");
+        }
+        if (frameDropPolicy == null) {
+            throw new IllegalArgumentException("frameDropPolicy must not be null.");
+        }
+        this.maxPendingFrames = maxPendingFrames;
+        this.frameDropPolicy = frameDropPolicy;
+    }
+
+    /**
+     * 因为排队帧数达到上限而被丢掉的帧数。
+     */
+    public long getDroppedFrameCount() {
+        return droppedFrames;
+    }
+
+    /**
+     * 当前排队等待 GL 线程处理的帧数。
+     */
+    public int getQueueDepth() {
+        synchronized (frameQueueLock) {
+            return pendingFrames.size();
+        }
+    }
+
+    /**
+     * 出现过的最大排队帧数。
+     */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    /**
+     * 开启各阶段耗时统计，默认关闭。帧数计数不受影响，始终有效。
+     *
+     * <p>统计排队等待、画原视频帧、叠加水印、GPU 执行、交给下游 sink 这几个阶段的耗时，记录进固定桶的
+     * 直方图，不分配对象。GPU 耗时需要 OpenGL ES 3.0 的 fence sync，在后续帧上不阻塞地查询，
+     * 记录的是插入 fence 到查询到执行完成的时间，是 GPU 耗时的上限。
+     */
+    public void setStatsEnabled(boolean statsEnabled) {
+        this.statsEnabled = statsEnabled;
+    }
+
+    /**
+     * 返回当前统计的快照，可以在任意线程上调用。
+     */
+    public WatermarkProcessorStats getStats() {
+        return new WatermarkProcessorStats(framesProcessed.get(), framesForwarded.get(), framesFailed.get(),
+                droppedFrames, queueWaitHistogram.snapshot(), drawFrameHistogram.snapshot(),
+                drawWatermarksHistogram.snapshot(), gpuHistogram.snapshot(), sinkHandoffHistogram.snapshot());
+    }
+
+    /**
+     * 清空各阶段耗时统计和帧数计数（包括丢帧数）。
+     */
+    public void resetStats() {
+        framesProcessed.set(0);
+        framesForwarded.set(0);
+        framesFailed.set(0);
+        synchronized (frameQueueLock) {
+            droppedFrames = 0;
+        }
+        queueWaitHistogram.reset();
+        drawFrameHistogram.reset();
+        drawWatermarksHistogram.reset();
+        gpuHistogram.reset();
+        sinkHandoffHistogram.reset();
+    }
+
+    /**
+     * 开启后把所有水印 Bitmap 打包进一张图集纹理，并用一次 draw call 画出全部水印。
+     *
+     * <p>适合同时叠加很多张小水印（logo、角标、标签）的场景。图集只会在 {@link #setWatermarks}
+     * 改变水印集合，或者某张 Bitmap 的 generationId 变化时重新打包；图集超过
+     * GL_MAX_TEXTURE_SIZE 时自动退回逐张绘制。
+     */
+    public void setAtlasEnabled(boolean atlasEnabled) {
+        this.atlasEnabled = atlasEnabled;
+        if (!atlasEnabled && !disposed.get()) {
+            renderHandler.post(this::releaseWatermarkAtlas);
+        }
+    }
+
+    /**
+     * 设置输出帧的 buffer 类型，默认 {@link OutputMode#TEXTURE}。
+     *
+     * <p>下游是软件编码器时，RGB 纹理帧会在编码线程上通过 YuvConverter 同步 glReadPixels 转成 I420，
+     * 每帧都要等 GPU 画完。设为 {@link OutputMode#I420} 后，本类在 GL 线程上用双缓冲 PBO 异步读回，
+     * 输出的帧已经在内存里，GPU 等待被流水线化掉，代价是输出比输入晚一帧。
+     * 设备不支持 OpenGL ES 3.0 时退回同步转换。
+     */
+    public void setOutputMode(OutputMode outputMode) {
+        if (outputMode == null) {
+            throw new IllegalArgumentException("outputMode must not be null.");
+        }
+        this.outputMode = outputMode;
+        if (outputMode == OutputMode.TEXTURE && !disposed.get()) {
+            // 切回纹理输出时把还在读回的最后一帧送出去。
+            renderHandler.post(this::flushI420Frame);
+        }
+    }
+
+    /**
+     * 输入是 NV21Buffer、JavaI420Buffer 等 CPU buffer 时，是否直接在 I420 上混合水印，默认开启。
+     *
+     * <p>开启后这类帧不再上传成纹理、画进 FBO 再读回，而是复制（同时按 rotation 旋转）到一个复用的
+     * I420 buffer 里，把预先转换好的水印混合上去，输出 rotation 为 0 的 I420 帧。
+     * 设置了文字水印时仍然走 GPU 流程。
+     */
+    public void setCpuFastPathEnabled(boolean cpuFastPathEnabled) {
+        this.cpuFastPathEnabled = cpuFastPathEnabled;
+    }
+
+    /**
+     * 设置每种输出尺寸最多缓存多少张空闲输出纹理（连同各自的 FBO），传 0 表示不缓存，
+     * 每帧都重新创建。
+     *
+     * <p>下游（编码器、渲染器）同时持有的帧数一般不超过 2~3 帧，默认值为 3。
+     */
+    public void setMaxPooledOutputTextures(int maxPooledOutputTextures) {
+        if (maxPooledOutputTextures < 0) {
+            throw new IllegalArgumentException("maxPooledOutputTextures must not be negative.");
+        }
+        this.maxPooledOutputTargets = maxPooledOutputTextures;
+    }
+
+    /**
+     * 输出纹理直接从池里取到的次数。
+     */
+    public long getOutputTexturePoolHits() {
+        return outputTexturePoolHits;
+    }
+
+    /**
+     * 池里没有可用纹理、需要新建输出纹理和 FBO 的次数。
+     */
+    public long getOutputTexturePoolMisses() {
+        return outputTexturePoolMisses;
+    }
+
     /**
      * 批量设置水印列表。
      *
@@ -376,7 +710,12 @@ public class WatermarkVideoProcessor implements VideoProcessor {
         }
         if (!disposed.get()) {
             // 配置变更后，异步清理不再使用的水印纹理，避免长期占用显存。
-            renderHandler.post(() -> releaseUnusedWatermarkTextures(this.watermarks));
+            renderHandler.post(() -> {
+                releaseUnusedWatermarkTextures(this.watermarks);
+                releaseUnusedYuvWatermarks(this.watermarks);
+                atlasDirty = true;
+                atlasUnavailable = false;
+            });
         }
     }
 
@@ -390,6 +729,31 @@ public class WatermarkVideoProcessor implements VideoProcessor {
         setWatermarks(watermarkList);
     }
 
+    /**
+     * 设置逐帧排版的文字水印，例如时间戳、帧号。和 {@link #setWatermarks} 设置的 Bitmap 水印互不影响，
+     * 文字水印画在 Bitmap 水印之上。
+     */
+    public void setTextWatermarks(List<TextWatermark> textWatermarks) {
+        if (textWatermarks == null || textWatermarks.isEmpty()) {
+            this.textWatermarks = Collections.emptyList();
+        } else {
+            this.textWatermarks = Collections.unmodifiableList(textWatermarks);
+        }
+        if (!disposed.get()) {
+            renderHandler.post(() -> releaseUnusedGlyphAtlases(this.textWatermarks));
+        }
+    }
+
+    public void setTextWatermarks(TextWatermark... textWatermarks) {
+        if (textWatermarks == null || textWatermarks.length == 0) {
+            setTextWatermarks(Collections.emptyList());
+            return;
+        }
+        final List<TextWatermark> textWatermarkList = new ArrayList<>(textWatermarks.length);
+        Collections.addAll(textWatermarkList, textWatermarks);
+        setTextWatermarks(textWatermarkList);
+    }
+
     /**
      * 释放处理器持有的 GL/EGL 资源。
      *
@@ -402,6 +766,8 @@ public class WatermarkVideoProcessor implements VideoProcessor {
         }
         sink = null;
         watermarks = Collections.emptyList();
+        textWatermarks = Collections.emptyList();
+        releasePendingFrames();
         renderHandler.post(() -> {
             releaseRequested = true;
             maybeReleaseGlResources();
@@ -424,21 +790,168 @@ public class WatermarkVideoProcessor implements VideoProcessor {
         if (disposed.get()) {
             return;
         }
-        if (!enabled || watermarks.isEmpty()) {
-            // 第一版只处理 TextureBuffer。I420/NV21 等 CPU buffer 先透传，后续可扩展上传到 GL 后复用本流程。
+        if (!enabled || (watermarks.isEmpty() && textWatermarks.isEmpty())) {
+            framesForwarded.incrementAndGet();
             forwardFrame(frame);
             return;
         }
 
         // 后续会切到 GL 线程异步处理，所以这里先 retain，避免调用方释放后 buffer 提前失效。
         frame.retain();
-        renderHandler.post(() -> {
-            try {
-                processTextureFrame(frame);
-            } finally {
+        final long enqueueTimeNs = statsEnabled ? System.nanoTime() : 0;
+        VideoFrame droppedFrame = null;
+        synchronized (frameQueueLock) {
+            // dispose 先设置 disposed 再在锁内清空队列：这里在锁内再检查一次，
+            // 否则和 dispose 并发时入队的帧不会再有人 release。
+            if (disposed.get()) {
                 frame.release();
+                return;
             }
-        });
+            if (pendingFrames.size() >= maxPendingFrames) {
+                droppedFrames++;
+                if (frameDropPolicy == FrameDropPolicy.DROP_NEWEST) {
+                    droppedFrame = frame;
+                } else {
+                    droppedFrame = pendingFrames.pollFirst();
+                    pollEnqueueTime();
+                    pendingFrames.addLast(frame);
+                    addEnqueueTime(enqueueTimeNs);
+                }
+            } else {
+                pendingFrames.addLast(frame);
+                addEnqueueTime(enqueueTimeNs);
+                maxQueueDepth = Math.max(maxQueueDepth, pendingFrames.size());
+            }
+        }
+        if (droppedFrame != null) {
+            // 被丢掉的帧立刻 release，尽快把 buffer 还给相机。
+            droppedFrame.release();
+            return;
+        }
+        glContext.scheduleFrame(this);
+    }
+
+    /**
+     * 由 glContext 在 GL 线程上轮转调用，每次取出最早排队的一帧处理。
+     *
+     * @return 队列里是否还有帧，有的话 glContext 会把本处理器排回轮转队尾
+     */
+    boolean processPendingFrame() {
+        final VideoFrame frame;
+        final long enqueueTimeNs;
+        synchronized (frameQueueLock) {
+            frame = pendingFrames.pollFirst();
+            enqueueTimeNs = frame != null ? pollEnqueueTime() : 0;
+        }
+        if (frame == null) {
+            return false;
+        }
+        if (statsEnabled) {
+            recordStage(queueWaitHistogram, enqueueTimeNs);
+        }
+        try {
+            if (frame.getBuffer() instanceof VideoFrame.TextureBuffer || !processCpuFrame(frame)) {
+                processTextureFrame(frame);
+            }
+        } finally {
+            frame.release();
+        }
+        synchronized (frameQueueLock) {
+            return !pendingFrames.isEmpty();
+        }
+    }
+
+    private void releasePendingFrames() {
+        while (true) {
+            final VideoFrame frame;
+            synchronized (frameQueueLock) {
+                frame = pendingFrames.pollFirst();
+                if (frame != null) {
+                    pollEnqueueTime();
+                }
+            }
+            if (frame == null) {
+                return;
+            }
+            frame.release();
+        }
+    }
+
+    /**
+     * 记录刚加入队尾的帧的入队时间，必须持有 frameQueueLock，并且在 pendingFrames.addLast 之后调用。
+     */
+    private void addEnqueueTime(long enqueueTimeNs) {
+        final int size = pendingFrames.size();
+        if (size > enqueueTimesNs.length) {
+            // maxPendingFrames 调大了：按顺序搬到新数组里。
+            final long[] grown = new long[Math.max(size, enqueueTimesNs.length * 2)];
+            for (int i = 0; i < size - 1; i++) {
+                grown[i] = enqueueTimesNs[(enqueueTimesHead + i) % enqueueTimesNs.length];
+            }
+            enqueueTimesNs = grown;
+            enqueueTimesHead = 0;
+        }
+        enqueueTimesNs[(enqueueTimesHead + size - 1) % enqueueTimesNs.length] = enqueueTimeNs;
+    }
+
+    /**
+     * 取出队首帧的入队时间，必须持有 frameQueueLock，并且在 pendingFrames.pollFirst 取到帧之后调用。
+     */
+    private long pollEnqueueTime() {
+        final long enqueueTimeNs = enqueueTimesNs[enqueueTimesHead];
+        enqueueTimesHead = (enqueueTimesHead + 1) % enqueueTimesNs.length;
+        return enqueueTimeNs;
+    }
+
+    /**
+     * 开启统计时返回当前时间，作为某个阶段的开始时间；没开时返回 0，{@link #recordStage} 会忽略。
+     */
+    private long stageStartNs() {
+        return statsEnabled ? System.nanoTime() : 0;
+    }
+
+    private static void recordStage(LatencyHistogram histogram, long startNs) {
+        if (startNs != 0) {
+            histogram.record(System.nanoTime() - startNs);
+        }
+    }
+
+    /**
+     * 在一帧的合成命令之后插入 fence，开始统计 GPU 耗时。上一个 fence 还没完成时跳过这一帧，
+     * 每次最多只有一个 fence 在等。
+     */
+    private void insertGpuFence() {
+        if (!statsEnabled || gpuFence != 0 || !glContext.isGles3Supported()) {
+            return;
+        }
+        gpuFence = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        gpuFenceStartNs = System.nanoTime();
+    }
+
+    /**
+     * 用 timeout 0 查询 fence，不阻塞 GL 线程；已完成时记录从插入 fence 到现在的耗时，否则下一帧再查。
+     */
+    private void pollGpuFence() {
+        if (gpuFence == 0) {
+            return;
+        }
+        // 带上 flush bit，保证 fence 已经提交给 GPU，最终一定会 signaled。
+        final int result = GLES30.glClientWaitSync(gpuFence, GLES30.GL_SYNC_FLUSH_COMMANDS_BIT, 0);
+        if (result == GLES30.GL_TIMEOUT_EXPIRED) {
+            return;
+        }
+        GLES30.glDeleteSync(gpuFence);
+        gpuFence = 0;
+        if (result == GLES30.GL_ALREADY_SIGNALED || result == GLES30.GL_CONDITION_SATISFIED) {
+            recordStage(gpuHistogram, gpuFenceStartNs);
+        }
+    }
+
+    private void releaseGpuFence() {
+        if (gpuFence != 0) {
+            GLES30.glDeleteSync(gpuFence);
+            gpuFence = 0;
+        }
     }
 
     /**
@@ -450,23 +963,124 @@ public class WatermarkVideoProcessor implements VideoProcessor {
     }
 
     /**
-     * 初始化本类自己的 GL 环境。
+     * CPU buffer 输入的快速路径：复制到复用的 I420 buffer 里，直接在 CPU 上混合水印。
      *
-     * <p>这里会创建一个和外部共享 context 的离屏 pbuffer surface。这样既能访问输入纹理，
-     * 又不会直接画到屏幕上。
+     * @return 无法在 CPU 上处理时返回 false，调用方改走 GPU 流程
      */
-    private void initGl(EglBase.Context sharedContext) {
-        // 创建一个共享 EGLContext 的离屏 pbuffer surface；本类不直接画到屏幕，只画到 FBO 纹理。
-        eglBase = EglBase.create(sharedContext, EglBase.CONFIG_PIXEL_BUFFER);
-        eglBase.createDummyPbufferSurface();
-        eglBase.makeCurrent();
-        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+    private boolean processCpuFrame(VideoFrame frame) {
+        if (!cpuFastPathEnabled || !textWatermarks.isEmpty()) {
+            // 文字水印依赖字形图集纹理，只能在 GPU 上画。
+            return false;
+        }
+        if (disposed.get() || releaseRequested || glReleased) {
+            return true;
+        }
+        final VideoSink currentSink = sink;
+        final List<Watermark> currentWatermarks = watermarks;
+        if (currentSink == null) {
+            return true;
+        }
+        if (currentWatermarks.isEmpty()) {
+            framesForwarded.incrementAndGet();
+            deliverFrame(currentSink, frame, false);
+            return true;
+        }
+        final int outputWidth = frame.getRotatedWidth();
+        final int outputHeight = frame.getRotatedHeight();
+        if (outputWidth <= 0 || outputHeight <= 0) {
+            return true;
+        }
+
+        final WatermarkLayout layout = getOrCreateWatermarkLayout(currentWatermarks, outputWidth, outputHeight);
+        if (preparedYuvWatermarks.length < layout.count) {
+            preparedYuvWatermarks = new YuvWatermark[layout.count];
+        }
+        final YuvWatermark[] prepared = preparedYuvWatermarks;
+        JavaI420Buffer output = null;
+        try {
+            // 先准备好所有水印，读取 Bitmap 失败时还没有复制帧数据，可以直接退回 GPU 流程。
+            for (int i = 0; i < layout.count; i++) {
+                final Watermark watermark = layout.watermarks[i];
+                prepared[i] = getOrCreateYuvWatermark(watermark, layout.width[i], layout.height[i]);
+                if (cpuUnsupportedWatermarks.contains(watermark)) {
+                    return false;
+                }
+            }
 
-        frameDrawer = new VideoFrameDrawer();
-        frameGlDrawer = new GlRectDrawer();
-        watermarkShaderCallbacks = new WatermarkShaderCallbacks();
-        watermarkDrawer = new GlGenericDrawer(WATERMARK_FRAGMENT_SHADER, watermarkShaderCallbacks);
-        yuvConverter = new YuvConverter();
+            final long drawFrameStartNs = stageStartNs();
+            final VideoFrame.I420Buffer source = frame.getBuffer().toI420();
+            if (source == null) {
+                return false;
+            }
+            try {
+                output = i420BufferPool.acquire(outputWidth, outputHeight);
+                // 按 rotation 旋转后，水印可以直接使用视觉坐标；rotation 为 0 时等同于复制。
+                YuvHelper.I420Rotate(source.getDataY(), source.getStrideY(), source.getDataU(), source.getStrideU(),
+                        source.getDataV(), source.getStrideV(), output.getDataY(), output.getStrideY(),
+                        output.getDataU(), output.getStrideU(), output.getDataV(), output.getStrideV(),
+                        source.getWidth(), source.getHeight(), frame.getRotation());
+            } finally {
+                source.release();
+            }
+            recordStage(drawFrameHistogram, drawFrameStartNs);
+
+            final long drawWatermarksStartNs = stageStartNs();
+            for (int i = 0; i < layout.count; i++) {
+                if (prepared[i] != null) {
+                    prepared[i].blendInto(output, layout.visualX[i], layout.visualY[i], layout.alpha[i]);
+                }
+            }
+            recordStage(drawWatermarksHistogram, drawWatermarksStartNs);
+        } catch (RuntimeException e) {
+            Logging.e(TAG, "Failed to blend watermark on CPU. Falling back to GL.", e);
+            if (output != null) {
+                output.release();
+            }
+            return false;
+        } finally {
+            // 不持有已经移除的水印。
+            Arrays.fill(prepared, 0, layout.count, null);
+        }
+        framesProcessed.incrementAndGet();
+        deliverFrame(currentSink, new VideoFrame(output, 0 /* rotation */, frame.getTimestampNs()), true);
+        return true;
+    }
+
+    /**
+     * 水印 Bitmap 和目标尺寸都没变时复用上次转换好的 I420 数据。
+     * 转换失败时把水印记入 {@link #cpuUnsupportedWatermarks} 并返回 null。
+     */
+    @Nullable
+    private YuvWatermark getOrCreateYuvWatermark(Watermark watermark, int width, int height) {
+        if (watermark.bitmap.isRecycled() || cpuUnsupportedWatermarks.contains(watermark)) {
+            yuvWatermarks.remove(watermark);
+            return null;
+        }
+        YuvWatermark yuvWatermark = yuvWatermarks.get(watermark);
+        if (yuvWatermark == null || !yuvWatermark.matches(watermark.bitmap, width, height)) {
+            try {
+                yuvWatermark = YuvWatermark.create(watermark.bitmap, width, height);
+            } catch (IllegalStateException e) {
+                // Bitmap 本身无法读取像素，换尺寸也不会成功；recycle 的情况上面已经排除。
+                Logging.w(TAG, "Watermark bitmap is not readable on CPU, using GL for it.", e);
+                yuvWatermarks.remove(watermark);
+                cpuUnsupportedWatermarks.add(watermark);
+                return null;
+            }
+            yuvWatermarks.put(watermark, yuvWatermark);
+        }
+        return yuvWatermark;
+    }
+
+    private void releaseUnusedYuvWatermarks(List<Watermark> activeWatermarks) {
+        final IdentityHashMap<Watermark, Boolean> active = new IdentityHashMap<>();
+        for (Watermark watermark : activeWatermarks) {
+            if (watermark != null) {
+                active.put(watermark, Boolean.TRUE);
+            }
+        }
+        yuvWatermarks.keySet().retainAll(active.keySet());
+        cpuUnsupportedWatermarks.retainAll(active.keySet());
     }
 
     /**
@@ -476,13 +1090,17 @@ public class WatermarkVideoProcessor implements VideoProcessor {
         if (disposed.get() || releaseRequested || glReleased) {
             return;
         }
+        // 先查上一帧的 fence，不把这一帧的 CPU 提交时间算进去。
+        pollGpuFence();
         final VideoSink currentSink = sink;
         final List<Watermark> currentWatermarks = watermarks;
+        final List<TextWatermark> currentTextWatermarks = textWatermarks;
         if (currentSink == null) {
             return;
         }
-        if (currentWatermarks.isEmpty()) {
-            currentSink.onFrame(frame);
+        if (currentWatermarks.isEmpty() && currentTextWatermarks.isEmpty()) {
+            framesForwarded.incrementAndGet();
+            deliverFrame(currentSink, frame, false);
             return;
         }
 
@@ -493,51 +1111,53 @@ public class WatermarkVideoProcessor implements VideoProcessor {
             return;
         }
 
-        int outputTextureId = 0;
-        int frameBufferId = 0;
+        OutputTarget outputTarget = null;
         try {
-            // 1. 创建一张新的 2D RGB/RGBA 纹理，作为最终带水印的视频帧。
-            outputTextureId = createOutputTexture(outputWidth, outputHeight);
-            // 2. 把这张纹理挂到 FBO 上，后续所有 draw 都会写入这张纹理，而不是屏幕。
-            frameBufferId = createFrameBuffer(outputTextureId);
-            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBufferId);
+            // 1+2. 从池里取一张同尺寸的输出纹理（已挂在 FBO 上），后续所有 draw 都会写入这张纹理。
+            outputTarget = acquireOutputTarget(outputWidth, outputHeight);
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, outputTarget.frameBufferId);
             GLES20.glViewport(0, 0, outputWidth, outputHeight);
             GLES20.glDisable(GLES20.GL_BLEND);
             GLES20.glClearColor(0f, 0f, 0f, 0f);
             GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
 
             // 3. 先把原视频帧画进 FBO。VideoFrameDrawer 会处理 texture transform 和 frame rotation。
-            if (frameDrawer != null) {
-                frameDrawer.drawFrame(frame, frameGlDrawer, null, 0, 0, outputWidth, outputHeight);
-            }
+            final long drawFrameStartNs = stageStartNs();
+            glContext.getFrameDrawer().drawFrame(frame, glContext.getFrameGlDrawer(), null, 0, 0,
+                    outputWidth, outputHeight);
+            recordStage(drawFrameHistogram, drawFrameStartNs);
             // 4. 再按视觉坐标把所有水印叠加到同一张输出纹理上。
+            final long drawWatermarksStartNs = stageStartNs();
             drawWatermarks(currentWatermarks, outputWidth, outputHeight);
+            drawTextWatermarks(currentTextWatermarks, frame.getTimestampNs(), outputWidth, outputHeight);
+            recordStage(drawWatermarksHistogram, drawWatermarksStartNs);
 
-            // FBO 只负责“写入输出纹理”，写完就可以删；输出纹理本身还要交给下游使用。
             GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
-            GLES20.glDeleteFramebuffers(1, new int[]{frameBufferId}, 0);
-            frameBufferId = 0;
             GlUtil.checkNoGLES2Error("WatermarkVideoProcessor.processTextureFrame");
+            insertGpuFence();
+
+            framesProcessed.incrementAndGet();
+            if (outputMode == OutputMode.I420) {
+                final OutputTarget target = outputTarget;
+                outputTarget = null;
+                deliverI420Frame(currentSink, target, frame.getTimestampNs());
+                return;
+            }
 
-            final TextureBufferImpl outputBuffer = wrapOutputTexture(outputTextureId, outputWidth, outputHeight);
-            outputTextureId = 0;
+            // 输出纹理交给下游使用，等下游 release 后再回到池里。
+            final TextureBufferImpl outputBuffer = wrapOutputTexture(outputTarget);
+            outputTarget = null;
             // 画入 FBO 后，视频内容已经是视觉正方向，所以 rotation 置 0。
-            final VideoFrame outputFrame = new VideoFrame(outputBuffer, 0 /* rotation */, frame.getTimestampNs());
-            try {
-                currentSink.onFrame(outputFrame);
-            } finally {
-                outputFrame.release();
-            }
+            deliverFrame(currentSink, new VideoFrame(outputBuffer, 0 /* rotation */, frame.getTimestampNs()), true);
         } catch (RuntimeException e) {
             Logging.e(TAG, "Failed to draw watermark frame. Forwarding original frame.", e);
+            framesFailed.incrementAndGet();
             forwardFrame(frame);
         } finally {
-            if (frameBufferId != 0) {
+            if (outputTarget != null) {
+                // 出错时 FBO 状态不可信，直接删除，不放回池里。
                 GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
-                GLES20.glDeleteFramebuffers(1, new int[]{frameBufferId}, 0);
-            }
-            if (outputTextureId != 0) {
-                GLES20.glDeleteTextures(1, new int[]{outputTextureId}, 0);
+                deleteOutputTarget(outputTarget);
             }
         }
     }
@@ -552,65 +1172,248 @@ public class WatermarkVideoProcessor implements VideoProcessor {
         // 水印一般带 alpha 通道，需要开启混合；Bitmap 默认多为 premultiplied alpha。
         GLES20.glEnable(GLES20.GL_BLEND);
         GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
-        for (Watermark watermark : currentWatermarks) {
-            if (watermark == null || watermark.bitmap.isRecycled()) {
+        final WatermarkLayout layout = getOrCreateWatermarkLayout(currentWatermarks, outputWidth, outputHeight);
+        if (atlasEnabled && drawWatermarksWithAtlas(layout)) {
+            GLES20.glDisable(GLES20.GL_BLEND);
+            return;
+        }
+        for (int i = 0; i < layout.count; i++) {
+            final Watermark watermark = layout.watermarks[i];
+            if (watermark.bitmap.isRecycled()) {
                 continue;
             }
-            final ResolvedWatermark resolved = watermark.resolve(outputWidth, outputHeight);
-            if (resolved.isEmpty()) {
+            final WatermarkTextureCache.WatermarkTexture texture = getOrCreateWatermarkTexture(watermark);
+            if (texture == null) {
                 continue;
             }
-            final WatermarkTexture texture = getOrCreateWatermarkTexture(watermark.bitmap);
-            if (texture == null) {
+            glContext.drawWatermark(texture.textureId, BITMAP_TEXTURE_MATRIX, texture.width, texture.height,
+                    layout.viewportX[i], layout.viewportY[i], layout.width[i], layout.height[i], layout.alpha[i]);
+        }
+        GLES20.glDisable(GLES20.GL_BLEND);
+    }
+
+    /**
+     * 水印列表和输出尺寸都没变时直接复用上一帧的布局。
+     */
+    private WatermarkLayout getOrCreateWatermarkLayout(List<Watermark> currentWatermarks, int outputWidth,
+                                                       int outputHeight) {
+        WatermarkLayout layout = watermarkLayout;
+        if (layout == null || !layout.matches(currentWatermarks, outputWidth, outputHeight)) {
+            layout = new WatermarkLayout(currentWatermarks, outputWidth, outputHeight);
+            watermarkLayout = layout;
+        }
+        return layout;
+    }
+
+    /**
+     * 图集模式：所有水印共用一张纹理，收集完四边形后一次画完。
+     *
+     * @return 图集不可用时返回 false，调用方改用逐张绘制
+     */
+    private boolean drawWatermarksWithAtlas(WatermarkLayout layout) {
+        final List<Watermark> currentWatermarks = layout.source;
+        if (atlasUnavailable) {
+            return false;
+        }
+        if (watermarkAtlas == null) {
+            try {
+                watermarkAtlas = new WatermarkAtlas(glContext.getQuadBatch());
+            } catch (RuntimeException e) {
+                Logging.e(TAG, "Failed to create watermark atlas.", e);
+                atlasUnavailable = true;
+                return false;
+            }
+            atlasDirty = true;
+        }
+        try {
+            if (!atlasDirty) {
+                // 只有局部变化的水印直接更新图集里的对应区域，不需要重新打包。
+                watermarkAtlas.applyDirtyRegions(currentWatermarks, dirtyRects, regionUploader);
+            }
+            if (atlasDirty || watermarkAtlas.isStale(currentWatermarks)) {
+                atlasDirty = false;
+                if (!watermarkAtlas.rebuild(currentWatermarks)) {
+                    atlasUnavailable = true;
+                    return false;
+                }
+            }
+        } catch (RuntimeException e) {
+            // 图集内容已经不可信，丢弃后本帧起改用逐张绘制，直到水印列表变化时再尝试图集。
+            Logging.e(TAG, "Failed to upload watermark atlas.", e);
+            releaseWatermarkAtlas();
+            atlasUnavailable = true;
+            return false;
+        }
+        watermarkAtlas.beginBatch();
+        for (int i = 0; i < layout.count; i++) {
+            final Watermark watermark = layout.watermarks[i];
+            if (watermark.bitmap.isRecycled()) {
                 continue;
             }
-            final int viewportX = resolved.visualX;
-            // 视觉坐标 y=0 在上方，而 glViewport 的 y=0 在下方，所以这里要翻转 Y。
-            final int viewportY = outputHeight - resolved.visualY - resolved.height;
-            if (watermarkShaderCallbacks != null) {
-                watermarkShaderCallbacks.setAlpha(watermark.alpha);
+            watermarkAtlas.addQuad(watermark.bitmap, layout.visualX[i], layout.visualY[i], layout.width[i],
+                    layout.height[i], layout.alpha[i], layout.outputWidth, layout.outputHeight);
+        }
+        watermarkAtlas.drawBatch();
+        return true;
+    }
+
+    /**
+     * 文字水印：每个 TextWatermark 按当前帧时间戳生成文字，用自己的字形图集一次画完。
+     */
+    private void drawTextWatermarks(List<TextWatermark> currentTextWatermarks, long timestampNs,
+                                    int outputWidth, int outputHeight) {
+        if (currentTextWatermarks.isEmpty()) {
+            return;
+        }
+        GLES20.glEnable(GLES20.GL_BLEND);
+        GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+        final TexturedQuadBatch batch = glContext.getQuadBatch();
+        for (int i = 0; i < currentTextWatermarks.size(); i++) {
+            final TextWatermark textWatermark = currentTextWatermarks.get(i);
+            if (textWatermark == null) {
+                continue;
             }
-            if (watermarkDrawer != null) {
-                watermarkDrawer.drawRgb(texture.textureId, BITMAP_TEXTURE_MATRIX, texture.width,
-                        texture.height, viewportX, viewportY, resolved.width, resolved.height);
+            GlyphAtlas glyphAtlas = glyphAtlases.get(textWatermark);
+            if (glyphAtlas == null) {
+                // 第一次绘制时光栅化字形并上传，之后只复用纹理。
+                glyphAtlas = new GlyphAtlas(textWatermark);
+                glyphAtlases.put(textWatermark, glyphAtlas);
             }
+            glyphAtlas.draw(timestampNs, batch, outputWidth, outputHeight);
         }
         GLES20.glDisable(GLES20.GL_BLEND);
     }
 
+    private void releaseUnusedGlyphAtlases(List<TextWatermark> activeTextWatermarks) {
+        if (glReleased) {
+            return;
+        }
+        final IdentityHashMap<TextWatermark, Boolean> active = new IdentityHashMap<>();
+        for (TextWatermark textWatermark : activeTextWatermarks) {
+            if (textWatermark != null) {
+                active.put(textWatermark, Boolean.TRUE);
+            }
+        }
+        final Iterator<Map.Entry<TextWatermark, GlyphAtlas>> iterator = glyphAtlases.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<TextWatermark, GlyphAtlas> entry = iterator.next();
+            if (!active.containsKey(entry.getKey())) {
+                entry.getValue().release();
+                iterator.remove();
+            }
+        }
+    }
+
+    private void releaseGlyphAtlases() {
+        for (GlyphAtlas glyphAtlas : glyphAtlases.values()) {
+            glyphAtlas.release();
+        }
+        glyphAtlases.clear();
+    }
+
+    private void releaseWatermarkAtlas() {
+        if (watermarkAtlas != null) {
+            watermarkAtlas.release();
+        }
+        watermarkAtlas = null;
+        atlasDirty = true;
+    }
+
+    /**
+     * 从 glContext 的共享缓存里取水印纹理。第一次使用某张 Bitmap 时登记引用，
+     * 同一张 Bitmap 被多个处理器使用时只上传一次。
+     */
     @Nullable
-    private WatermarkTexture getOrCreateWatermarkTexture(Bitmap bitmap) {
-        if (bitmap.isRecycled()) {
-            releaseWatermarkTexture(bitmap);
-            return null;
+    private WatermarkTextureCache.WatermarkTexture getOrCreateWatermarkTexture(Watermark watermark) {
+        final WatermarkTextureCache cache = glContext.getWatermarkTextures();
+        if (retainedBitmaps.put(watermark.bitmap, Boolean.TRUE) == null) {
+            cache.retain(watermark.bitmap);
         }
-        final WatermarkTexture cachedTexture = watermarkTextures.get(bitmap);
-        final int generationId = bitmap.getGenerationId();
-        // Bitmap 没变就复用已上传的 GL 纹理，避免每帧 texImage2D 造成卡顿。
-        if (cachedTexture != null && cachedTexture.generationId == generationId
-                && cachedTexture.width == bitmap.getWidth() && cachedTexture.height == bitmap.getHeight()) {
-            return cachedTexture;
+        return cache.get(watermark);
+    }
+
+    /**
+     * 取一张空闲的输出纹理。池里只会放下游已经 release 的纹理，所以不会覆盖下游还在用的帧。
+     */
+    private OutputTarget acquireOutputTarget(int width, int height) {
+        final ArrayDeque<OutputTarget> pool = outputTargetPools.get(outputSizeKey(width, height));
+        final OutputTarget pooledTarget = pool != null ? pool.pollFirst() : null;
+        if (pooledTarget != null) {
+            outputTexturePoolHits++;
+            return pooledTarget;
         }
-        if (cachedTexture != null) {
-            GLES20.glDeleteTextures(1, new int[]{cachedTexture.textureId}, 0);
-            watermarkTextures.remove(bitmap);
+        outputTexturePoolMisses++;
+        // 尺寸变化（例如分辨率自适应）后旧尺寸的空闲纹理基本不会再用到，先释放掉避免占用显存。
+        releaseIdleOutputTargets(width, height);
+        final int textureId = createOutputTexture(width, height);
+        final int frameBufferId;
+        try {
+            frameBufferId = createFrameBuffer(textureId);
+        } catch (RuntimeException e) {
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+            GLES20.glDeleteTextures(1, new int[]{textureId}, 0);
+            throw e;
         }
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        return new OutputTarget(textureId, frameBufferId, width, height);
+    }
 
-        // Bitmap 新建或内容已变化：上传到 GL_TEXTURE_2D，之后绘制水印只绑定纹理即可。
-        final int textureId = GlUtil.generateTexture(GLES20.GL_TEXTURE_2D);
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
-        GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
-        GlUtil.checkNoGLES2Error("WatermarkVideoProcessor.uploadWatermarkTexture");
+    /**
+     * 下游 release 后把输出纹理放回对应尺寸的池里；池满或 GL 已经释放时直接删除。
+     */
+    private void recycleOutputTarget(OutputTarget target) {
+        if (glReleased) {
+            return;
+        }
+        if (!releaseRequested) {
+            final long key = outputSizeKey(target.width, target.height);
+            ArrayDeque<OutputTarget> pool = outputTargetPools.get(key);
+            if (pool == null) {
+                pool = new ArrayDeque<>();
+                outputTargetPools.put(key, pool);
+            }
+            if (pool.size() < maxPooledOutputTargets) {
+                pool.addLast(target);
+                return;
+            }
+        }
+        deleteOutputTarget(target);
+    }
+
+    private void releaseIdleOutputTargets(int keepWidth, int keepHeight) {
+        final long keepKey = outputSizeKey(keepWidth, keepHeight);
+        final Iterator<Map.Entry<Long, ArrayDeque<OutputTarget>>> iterator = outputTargetPools.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<Long, ArrayDeque<OutputTarget>> entry = iterator.next();
+            if (entry.getKey() == keepKey) {
+                continue;
+            }
+            for (OutputTarget target : entry.getValue()) {
+                deleteOutputTarget(target);
+            }
+            iterator.remove();
+        }
+    }
+
+    private void releaseAllIdleOutputTargets() {
+        for (ArrayDeque<OutputTarget> pool : outputTargetPools.values()) {
+            for (OutputTarget target : pool) {
+                deleteOutputTarget(target);
+            }
+        }
+        outputTargetPools.clear();
+    }
 
-        final WatermarkTexture texture = new WatermarkTexture(textureId, bitmap.getWidth(), bitmap.getHeight(), generationId);
-        watermarkTextures.put(bitmap, texture);
-        return texture;
+    private static void deleteOutputTarget(OutputTarget target) {
+        GLES20.glDeleteFramebuffers(1, new int[]{target.frameBufferId}, 0);
+        GLES20.glDeleteTextures(1, new int[]{target.textureId}, 0);
+    }
+
+    private static long outputSizeKey(int width, int height) {
+        return ((long) width << 32) | (height & 0xffffffffL);
     }
 
     private int createOutputTexture(int width, int height) {
-        // 每帧创建独立输出纹理，避免下游还没用完时下一帧覆盖同一张纹理。
         final int textureId = GlUtil.generateTexture(GLES20.GL_TEXTURE_2D);
         GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
         GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
@@ -635,21 +1438,115 @@ public class WatermarkVideoProcessor implements VideoProcessor {
         return frameBufferId;
     }
 
-    private TextureBufferImpl wrapOutputTexture(int textureId, int width, int height) {
+    /**
+     * 把合成好的输出纹理转成 I420 送给下游。支持 PBO 时送出的是上一帧的读回结果。
+     */
+    private void deliverI420Frame(VideoSink currentSink, OutputTarget target, long timestampNs) {
+        final AsyncI420Converter converter = getOrCreateI420Converter();
+        if (converter == null) {
+            // 不支持异步读回：包装成纹理帧后立即用 YuvConverter 同步转换，纹理随即回收。
+            final TextureBufferImpl textureBuffer = wrapOutputTexture(target);
+            final VideoFrame.I420Buffer i420Buffer;
+            try {
+                i420Buffer = textureBuffer.toI420();
+            } finally {
+                textureBuffer.release();
+            }
+            deliverFrame(currentSink, new VideoFrame(i420Buffer, 0 /* rotation */, timestampNs), true);
+            return;
+        }
+        final VideoFrame previousFrame;
+        try {
+            previousFrame = converter.convert(target.textureId, target.width, target.height, timestampNs);
+        } finally {
+            // 读回所需的内容已经画进转换器自己的 FBO，输出纹理可以直接回到池里。
+            recycleOutputTarget(target);
+        }
+        lastI420ConvertMs = SystemClock.uptimeMillis();
+        if (!i420FlushScheduled && converter.hasPendingFrame()) {
+            i420FlushScheduled = true;
+            renderHandler.postDelayed(flushI420Runnable, I420_FLUSH_DELAY_MS);
+        }
+        if (previousFrame != null) {
+            deliverFrame(currentSink, previousFrame, true);
+        }
+    }
+
+    /**
+     * 输入停下 {@link #I420_FLUSH_DELAY_MS} 后把最后一帧取出来；输入还在继续时推迟到最后一帧之后再检查。
+     */
+    private void onI420FlushTimeout() {
+        i420FlushScheduled = false;
+        if (i420Converter == null || glReleased || !i420Converter.hasPendingFrame()) {
+            return;
+        }
+        final long idleMs = SystemClock.uptimeMillis() - lastI420ConvertMs;
+        if (idleMs < I420_FLUSH_DELAY_MS) {
+            i420FlushScheduled = true;
+            renderHandler.postDelayed(flushI420Runnable, I420_FLUSH_DELAY_MS - idleMs);
+            return;
+        }
+        flushI420Frame();
+    }
+
+    private void flushI420Frame() {
+        if (i420Converter == null || glReleased || !i420Converter.hasPendingFrame()) {
+            return;
+        }
+        final VideoFrame frame = i420Converter.flush();
+        if (frame == null) {
+            return;
+        }
+        final VideoSink currentSink = sink;
+        if (currentSink == null) {
+            frame.release();
+            return;
+        }
+        deliverFrame(currentSink, frame, true);
+    }
+
+    /**
+     * 把帧交给下游 sink 并记录耗时。
+     *
+     * @param release 帧是本类创建的，交给下游后要 release
+     */
+    private void deliverFrame(VideoSink currentSink, VideoFrame frame, boolean release) {
+        final long startNs = stageStartNs();
+        try {
+            currentSink.onFrame(frame);
+        } finally {
+            if (release) {
+                frame.release();
+            }
+        }
+        recordStage(sinkHandoffHistogram, startNs);
+    }
+
+    @Nullable
+    private AsyncI420Converter getOrCreateI420Converter() {
+        if (!i420ConverterChecked) {
+            i420ConverterChecked = true;
+            if (glContext.isGles3Supported()) {
+                i420Converter = new AsyncI420Converter();
+            } else {
+                Logging.w(TAG, "OpenGL ES 3.0 not available, I420 output uses synchronous readback.");
+            }
+        }
+        return i420Converter;
+    }
+
+    private TextureBufferImpl wrapOutputTexture(OutputTarget target) {
         pendingOutputTextures++;
-        final int textureIdForRelease = textureId;
         // TextureBufferImpl 的 release callback 会在最后一个持有者释放帧时触发；
-        // 这里回到 GL 线程删除 texture，保证 OpenGL 资源在正确线程释放。
-        return new TextureBufferImpl(width, height, VideoFrame.TextureBuffer.Type.RGB, textureId,
-                new Matrix(), renderHandler, yuvConverter, () -> {
-            renderHandler.post(() -> releaseOutputTexture(textureIdForRelease));
+        // 这里回到 GL 线程回收 texture，保证 OpenGL 资源在正确线程复用或释放。
+        return new TextureBufferImpl(target.width, target.height, VideoFrame.TextureBuffer.Type.RGB,
+                target.textureId, new Matrix(), renderHandler, glContext.getYuvConverter(), () -> {
+            renderHandler.post(() -> releaseOutputTexture(target));
         });
     }
 
-    private void releaseOutputTexture(int textureId) {
-        if (!glReleased) {
-            GLES20.glDeleteTextures(1, new int[]{textureId}, 0);
-        }
+    private void releaseOutputTexture(OutputTarget target) {
+        recycleOutputTarget(target);
         pendingOutputTextures--;
         maybeReleaseGlResources();
     }
@@ -665,28 +1562,23 @@ public class WatermarkVideoProcessor implements VideoProcessor {
             }
         }
 
-        final Iterator<Map.Entry<Bitmap, WatermarkTexture>> iterator = watermarkTextures.entrySet().iterator();
+        final WatermarkTextureCache cache = glContext.getWatermarkTextures();
+        final Iterator<Bitmap> iterator = retainedBitmaps.keySet().iterator();
         while (iterator.hasNext()) {
-            final Map.Entry<Bitmap, WatermarkTexture> entry = iterator.next();
-            if (!activeBitmaps.containsKey(entry.getKey()) || entry.getKey().isRecycled()) {
-                GLES20.glDeleteTextures(1, new int[]{entry.getValue().textureId}, 0);
+            final Bitmap bitmap = iterator.next();
+            if (!activeBitmaps.containsKey(bitmap) || bitmap.isRecycled()) {
+                cache.release(bitmap);
                 iterator.remove();
             }
         }
     }
 
-    private void releaseWatermarkTexture(Bitmap bitmap) {
-        final WatermarkTexture texture = watermarkTextures.remove(bitmap);
-        if (texture != null && !glReleased) {
-            GLES20.glDeleteTextures(1, new int[]{texture.textureId}, 0);
-        }
-    }
-
     private void releaseWatermarkTextures() {
-        for (WatermarkTexture texture : watermarkTextures.values()) {
-            GLES20.glDeleteTextures(1, new int[]{texture.textureId}, 0);
+        final WatermarkTextureCache cache = glContext.getWatermarkTextures();
+        for (Bitmap bitmap : retainedBitmaps.keySet()) {
+            cache.release(bitmap);
         }
-        watermarkTextures.clear();
+        retainedBitmaps.clear();
     }
 
     private void maybeReleaseGlResources() {
@@ -695,30 +1587,27 @@ public class WatermarkVideoProcessor implements VideoProcessor {
             return;
         }
         glReleased = true;
-        // 水印输入纹理只被本类持有，可以立即释放；输出纹理要等下游 release 后再删。
+        // 水印输入纹理和空闲输出纹理只被本类持有，可以立即释放；在用的输出纹理要等下游 release 后再删。
         releaseWatermarkTextures();
-        if (watermarkDrawer != null) {
-            watermarkDrawer.release();
-            watermarkDrawer = null;
-        }
-        if (frameGlDrawer != null) {
-            frameGlDrawer.release();
-            frameGlDrawer = null;
-        }
-        if (frameDrawer != null) {
-            frameDrawer.release();
-            frameDrawer = null;
-        }
-        if (yuvConverter != null) {
-            yuvConverter.release();
-            yuvConverter = null;
+        releaseAllIdleOutputTargets();
+        releaseWatermarkAtlas();
+        releaseGlyphAtlases();
+        renderHandler.removeCallbacks(flushI420Runnable);
+        i420FlushScheduled = false;
+        releaseGpuFence();
+        yuvWatermarks.clear();
+        cpuUnsupportedWatermarks.clear();
+        i420BufferPool.release();
+        if (i420Converter != null) {
+            // dispose 之后没有 sink，还在读回的帧直接丢弃。
+            i420Converter.release();
+            i420Converter = null;
         }
-        if (eglBase != null) {
-            eglBase.detachCurrent();
-            eglBase.release();
-            eglBase = null;
+        // 共用的 drawer、shader 和 EGLContext 由 glContext 在最后一个处理器摘下后释放。
+        glContext.detach();
+        if (ownsGlContext) {
+            glContext.release();
         }
-        renderThread.quit();
     }
 
     private void forwardFrame(VideoFrame frame) {
@@ -737,6 +1626,69 @@ public class WatermarkVideoProcessor implements VideoProcessor {
         return RendererCommon.convertMatrixFromAndroidGraphicsMatrix(matrix);
     }
 
+    /**
+     * 按锚点把 offset 转换成视觉坐标系中的左上角 x。
+     */
+    static int anchoredX(Anchor anchor, int offsetXPx, int width, int frameWidth) {
+        final int x;
+        switch (anchor) {
+            case TOP_LEFT:
+            case CENTER_LEFT:
+            case BOTTOM_LEFT:
+                x = offsetXPx;
+                break;
+            case TOP_CENTER:
+            case CENTER:
+            case BOTTOM_CENTER:
+                x = (frameWidth - width) / 2 + offsetXPx;
+                break;
+            case TOP_RIGHT:
+            case CENTER_RIGHT:
+            case BOTTOM_RIGHT:
+                x = frameWidth - width - offsetXPx;
+                break;
+            default:
+                throw new IllegalStateException("Unknown anchor.");
+        }
+        // 不让水印跑出画面外。后续如果需要允许半透明水印被裁切，可以把这里改成不 clamp。
+        return clamp(x, 0, Math.max(0, frameWidth - width));
+    }
+
+    /**
+     * 按锚点把 offset 转换成视觉坐标系中的左上角 y。
+     */
+    static int anchoredY(Anchor anchor, int offsetYPx, int height, int frameHeight) {
+        final int y;
+        switch (anchor) {
+            case TOP_LEFT:
+            case TOP_CENTER:
+            case TOP_RIGHT:
+                y = offsetYPx;
+                break;
+            case CENTER_LEFT:
+            case CENTER:
+            case CENTER_RIGHT:
+                y = (frameHeight - height) / 2 + offsetYPx;
+                break;
+            case BOTTOM_LEFT:
+            case BOTTOM_CENTER:
+            case BOTTOM_RIGHT:
+                y = frameHeight - height - offsetYPx;
+                break;
+            default:
+                throw new IllegalStateException("Unknown anchor.");
+        }
+        return clamp(y, 0, Math.max(0, frameHeight - height));
+    }
+
+    private static Rect[] createRects(int count) {
+        final Rect[] rects = new Rect[count];
+        for (int i = 0; i < count; i++) {
+            rects[i] = new Rect();
+        }
+        return rects;
+    }
+
     private static int clamp(int value, int min, int max) {
         return Math.max(min, Math.min(max, value));
     }
@@ -0,0 +1,189 @@
+/*
+ *  Copyright 2026 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.graphics.Bitmap;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 预先转换成 I420 平面 + alpha 的水印，用于 CPU buffer 输入时直接在 I420 上混合，
+ * 不需要把整帧上传到 GPU 再读回。
+ *
+ * <p>Y 和 alpha 是全分辨率，U、V 以及对应的色度 alpha 按 2x2 下采样，采用 BT.601 limited range，
+ * 和 {@link YuvConverter} 一致。只在创建时读取一次 Bitmap，Bitmap 内容（generationId）或目标尺寸
+ * 变化时需要重新创建。
+ */
+final class YuvWatermark {
+    final Bitmap bitmap;
+    final int generationId;
+    final int width;
+    final int height;
+    private final int chromaWidth;
+    private final int chromaHeight;
+    private final byte[] planeY;
+    private final byte[] planeU;
+    private final byte[] planeV;
+    private final byte[] alphaY;
+    private final byte[] alphaUV;
+    // 按行混合用的临时数组，只在处理线程上使用。
+    private final byte[] rowBuffer;
+
+    private YuvWatermark(Bitmap bitmap, int generationId, int width, int height) {
+        this.bitmap = bitmap;
+        this.generationId = generationId;
+        this.width = width;
+        this.height = height;
+        this.chromaWidth = (width + 1) / 2;
+        this.chromaHeight = (height + 1) / 2;
+        this.planeY = new byte[width * height];
+        this.alphaY = new byte[width * height];
+        this.planeU = new byte[chromaWidth * chromaHeight];
+        this.planeV = new byte[chromaWidth * chromaHeight];
+        this.alphaUV = new byte[chromaWidth * chromaHeight];
+        this.rowBuffer = new byte[width];
+    }
+
+    /**
+     * 把 Bitmap 缩放到 width x height 后转换成 I420 + alpha。
+     *
+     * @throws IllegalStateException Bitmap 已经 recycle 或者无法读取像素（例如 HARDWARE Bitmap）
+     */
+    static YuvWatermark create(Bitmap bitmap, int width, int height) {
+        final int generationId = bitmap.getGenerationId();
+        final Bitmap scaled = bitmap.getWidth() == width && bitmap.getHeight() == height
+                ? bitmap : Bitmap.createScaledBitmap(bitmap, width, height, true);
+        final int[] argb = new int[width * height];
+        try {
+            scaled.getPixels(argb, 0, width, 0, 0, width, height);
+        } finally {
+            if (scaled != bitmap) {
+                scaled.recycle();
+            }
+        }
+        final YuvWatermark watermark = new YuvWatermark(bitmap, generationId, width, height);
+        watermark.convert(argb);
+        return watermark;
+    }
+
+    /**
+     * Bitmap 内容和目标尺寸都没变时可以直接复用。
+     */
+    boolean matches(Bitmap bitmap, int width, int height) {
+        return this.bitmap == bitmap && this.width == width && this.height == height
+                && !bitmap.isRecycled() && generationId == bitmap.getGenerationId();
+    }
+
+    /**
+     * 以左上角 (x, y) 混合到 dst 上，超出画面的部分会被裁掉。
+     *
+     * <p>x、y 为奇数时色度按偶数坐标对齐，最多偏移一个亮度像素。
+     *
+     * @param alpha 整体透明度，0~1
+     */
+    void blendInto(VideoFrame.I420Buffer dst, int x, int y, float alpha) {
+        final int alphaScale = Math.round(Math.max(0f, Math.min(1f, alpha)) * 256f);
+        if (alphaScale == 0) {
+            return;
+        }
+        blendPlane(dst.getDataY(), dst.getStrideY(), dst.getWidth(), dst.getHeight(),
+                planeY, alphaY, width, height, x, y, alphaScale);
+        final int dstChromaWidth = (dst.getWidth() + 1) / 2;
+        final int dstChromaHeight = (dst.getHeight() + 1) / 2;
+        final int chromaX = x >> 1;
+        final int chromaY = y >> 1;
+        blendPlane(dst.getDataU(), dst.getStrideU(), dstChromaWidth, dstChromaHeight,
+                planeU, alphaUV, chromaWidth, chromaHeight, chromaX, chromaY, alphaScale);
+        blendPlane(dst.getDataV(), dst.getStrideV(), dstChromaWidth, dstChromaHeight,
+                planeV, alphaUV, chromaWidth, chromaHeight, chromaX, chromaY, alphaScale);
+    }
+
+    private void blendPlane(ByteBuffer dst, int dstStride, int dstWidth, int dstHeight,
+                            byte[] src, byte[] srcAlpha, int srcWidth, int srcHeight,
+                            int x, int y, int alphaScale) {
+        final int startCol = Math.max(0, -x);
+        final int endCol = Math.min(srcWidth, dstWidth - x);
+        final int startRow = Math.max(0, -y);
+        final int endRow = Math.min(srcHeight, dstHeight - y);
+        final int length = endCol - startCol;
+        if (length <= 0 || startRow >= endRow) {
+            return;
+        }
+        for (int row = startRow; row < endRow; row++) {
+            final int dstOffset = (y + row) * dstStride + x + startCol;
+            dst.position(dstOffset);
+            dst.get(rowBuffer, 0, length);
+            int srcIndex = row * srcWidth + startCol;
+            for (int i = 0; i < length; i++, srcIndex++) {
+                final int a8 = srcAlpha[srcIndex] & 0xFF;
+                if (a8 == 0) {
+                    continue;
+                }
+                // 把 0~255 映射到 0~256，这样完全不透明时能完全覆盖，之后都用移位代替除法。
+                final int a = ((a8 + (a8 >> 7)) * alphaScale) >> 8;
+                final int d = rowBuffer[i] & 0xFF;
+                rowBuffer[i] = (byte) (d + ((((src[srcIndex] & 0xFF) - d) * a) >> 8));
+            }
+            dst.position(dstOffset);
+            dst.put(rowBuffer, 0, length);
+        }
+    }
+
+    private void convert(int[] argb) {
+        for (int i = 0; i < argb.length; i++) {
+            final int color = argb[i];
+            final int r = (color >> 16) & 0xFF;
+            final int g = (color >> 8) & 0xFF;
+            final int b = color & 0xFF;
+            planeY[i] = (byte) (((66 * r + 129 * g + 25 * b + 128) >> 8) + 16);
+            alphaY[i] = (byte) (color >>> 24);
+        }
+        // 色度按 2x2 块取 alpha 加权平均，避免透明像素的颜色渗到边缘。
+        for (int cy = 0; cy < chromaHeight; cy++) {
+            for (int cx = 0; cx < chromaWidth; cx++) {
+                int sumR = 0;
+                int sumG = 0;
+                int sumB = 0;
+                int sumAlpha = 0;
+                int samples = 0;
+                for (int dy = 0; dy < 2; dy++) {
+                    final int py = cy * 2 + dy;
+                    if (py >= height) {
+                        break;
+                    }
+                    for (int dx = 0; dx < 2; dx++) {
+                        final int px = cx * 2 + dx;
+                        if (px >= width) {
+                            break;
+                        }
+                        final int color = argb[py * width + px];
+                        final int a = color >>> 24;
+                        sumR += ((color >> 16) & 0xFF) * a;
+                        sumG += ((color >> 8) & 0xFF) * a;
+                        sumB += (color & 0xFF) * a;
+                        sumAlpha += a;
+                        samples++;
+                    }
+                }
+                final int index = cy * chromaWidth + cx;
+                if (sumAlpha == 0) {
+                    planeU[index] = (byte) 128;
+                    planeV[index] = (byte) 128;
+                    alphaUV[index] = 0;
+                    continue;
+                }
+                final int r = sumR / sumAlpha;
+                final int g = sumG / sumAlpha;
+                final int b = sumB / sumAlpha;
+                planeU[index] = (byte) (((-38 * r - 74 * g + 112 * b + 128) >> 8) + 128);
+                planeV[index] = (byte) (((112 * r - 94 * g - 18 * b + 128) >> 8) + 128);
+                alphaUV[index] = (byte) (sumAlpha / samples);
+            }
+        }
+    }
+}
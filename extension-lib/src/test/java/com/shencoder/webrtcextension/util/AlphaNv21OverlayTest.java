@@ -0,0 +1,118 @@
+package com.shencoder.webrtcextension.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+/**
+ * {@link AlphaNv21Overlay} 在完全透明、完全不透明时的混合结果
+ */
+public class AlphaNv21OverlayTest {
+    /**
+     * 宽度不是 8 的倍数，同时覆盖按 8 个像素判断和行尾逐个混合两种情况
+     */
+    private static final int OVERLAY_WIDTH = 20;
+    private static final int OVERLAY_HEIGHT = 6;
+    private static final int WIDTH = 32;
+    private static final int HEIGHT = 16;
+
+    @Test
+    public void fullyTransparentKeepsBackground() {
+        AlphaNv21Overlay overlay = AlphaNv21Overlay.fromArgb(solid(0x00FF4020), OVERLAY_WIDTH, OVERLAY_HEIGHT);
+        byte[] background = NV21UtilTest.randomNv21(WIDTH, HEIGHT, 20);
+        byte[] nv21 = background.clone();
+        NV21Util.overlayNV21(nv21, WIDTH, HEIGHT, 4, 2, overlay);
+        assertArrayEquals(background, nv21);
+    }
+
+    @Test
+    public void fullyOpaqueReplacesBackground() {
+        int color = 0xFF3080C0;
+        AlphaNv21Overlay overlay = AlphaNv21Overlay.fromArgb(solid(color), OVERLAY_WIDTH, OVERLAY_HEIGHT);
+        byte[] background = NV21UtilTest.randomNv21(WIDTH, HEIGHT, 21);
+        byte[] nv21 = background.clone();
+        int left = 4;
+        int top = 2;
+        NV21Util.overlayNV21(nv21, WIDTH, HEIGHT, left, top, overlay);
+
+        int r = (color >> 16) & 0xFF;
+        int g = (color >> 8) & 0xFF;
+        int b = color & 0xFF;
+        int y = (66 * r + 129 * g + 25 * b + 0x1080) >> 8;
+        int v = (112 * r - 94 * g - 18 * b + 0x8080) >> 8;
+        int u = (-38 * r - 74 * g + 112 * b + 0x8080) >> 8;
+        byte[] expected = background.clone();
+        for (int row = top; row < top + OVERLAY_HEIGHT; row++) {
+            Arrays.fill(expected, row * WIDTH + left, row * WIDTH + left + OVERLAY_WIDTH, (byte) y);
+        }
+        for (int row = top / 2; row < (top + OVERLAY_HEIGHT) / 2; row++) {
+            for (int col = left; col < left + OVERLAY_WIDTH; col += 2) {
+                expected[WIDTH * HEIGHT + row * WIDTH + col] = (byte) v;
+                expected[WIDTH * HEIGHT + row * WIDTH + col + 1] = (byte) u;
+            }
+        }
+        assertArrayEquals(expected, nv21);
+    }
+
+    @Test
+    public void mixedAlphaOnlyTouchesOpaqueColumns() {
+        int[] argb = new int[OVERLAY_WIDTH * OVERLAY_HEIGHT];
+        for (int row = 0; row < OVERLAY_HEIGHT; row++) {
+            for (int col = 0; col < OVERLAY_WIDTH; col++) {
+                //每 4 列交替透明、不透明，2x2 色度块不会跨越两种区域
+                argb[row * OVERLAY_WIDTH + col] = (col / 4) % 2 == 0 ? 0x00000000 : 0xFFFFFFFF;
+            }
+        }
+        AlphaNv21Overlay overlay = AlphaNv21Overlay.fromArgb(argb, OVERLAY_WIDTH, OVERLAY_HEIGHT);
+        byte[] background = NV21UtilTest.randomNv21(WIDTH, HEIGHT, 22);
+        byte[] nv21 = background.clone();
+        NV21Util.overlayNV21(nv21, WIDTH, HEIGHT, 0, 0, overlay);
+        for (int row = 0; row < OVERLAY_HEIGHT; row++) {
+            for (int col = 0; col < OVERLAY_WIDTH; col++) {
+                int index = row * WIDTH + col;
+                int expected = (col / 4) % 2 == 0 ? background[index] & 0xFF : 235;
+                assertEquals(row + "," + col, expected, nv21[index] & 0xFF);
+            }
+        }
+    }
+
+    @Test
+    public void rotateAndCropKeepAlpha() {
+        int[] argb = new int[OVERLAY_WIDTH * OVERLAY_HEIGHT];
+        for (int row = 0; row < OVERLAY_HEIGHT; row++) {
+            for (int col = 0; col < OVERLAY_WIDTH; col++) {
+                //左边 4 列透明，其余半透明
+                argb[row * OVERLAY_WIDTH + col] = col < 4 ? 0x00000000 : 0x80FFFFFF;
+            }
+        }
+        AlphaNv21Overlay overlay = AlphaNv21Overlay.fromArgb(argb, OVERLAY_WIDTH, OVERLAY_HEIGHT);
+        byte[] background = NV21UtilTest.randomNv21(WIDTH, HEIGHT, 23);
+
+        //旋转 4 次 90° 和原图一致
+        AlphaNv21Overlay rotated = overlay;
+        for (int i = 0; i < 4; i++) {
+            rotated = rotated.rotate(90);
+        }
+        byte[] expected = background.clone();
+        NV21Util.overlayNV21(expected, WIDTH, HEIGHT, 2, 2, overlay);
+        byte[] nv21 = background.clone();
+        NV21Util.overlayNV21(nv21, WIDTH, HEIGHT, 2, 2, rotated);
+        assertArrayEquals(expected, nv21);
+
+        //剪掉透明的 4 列后放在右边 4 个像素的位置，结果不变
+        AlphaNv21Overlay cropped = overlay.crop(OVERLAY_WIDTH - 4, OVERLAY_HEIGHT, 4, 0);
+        assertEquals(OVERLAY_WIDTH - 4, cropped.getWidth());
+        nv21 = background.clone();
+        NV21Util.overlayNV21(nv21, WIDTH, HEIGHT, 6, 2, cropped);
+        assertArrayEquals(expected, nv21);
+    }
+
+    private static int[] solid(int color) {
+        int[] argb = new int[OVERLAY_WIDTH * OVERLAY_HEIGHT];
+        Arrays.fill(argb, color);
+        return argb;
+    }
+}
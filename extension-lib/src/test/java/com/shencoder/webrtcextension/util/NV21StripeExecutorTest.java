@@ -0,0 +1,46 @@
+package com.shencoder.webrtcextension.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link NV21StripeExecutor} 调用线程的条带抛出异常时，仍然等其他条带结束后才返回
+ */
+public class NV21StripeExecutorTest {
+    private static final int ROWS = 4096;
+
+    @Test
+    public void callerStripeFailureWaitsForWorkers() {
+        AtomicInteger finishedStripes = new AtomicInteger();
+        IllegalStateException failure = new IllegalStateException("caller stripe");
+        try {
+            NV21StripeExecutor.run(ROWS, (rowStart, rowEnd) -> {
+                if (rowStart == 0) {
+                    throw failure;
+                }
+                //工作线程的条带比调用线程慢，提前返回时这里还没有执行完
+                sleep(50);
+                finishedStripes.incrementAndGet();
+            });
+            fail("exception expected");
+        } catch (IllegalStateException e) {
+            assertSame(failure, e);
+        }
+        int finishedOnReturn = finishedStripes.get();
+        sleep(100);
+        assertEquals(finishedOnReturn, finishedStripes.get());
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.shencoder.webrtcextension.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * {@link NV21Util} 的并行版本（xxxParallel）和串行版本输出完全一致，分辨率覆盖并行阈值两侧直到 4K
+ */
+public class NV21UtilParallelTest {
+    private static final int[][] RESOLUTIONS = {{1280, 720}, {1920, 1080}, {2560, 1440}, {3840, 2160}};
+
+    @Test
+    public void cropParallelMatchesSerial() {
+        for (int[] resolution : RESOLUTIONS) {
+            int width = resolution[0];
+            int height = resolution[1];
+            byte[] src = NV21UtilTest.randomNv21(width, height, width);
+            //剪裁区域同时覆盖阈值以上和以下，起始位置为奇数
+            int[][] clips = {{width - 3, height - 5, 3, 5}, {width / 2, height / 2, 7, 9}};
+            for (int[] clip : clips) {
+                byte[] serial = new byte[src.length];
+                byte[] parallel = new byte[src.length];
+                assertTrue(NV21Util.cropNV21Into(src, width, height, clip[0], clip[1], clip[2], clip[3],
+                        serial, 0));
+                assertTrue(NV21Util.cropNV21IntoParallel(src, width, height, clip[0], clip[1], clip[2],
+                        clip[3], parallel, 0));
+                assertArrayEquals(width + "x" + height, serial, parallel);
+            }
+        }
+    }
+
+    @Test
+    public void overlayParallelMatchesSerial() {
+        for (int[] resolution : RESOLUTIONS) {
+            int width = resolution[0];
+            int height = resolution[1];
+            byte[] background = NV21UtilTest.randomNv21(width, height, width + 1);
+            //叠图比画面略小、位置为奇数，右下角会被剪裁
+            int overlayWidth = width - 6;
+            int overlayHeight = height - 4;
+            byte[] overlay = transparentOverlay(overlayWidth, overlayHeight, width + 2);
+            Nv21OverlayMask mask = Nv21OverlayMask.create(overlay, overlayWidth, overlayHeight);
+            String message = width + "x" + height;
+
+            byte[] serial = background.clone();
+            byte[] parallel = background.clone();
+            NV21Util.overlayNV21(serial, width, height, 9, 7, overlay, overlayWidth, overlayHeight, false);
+            NV21Util.overlayNV21Parallel(parallel, width, height, 9, 7, overlay, overlayWidth, overlayHeight, false);
+            assertArrayEquals(message, serial, parallel);
+
+            serial = background.clone();
+            parallel = background.clone();
+            NV21Util.overlayNV21(serial, width, height, 9, 7, overlay, overlayWidth, overlayHeight, true);
+            NV21Util.overlayNV21Parallel(parallel, width, height, 9, 7, overlay, overlayWidth, overlayHeight, true);
+            assertArrayEquals(message, serial, parallel);
+
+            parallel = background.clone();
+            NV21Util.overlayNV21Parallel(parallel, width, height, 9, 7, overlay, overlayWidth, overlayHeight, mask);
+            assertArrayEquals(message, serial, parallel);
+        }
+    }
+
+    @Test
+    public void alphaOverlayParallelMatchesSerial() {
+        for (int[] resolution : RESOLUTIONS) {
+            int width = resolution[0];
+            int height = resolution[1];
+            byte[] background = NV21UtilTest.randomNv21(width, height, width + 3);
+            Random random = new Random(width);
+            int[] argb = new int[width * height];
+            for (int i = 0; i < argb.length; i++) {
+                int alpha;
+                switch (random.nextInt(3)) {
+                    case 0:
+                        alpha = 0;
+                        break;
+                    case 1:
+                        alpha = 0xFF;
+                        break;
+                    default:
+                        alpha = random.nextInt(256);
+                        break;
+                }
+                argb[i] = (alpha << 24) | (random.nextInt() & 0xFFFFFF);
+            }
+            AlphaNv21Overlay overlay = AlphaNv21Overlay.fromArgb(argb, width, height);
+
+            byte[] serial = background.clone();
+            byte[] parallel = background.clone();
+            NV21Util.overlayNV21(serial, width, height, 4, 2, overlay);
+            NV21Util.overlayNV21Parallel(parallel, width, height, 4, 2, overlay);
+            assertArrayEquals(width + "x" + height, serial, parallel);
+        }
+    }
+
+    /**
+     * 随机数据，每隔几行、几列有一段透明区域
+     */
+    private static byte[] transparentOverlay(int width, int height, long seed) {
+        byte[] overlay = NV21UtilTest.randomNv21(width, height, seed);
+        for (int row = 0; row < height; row++) {
+            for (int col = 0; col < width; col++) {
+                if ((row / 16 + col / 24) % 3 == 0) {
+                    overlay[row * width + col] = NV21Util.TRANSPARENT_Y;
+                    overlay[width * height + (row / 2) * width + col] = NV21Util.TRANSPARENT_UV;
+                }
+            }
+        }
+        return overlay;
+    }
+}
@@ -0,0 +1,312 @@
+package com.shencoder.webrtcextension.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * {@link NV21Util} 的剪裁、叠图、旋转、缩小和 I420 转换
+ */
+public class NV21UtilTest {
+
+    @Test
+    public void cropNV21IntoMatchesCropNV21WithOddLeftTop() {
+        int width = 32;
+        int height = 24;
+        byte[] src = randomNv21(width, height, 1);
+        int clipWidth = 13;
+        int clipHeight = 9;
+        int left = 5;
+        int top = 7;
+
+        byte[] expected = NV21Util.cropNV21(src, width, height, clipWidth, clipHeight, left, top);
+        assertNotNull(expected);
+        int dstOffset = 3;
+        byte[] dst = new byte[dstOffset + expected.length + 4];
+        Arrays.fill(dst, (byte) 0x55);
+        assertTrue(NV21Util.cropNV21Into(src, width, height, clipWidth, clipHeight, left, top, dst, dstOffset));
+        assertArrayEquals(expected, Arrays.copyOfRange(dst, dstOffset, dstOffset + expected.length));
+        //写入范围外的数据不变
+        assertEquals(0x55, dst[dstOffset - 1] & 0xFF);
+        assertEquals(0x55, dst[dstOffset + expected.length] & 0xFF);
+
+        //宽高和起始位置都向下取偶数
+        assertArrayEquals(referenceCrop(src, width, height, 12, 8, 4, 6), expected);
+    }
+
+    @Test
+    public void cropNV21IntoRejectsOutOfRange() {
+        byte[] src = randomNv21(16, 16, 2);
+        byte[] dst = new byte[16 * 16 * 3 / 2];
+        assertFalse(NV21Util.cropNV21Into(src, 16, 16, 8, 8, 10, 0, dst, 0));
+        assertFalse(NV21Util.cropNV21Into(src, 16, 16, 8, 8, -2, 0, dst, 0));
+        assertFalse(NV21Util.cropNV21Into(src, 16, 16, 8, 8, 0, 0, new byte[8 * 8], 0));
+    }
+
+    @Test
+    public void maskOverlayMatchesTransparentOverlayWhenClipped() {
+        int width = 40;
+        int height = 30;
+        int overlayWidth = 16;
+        int overlayHeight = 12;
+        byte[] overlay = randomNv21(overlayWidth, overlayHeight, 3);
+        //左半边透明，右下角再挖一块透明区域
+        for (int row = 0; row < overlayHeight; row++) {
+            for (int col = 0; col < overlayWidth; col++) {
+                if (col < overlayWidth / 2 || (row >= 8 && col >= 12)) {
+                    overlay[row * overlayWidth + col] = NV21Util.TRANSPARENT_Y;
+                    overlay[overlayWidth * overlayHeight + (row / 2) * overlayWidth + col] = NV21Util.TRANSPARENT_UV;
+                }
+            }
+        }
+        Nv21OverlayMask mask = Nv21OverlayMask.create(overlay, overlayWidth, overlayHeight);
+        assertNotNull(mask);
+
+        int[][] positions = {{0, 0}, {7, 5}, {30, 22}, {width - 2, height - 2}};
+        for (int[] position : positions) {
+            byte[] expected = randomNv21(width, height, 4);
+            byte[] actual = expected.clone();
+            NV21Util.overlayNV21(expected, width, height, position[0], position[1], overlay, overlayWidth,
+                    overlayHeight, true);
+            NV21Util.overlayNV21(actual, width, height, position[0], position[1], overlay, overlayWidth,
+                    overlayHeight, mask);
+            assertArrayEquals("left=" + position[0] + ", top=" + position[1], expected, actual);
+        }
+    }
+
+    @Test
+    public void transparentOverlayKeepsBackground() {
+        int width = 20;
+        int height = 10;
+        byte[] overlay = new byte[8 * 4 * 3 / 2];
+        Arrays.fill(overlay, 0, 8 * 4, NV21Util.TRANSPARENT_Y);
+        Arrays.fill(overlay, 8 * 4, overlay.length, NV21Util.TRANSPARENT_UV);
+        byte[] background = randomNv21(width, height, 5);
+        byte[] nv21 = background.clone();
+        NV21Util.overlayNV21(nv21, width, height, 2, 2, overlay, 8, 4, true);
+        assertArrayEquals(background, nv21);
+    }
+
+    @Test
+    public void rotate90Then270RoundTrips() {
+        int width = 70;
+        int height = 38;
+        byte[] src = randomNv21WithVuMarkers(width, height, 6);
+        byte[] rotated = new byte[src.length];
+        byte[] restored = new byte[src.length];
+        assertTrue(NV21Util.rotateNV21(src, width, height, 90, rotated, 0));
+        assertArrayEquals(referenceRotate90(src, width, height), rotated);
+        assertVuOrder(rotated, height, width);
+        assertTrue(NV21Util.rotateNV21(rotated, height, width, 270, restored, 0));
+        assertArrayEquals(src, restored);
+    }
+
+    @Test
+    public void rotate180TwiceRoundTrips() {
+        int width = 66;
+        int height = 34;
+        byte[] src = randomNv21WithVuMarkers(width, height, 7);
+        byte[] rotated = new byte[src.length];
+        byte[] restored = new byte[src.length];
+        assertTrue(NV21Util.rotateNV21(src, width, height, 180, rotated, 0));
+        assertVuOrder(rotated, width, height);
+        //180° 时第一个 VU 对来自原图最后一个 VU 对，V、U 顺序不变
+        assertEquals(src[src.length - 2], rotated[width * height]);
+        assertEquals(src[src.length - 1], rotated[width * height + 1]);
+        assertTrue(NV21Util.rotateNV21(rotated, width, height, 180, restored, 0));
+        assertArrayEquals(src, restored);
+    }
+
+    @Test
+    public void rotateRejectsOddSizeAndSameArray() {
+        byte[] src = randomNv21(8, 8, 8);
+        assertFalse(NV21Util.rotateNV21(src, 8, 8, 90, src, 0));
+        assertFalse(NV21Util.rotateNV21(new byte[9 * 8 * 3 / 2], 9, 8, 90, new byte[9 * 8 * 3 / 2], 0));
+        assertFalse(NV21Util.rotateNV21(src, 8, 8, 45, new byte[src.length], 0));
+    }
+
+    @Test
+    public void downscalePyramidLayerSizes() {
+        int width = 100;
+        int height = 60;
+        byte[] src = new byte[width * height * 3 / 2];
+        Arrays.fill(src, 0, width * height, (byte) 100);
+        for (int i = width * height; i < src.length; i += 2) {
+            src[i] = (byte) 200;
+            src[i + 1] = (byte) 50;
+        }
+        //每层宽高为上一层的一半再向下取偶数：50x30、24x14、12x6、6x2，再下一层高为0
+        int[][] sizes = {{50, 30}, {24, 14}, {12, 6}, {6, 2}};
+        byte[][] layers = new byte[sizes.length + 1][];
+        for (int i = 0; i < sizes.length; i++) {
+            layers[i] = new byte[sizes[i][0] * sizes[i][1] * 3 / 2];
+        }
+        layers[sizes.length] = new byte[64];
+        assertEquals(sizes.length, NV21Util.downscaleNV21Pyramid(src, width, height, layers));
+        for (int i = 0; i < sizes.length; i++) {
+            int ySize = sizes[i][0] * sizes[i][1];
+            for (int j = 0; j < ySize; j++) {
+                assertEquals(100, layers[i][j] & 0xFF);
+            }
+            for (int j = ySize; j < layers[i].length; j += 2) {
+                assertEquals(200, layers[i][j] & 0xFF);
+                assertEquals(50, layers[i][j + 1] & 0xFF);
+            }
+        }
+    }
+
+    @Test
+    public void downscalePyramidStopsAtSmallLayer() {
+        byte[] src = randomNv21(64, 32, 9);
+        byte[][] layers = {new byte[32 * 16 * 3 / 2], new byte[10]};
+        assertEquals(1, NV21Util.downscaleNV21Pyramid(src, 64, 32, layers));
+    }
+
+    @Test
+    public void copyI420ToNV21WithPaddedStrides() {
+        copyI420ToNV21WithPaddedStrides(false, false);
+        //toI420() 的平面是 direct buffer，目标是池里的堆数组
+        copyI420ToNV21WithPaddedStrides(true, false);
+        copyI420ToNV21WithPaddedStrides(true, true);
+    }
+
+    private static void copyI420ToNV21WithPaddedStrides(boolean srcDirect, boolean dstDirect) {
+        int width = 7;
+        int height = 5;
+        int chromaWidth = 4;
+        int chromaHeight = 3;
+        int strideY = 12;
+        int strideU = 8;
+        int strideV = 9;
+        int dstStrideY = 10;
+        int dstStrideVU = 11;
+        Random random = new Random(10);
+        byte[] y = randomBytes(random, strideY * height);
+        byte[] u = randomBytes(random, strideU * chromaHeight);
+        byte[] v = randomBytes(random, strideV * chromaHeight);
+        byte[] dstY = new byte[dstStrideY * height];
+        byte[] dstVU = new byte[dstStrideVU * chromaHeight];
+        Arrays.fill(dstY, (byte) 0x55);
+        Arrays.fill(dstVU, (byte) 0x55);
+
+        ByteBuffer dstYBuffer = wrap(dstY, dstDirect);
+        ByteBuffer dstVUBuffer = wrap(dstVU, dstDirect);
+        assertTrue(NV21Util.copyI420ToNV21(wrap(y, srcDirect), strideY, wrap(u, srcDirect), strideU,
+                wrap(v, srcDirect), strideV, dstYBuffer, dstStrideY, dstVUBuffer, dstStrideVU, width, height));
+        if (dstDirect) {
+            dstYBuffer.get(dstY);
+            dstVUBuffer.get(dstVU);
+        }
+
+        for (int row = 0; row < height; row++) {
+            for (int col = 0; col < dstStrideY; col++) {
+                int expected = col < width ? y[row * strideY + col] & 0xFF : 0x55;
+                assertEquals("y " + row + "," + col, expected, dstY[row * dstStrideY + col] & 0xFF);
+            }
+        }
+        for (int row = 0; row < chromaHeight; row++) {
+            for (int col = 0; col < dstStrideVU; col++) {
+                int expected;
+                if (col >= chromaWidth * 2) {
+                    expected = 0x55;
+                } else if ((col & 1) == 0) {
+                    expected = v[row * strideV + col / 2] & 0xFF;
+                } else {
+                    expected = u[row * strideU + col / 2] & 0xFF;
+                }
+                assertEquals("vu " + row + "," + col, expected, dstVU[row * dstStrideVU + col] & 0xFF);
+            }
+        }
+    }
+
+    @Test
+    public void copyI420ToNV21RejectsSmallDestination() {
+        ByteBuffer plane = ByteBuffer.allocate(64);
+        assertFalse(NV21Util.copyI420ToNV21(plane, 8, plane, 4, plane, 4, plane, 8, ByteBuffer.allocate(7), 8,
+                8, 2));
+    }
+
+    static byte[] randomNv21(int width, int height, long seed) {
+        return randomBytes(new Random(seed), width * height * 3 / 2);
+    }
+
+    private static byte[] randomBytes(Random random, int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * V 的最高位为 1，U 的最高位为 0，用来检查旋转后 V、U 的顺序
+     */
+    private static byte[] randomNv21WithVuMarkers(int width, int height, long seed) {
+        byte[] nv21 = randomNv21(width, height, seed);
+        for (int i = width * height; i < nv21.length; i += 2) {
+            nv21[i] |= (byte) 0x80;
+            nv21[i + 1] &= 0x7F;
+        }
+        return nv21;
+    }
+
+    private static void assertVuOrder(byte[] nv21, int width, int height) {
+        for (int i = width * height; i < nv21.length; i += 2) {
+            assertTrue("V at " + i, (nv21[i] & 0x80) != 0);
+            assertTrue("U at " + (i + 1), (nv21[i + 1] & 0x80) == 0);
+        }
+    }
+
+    private static ByteBuffer wrap(byte[] bytes, boolean direct) {
+        if (!direct) {
+            return ByteBuffer.wrap(bytes);
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes);
+        buffer.clear();
+        return buffer;
+    }
+
+    private static byte[] referenceCrop(byte[] src, int srcWidth, int srcHeight, int width, int height, int left,
+                                        int top) {
+        byte[] dst = new byte[width * height * 3 / 2];
+        for (int row = 0; row < height; row++) {
+            System.arraycopy(src, (top + row) * srcWidth + left, dst, row * width, width);
+        }
+        for (int row = 0; row < height / 2; row++) {
+            System.arraycopy(src, srcWidth * srcHeight + (top / 2 + row) * srcWidth + left, dst,
+                    width * height + row * width, width);
+        }
+        return dst;
+    }
+
+    /**
+     * 逐像素顺时针旋转 90°：输出 (row, col) 来自原图 (height - 1 - col, row)，VU 按对移动
+     */
+    private static byte[] referenceRotate90(byte[] src, int width, int height) {
+        byte[] dst = new byte[src.length];
+        for (int row = 0; row < width; row++) {
+            for (int col = 0; col < height; col++) {
+                dst[row * height + col] = src[(height - 1 - col) * width + row];
+            }
+        }
+        int ySize = width * height;
+        int chromaWidth = width / 2;
+        int chromaHeight = height / 2;
+        for (int row = 0; row < chromaWidth; row++) {
+            for (int col = 0; col < chromaHeight; col++) {
+                int srcIndex = ySize + (chromaHeight - 1 - col) * width + row * 2;
+                int dstIndex = ySize + row * height + col * 2;
+                dst[dstIndex] = src[srcIndex];
+                dst[dstIndex + 1] = src[srcIndex + 1];
+            }
+        }
+        return dst;
+    }
+}